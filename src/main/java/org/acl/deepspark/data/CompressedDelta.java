@@ -0,0 +1,18 @@
+package org.acl.deepspark.data;
+
+import java.io.Serializable;
+
+/**
+ * Flat delta laid out by a {@link WeightLayout}, in an encoding produced by a {@link GradientCompressor}.
+ */
+public interface CompressedDelta extends Serializable {
+
+	// number of floats of the decoded delta
+	int size();
+
+	// dest[offset..] += decoded delta
+	void addTo(float[] dest, int offset);
+
+	// approximate payload on the wire
+	long getBytes();
+}
@@ -0,0 +1,127 @@
+package org.acl.deepspark.data;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Draws sample indices epoch by epoch: every index in [0, size) is visited exactly once per epoch,
+ * and the visiting order is reshuffled at every epoch boundary.
+ *
+ * PERMUTATION visits a full random permutation of the data.
+ * BLOCK_SHUFFLE cuts the index range into contiguous blocks and shuffles the block order and the order
+ * inside each block, so consecutive draws stay inside a small window of the sample array while the
+ * composition of a minibatch is still randomized.
+ *
+ * The order of epoch e only depends on (seed, e), which makes runs with the same seed reproducible and
+ * lets any position of the stream be recomputed with {@link #indexAt(long)}.
+ */
+public class EpochSampler implements Serializable {
+
+	public enum Mode {
+		PERMUTATION, BLOCK_SHUFFLE
+	}
+
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	private static final long serialVersionUID = 6193870364520394417L;
+
+	private final int size;
+	private final Mode mode;
+	private final int blockSize;
+	private final long seed;
+
+	private long position;
+
+	private transient int[] order;		// visiting order of orderEpoch
+	private transient int orderEpoch;
+
+	public EpochSampler(int size, Mode mode, long seed) {
+		this(size, mode, DEFAULT_BLOCK_SIZE, seed);
+	}
+
+	public EpochSampler(int size, Mode mode, int blockSize, long seed) {
+		if (size <= 0)
+			throw new IllegalArgumentException(String.format("Sampler size must be positive; size %d", size));
+		if (blockSize <= 0)
+			throw new IllegalArgumentException(String.format("Block size must be positive; blockSize %d", blockSize));
+
+		this.size = size;
+		this.mode = mode;
+		this.blockSize = blockSize;
+		this.seed = seed;
+		this.position = 0;
+	}
+
+	public int next() {
+		return indexAt(position++);
+	}
+
+	public int indexAt(long pos) {
+		int epoch = (int) (pos / size);
+		if (order == null || orderEpoch != epoch)
+			shuffle(epoch);
+		return order[(int) (pos % size)];
+	}
+
+	public int getEpoch() {
+		return (int) (position / size);
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public void seek(long position) {
+		this.position = position;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	private void shuffle(int epoch) {
+		if (order == null)
+			order = new int[size];
+		Random random = new Random(seed * 0x9E3779B97F4A7C15L + epoch);
+
+		switch (mode) {
+			case PERMUTATION:
+				for (int i = 0; i < size; i++)
+					order[i] = i;
+				shuffle(order, 0, size, random);
+				break;
+
+			case BLOCK_SHUFFLE:
+				int numBlocks = (size + blockSize - 1) / blockSize;
+				int[] blocks = new int[numBlocks];
+				for (int i = 0; i < numBlocks; i++)
+					blocks[i] = i;
+				shuffle(blocks, 0, numBlocks, random);
+
+				int pos = 0;
+				for (int block : blocks) {
+					int start = block * blockSize;
+					int length = Math.min(blockSize, size - start);
+					for (int i = 0; i < length; i++)
+						order[pos + i] = start + i;
+					shuffle(order, pos, length, random);
+					pos += length;
+				}
+				break;
+		}
+		orderEpoch = epoch;
+	}
+
+	private static void shuffle(int[] arr, int offset, int length, Random random) {
+		for (int i = length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = arr[offset + i];
+			arr[offset + i] = arr[offset + j];
+			arr[offset + j] = tmp;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package org.acl.deepspark.data;
+
+import java.io.Serializable;
+
+/**
+ * Sum of gradients in one flat float array laid out by a {@link WeightLayout}, together with the
+ * number of samples and their summed loss.
+ *
+ * Unlike {@link Accumulator} it holds a single array however many layers there are, so merging two
+ * partial sums is one loop and shipping one between executors is one block.
+ *
+ * {@link #compress} replaces the sum by its encoding for transport; it is decoded by the first merge.
+ */
+public class FlatAccumulator implements Serializable {
+
+	private static final long serialVersionUID = 4387361268024655730L;
+
+	private final WeightLayout layout;
+	private float[] sum;		// null while empty, so an empty accumulator is cheap to ship
+	private CompressedDelta compressed;
+	private int count;
+	private double loss;
+
+	public FlatAccumulator(WeightLayout layout) {
+		this.layout = layout;
+	}
+
+	public void accumulate(Weight[] gradient, double loss) {
+		decompress();
+		if (sum == null)
+			sum = new float[layout.size()];
+		layout.addTo(gradient, sum, 0);
+		this.loss += loss;
+		count++;
+	}
+
+	public FlatAccumulator merge(FlatAccumulator other) {
+		if (!layout.equals(other.layout))
+			throw new IllegalArgumentException("Accumulators have different layouts");
+		decompress();
+		if (other.compressed != null) {
+			if (sum == null)
+				sum = new float[layout.size()];
+			other.compressed.addTo(sum, 0);
+		} else if (other.sum != null) {
+			if (sum == null) {
+				sum = other.sum.clone();
+			} else {
+				for (int i = 0; i < sum.length; i++)
+					sum[i] += other.sum[i];
+			}
+		}
+		count += other.count;
+		loss += other.loss;
+		return this;
+	}
+
+	// encodes the sum with compressor, which may keep a residual of what it left out
+	public void compress(GradientCompressor compressor) {
+		if (sum != null) {
+			compressed = compressor.compress(sum, layout);
+			sum = null;
+		}
+	}
+
+	private void decompress() {
+		if (compressed != null) {
+			sum = new float[layout.size()];
+			compressed.addTo(sum, 0);
+			compressed = null;
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public double getLoss() {
+		return loss;
+	}
+
+	public WeightLayout getLayout() {
+		return layout;
+	}
+
+	// null while empty
+	public float[] getSum() {
+		decompress();
+		return sum;
+	}
+
+	public Weight[] getAverage() {
+		if (count <= 0) return null;
+
+		decompress();
+		float[] average = new float[sum.length];
+		for (int i = 0; i < sum.length; i++)
+			average[i] = sum[i] / count;
+		return layout.unflatten(average, 0);
+	}
+}
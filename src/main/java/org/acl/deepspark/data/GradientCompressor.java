@@ -0,0 +1,13 @@
+package org.acl.deepspark.data;
+
+import java.io.Serializable;
+
+/**
+ * Encodes flat deltas for transport. Lossy compressors keep what they did not send and add it to the
+ * next delta (error feedback), so one instance must be used for the deltas of one worker only.
+ * A configured but unused instance can be shipped to the workers, each of which keeps its own copy.
+ */
+public interface GradientCompressor extends Serializable {
+
+	CompressedDelta compress(float[] delta, WeightLayout layout);
+}
@@ -0,0 +1,96 @@
+package org.acl.deepspark.data;
+
+import java.io.Serializable;
+
+/**
+ * Weights in IEEE 754 half precision (fp16) with their layout, half the size of float weights.
+ * Values round to nearest even; magnitudes beyond 65504 become infinite.
+ */
+public class HalfWeights implements Serializable {
+
+	private static final long serialVersionUID = -1808367736616151458L;
+
+	private final WeightLayout layout;
+	private final short[] data;
+
+	public HalfWeights(Weight[] weights) {
+		this.layout = new WeightLayout(weights);
+		float[] flat = layout.flatten(weights);
+		this.data = new short[flat.length];
+		for (int i = 0; i < flat.length; i++)
+			data[i] = toHalf(flat[i]);
+	}
+
+	public WeightLayout getLayout() {
+		return layout;
+	}
+
+	// null where the encoded weights were null
+	public Weight[] toWeights() {
+		return layout.unflatten(toFloats(), 0);
+	}
+
+	// overwrites the tensors of dest in place, dest must match the layout
+	public void copyInto(Weight[] dest) {
+		layout.copyInto(toFloats(), 0, dest);
+	}
+
+	private float[] toFloats() {
+		float[] flat = new float[data.length];
+		for (int i = 0; i < data.length; i++)
+			flat[i] = toFloat(data[i]);
+		return flat;
+	}
+
+	public static short toHalf(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+
+		if (exponent >= 0x1f) {
+			// overflow, infinity, NaN
+			boolean nan = ((bits >>> 23) & 0xff) == 0xff && mantissa != 0;
+			return (short) (sign | 0x7c00 | (nan ? 0x200 : 0));
+		}
+		if (exponent <= 0) {
+			// subnormal or zero
+			if (exponent < -10)
+				return (short) sign;
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >>> shift;
+			int rest = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (rest > halfway || (rest == halfway && (half & 1) != 0))
+				half++;
+			return (short) (sign | half);
+		}
+		int half = sign | (exponent << 10) | (mantissa >>> 13);
+		int rest = mantissa & 0x1fff;
+		if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+			half++;		// may carry into the exponent, which rounds up to the next power of two or infinity
+		return (short) half;
+	}
+
+	public static float toFloat(short half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+
+		if (exponent == 0x1f)
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		if (exponent == 0) {
+			if (mantissa == 0)
+				return Float.intBitsToFloat(sign);
+			// subnormal: normalize
+			exponent = 1;
+			while ((mantissa & 0x400) == 0) {
+				mantissa <<= 1;
+				exponent--;
+			}
+			mantissa &= 0x3ff;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+}
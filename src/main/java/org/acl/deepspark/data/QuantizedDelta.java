@@ -0,0 +1,62 @@
+package org.acl.deepspark.data;
+
+/**
+ * Delta quantized per layer to 8-bit integers times a scale, or to 1-bit signs times a scale.
+ */
+public class QuantizedDelta implements CompressedDelta {
+
+	private static final long serialVersionUID = 5312618014306373095L;
+
+	private final int size;
+	private final int bits;				// 8 or 1
+	private final int[] offsets;
+	private final int[] lengths;
+	private final float[] scales;
+	private final byte[][] data;		// null for layers without weights
+
+	QuantizedDelta(int size, int bits, int[] offsets, int[] lengths, float[] scales, byte[][] data) {
+		this.size = size;
+		this.bits = bits;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.scales = scales;
+		this.data = data;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	@Override
+	public void addTo(float[] dest, int offset) {
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] == null)
+				continue;
+			int base = offset + offsets[i];
+			float scale = scales[i];
+			byte[] q = data[i];
+			if (bits == 8) {
+				for (int j = 0; j < lengths[i]; j++)
+					dest[base + j] += q[j] * scale;
+			} else {
+				for (int j = 0; j < lengths[i]; j++)
+					dest[base + j] += (q[j >>> 3] & (1 << (j & 7))) != 0 ? scale : -scale;
+			}
+		}
+	}
+
+	@Override
+	public long getBytes() {
+		long bytes = 0;
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] != null)
+				bytes += data[i].length + 4;
+		}
+		return bytes;
+	}
+}
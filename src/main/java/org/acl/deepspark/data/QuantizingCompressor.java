@@ -0,0 +1,77 @@
+package org.acl.deepspark.data;
+
+/**
+ * Quantizes every layer of a delta with error feedback: the quantization error is kept and added to
+ * the next delta.
+ *
+ * INT8 sends round(v / scale) with scale = max|v| / 127, four times smaller than floats.
+ * SIGN sends one bit per entry with scale = mean|v|, so an entry decodes to +scale or -scale;
+ * 32 times smaller than floats, and only usable because of the error feedback.
+ */
+public class QuantizingCompressor implements GradientCompressor {
+
+	public enum Mode {
+		INT8, SIGN
+	}
+
+	private static final long serialVersionUID = -6580049839521232416L;
+
+	private final Mode mode;
+	private float[] residual;
+
+	public QuantizingCompressor(Mode mode) {
+		this.mode = mode;
+	}
+
+	@Override
+	public CompressedDelta compress(float[] delta, WeightLayout layout) {
+		if (delta.length != layout.size())
+			throw new IllegalArgumentException(String.format
+					("Delta size mismatch; layout %d, delta %d", layout.size(), delta.length));
+		if (residual == null)
+			residual = new float[layout.size()];
+
+		int numLayers = layout.getNumLayers();
+		int[] offsets = new int[numLayers];
+		int[] lengths = new int[numLayers];
+		float[] scales = new float[numLayers];
+		byte[][] data = new byte[numLayers][];
+		for (int i = 0; i < numLayers; i++) {
+			int base = offsets[i] = layout.getOffset(i);
+			int length = lengths[i] = layout.getLength(i);
+			if (length == 0)
+				continue;
+
+			float max = 0, sum = 0;
+			for (int j = base; j < base + length; j++) {
+				residual[j] += delta[j];
+				float a = Math.abs(residual[j]);
+				max = Math.max(max, a);
+				sum += a;
+			}
+
+			if (mode == Mode.INT8) {
+				float scale = scales[i] = max / 127;
+				byte[] q = data[i] = new byte[length];
+				if (scale == 0)
+					continue;
+				for (int j = 0; j < length; j++) {
+					q[j] = (byte) Math.round(residual[base + j] / scale);
+					residual[base + j] -= q[j] * scale;
+				}
+			} else {
+				float scale = scales[i] = sum / length;
+				byte[] q = data[i] = new byte[(length + 7) / 8];
+				for (int j = 0; j < length; j++) {
+					if (residual[base + j] >= 0) {
+						q[j >>> 3] |= 1 << (j & 7);
+						residual[base + j] -= scale;
+					} else {
+						residual[base + j] += scale;
+					}
+				}
+			}
+		}
+		return new QuantizedDelta(layout.size(), mode == Mode.INT8 ? 8 : 1, offsets, lengths, scales, data);
+	}
+}
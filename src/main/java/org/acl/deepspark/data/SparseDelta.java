@@ -0,0 +1,64 @@
+package org.acl.deepspark.data;
+
+/**
+ * Delta given per layer either as (index, value) pairs or, where that would not be smaller, densely.
+ * Indices are relative to the start of the layer in the flat layout.
+ */
+public class SparseDelta implements CompressedDelta {
+
+	private static final long serialVersionUID = -2241316813460301226L;
+
+	private final int size;
+	private final int[] offsets;
+	private final int[][] indices;		// null for dense layers
+	private final float[][] values;		// null for layers without weights
+
+	SparseDelta(int size, int[] offsets, int[][] indices, float[][] values) {
+		this.size = size;
+		this.offsets = offsets;
+		this.indices = indices;
+		this.values = values;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	public boolean isDense(int layer) {
+		return values[layer] != null && indices[layer] == null;
+	}
+
+	// stored entries of layer
+	public int getCount(int layer) {
+		return values[layer] != null ? values[layer].length : 0;
+	}
+
+	@Override
+	public void addTo(float[] dest, int offset) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null)
+				continue;
+			int base = offset + offsets[i];
+			float[] v = values[i];
+			if (indices[i] == null) {
+				for (int j = 0; j < v.length; j++)
+					dest[base + j] += v[j];
+			} else {
+				int[] idx = indices[i];
+				for (int j = 0; j < v.length; j++)
+					dest[base + idx[j]] += v[j];
+			}
+		}
+	}
+
+	@Override
+	public long getBytes() {
+		long bytes = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null)
+				bytes += (indices[i] != null ? 8L : 4L) * values[i].length;
+		}
+		return bytes;
+	}
+}
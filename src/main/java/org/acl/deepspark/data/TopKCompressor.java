@@ -0,0 +1,120 @@
+package org.acl.deepspark.data;
+
+import java.util.Arrays;
+
+/**
+ * Sends the k largest-magnitude entries of every layer, k = ceil(ratio * layer size), with error feedback:
+ * the entries left out are accumulated locally and added to the next delta.
+ *
+ * A layer whose k would exceed denseThreshold of its size is sent densely, since (index, value) pairs
+ * then cost more than the plain floats.
+ */
+public class TopKCompressor implements GradientCompressor {
+
+	private static final long serialVersionUID = 8030416457950717862L;
+
+	public static final double DEFAULT_DENSE_THRESHOLD = 0.5;
+
+	private final double ratio;
+	private final double denseThreshold;
+	private float[] residual;
+	private transient float[] scratch;
+
+	public TopKCompressor(double ratio) {
+		this(ratio, DEFAULT_DENSE_THRESHOLD);
+	}
+
+	public TopKCompressor(double ratio, double denseThreshold) {
+		if (ratio <= 0 || ratio > 1)
+			throw new IllegalArgumentException(String.format("Ratio must be in (0, 1]; ratio %f", ratio));
+		this.ratio = ratio;
+		this.denseThreshold = denseThreshold;
+	}
+
+	@Override
+	public CompressedDelta compress(float[] delta, WeightLayout layout) {
+		if (delta.length != layout.size())
+			throw new IllegalArgumentException(String.format
+					("Delta size mismatch; layout %d, delta %d", layout.size(), delta.length));
+		if (residual == null)
+			residual = new float[layout.size()];
+
+		int numLayers = layout.getNumLayers();
+		int[] offsets = new int[numLayers];
+		int[][] indices = new int[numLayers][];
+		float[][] values = new float[numLayers][];
+		for (int i = 0; i < numLayers; i++) {
+			offsets[i] = layout.getOffset(i);
+			int length = layout.getLength(i);
+			if (length == 0)
+				continue;
+
+			int base = offsets[i];
+			for (int j = 0; j < length; j++)
+				residual[base + j] += delta[base + j];
+
+			int k = (int) Math.ceil(ratio * length);
+			if (k > denseThreshold * length) {
+				values[i] = Arrays.copyOfRange(residual, base, base + length);
+				Arrays.fill(residual, base, base + length, 0);
+				continue;
+			}
+
+			float threshold = kthLargestMagnitude(base, length, k);
+			int[] idx = new int[k];
+			float[] val = new float[k];
+			int n = 0;
+			// entries strictly above the threshold first, then ties up to k
+			for (int j = 0; j < length && n < k; j++) {
+				if (Math.abs(residual[base + j]) > threshold) {
+					idx[n] = j;
+					val[n++] = residual[base + j];
+					residual[base + j] = 0;
+				}
+			}
+			for (int j = 0; j < length && n < k; j++) {
+				float v = residual[base + j];
+				if (v != 0 && Math.abs(v) == threshold) {
+					idx[n] = j;
+					val[n++] = v;
+					residual[base + j] = 0;
+				}
+			}
+			indices[i] = n == k ? idx : Arrays.copyOf(idx, n);
+			values[i] = n == k ? val : Arrays.copyOf(val, n);
+		}
+		return new SparseDelta(layout.size(), offsets, indices, values);
+	}
+
+	// magnitude of the k-th largest entry of residual[base, base + length), by quickselect
+	private float kthLargestMagnitude(int base, int length, int k) {
+		if (scratch == null || scratch.length < length)
+			scratch = new float[length];
+		float[] a = scratch;
+		for (int j = 0; j < length; j++)
+			a[j] = Math.abs(residual[base + j]);
+
+		int target = length - k;		// k-th largest is the (length-k)-th smallest
+		int lo = 0, hi = length - 1;
+		while (lo < hi) {
+			float pivot = a[(lo + hi) >>> 1];
+			int l = lo, h = hi;
+			while (l <= h) {
+				while (a[l] < pivot) l++;
+				while (a[h] > pivot) h--;
+				if (l <= h) {
+					float t = a[l]; a[l] = a[h]; a[h] = t;
+					l++;
+					h--;
+				}
+			}
+			if (target <= h)
+				hi = h;
+			else if (target >= l)
+				lo = l;
+			else
+				break;
+		}
+		return a[target];
+	}
+}
@@ -0,0 +1,191 @@
+package org.acl.deepspark.data;
+
+import org.jblas.FloatMatrix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Binary form of a Weight[] for the wire: a header with the shape of every layer, then the raw floats
+ * of every present layer in WeightLayout order, little-endian. Floats are copied in bulk between the
+ * buffer and the FloatMatrix arrays, without reflection or per-object headers.
+ *
+ * <pre>
+ * int magic, byte version, int layers
+ * per layer: byte present; if present: byte rank, int[rank] weight shape, byte rank, int[rank] bias shape
+ * floats: w then b of every present layer
+ * </pre>
+ */
+public class WeightCodec {
+	public static final int MAGIC = 0x44535754;		// "DSWT"
+	public static final byte VERSION = 1;
+
+	private WeightCodec() {
+	}
+
+	// bytes encode() and write() take for weights
+	public static int encodedSize(Weight[] weights) {
+		int size = 4 + 1 + 4;
+		for (Weight weight : weights) {
+			size += 1;
+			if (weight != null)
+				size += 2 + 4 * (weight.getWeightShape().length + weight.getBiasShape().length)
+						+ 4 * (weight.w.length() + weight.b.length());
+		}
+		return size;
+	}
+
+	// encodes weights into reuse if it is large enough, into a new buffer otherwise; returned ready to read
+	public static ByteBuffer encode(Weight[] weights, ByteBuffer reuse) {
+		int size = encodedSize(weights);
+		ByteBuffer dest = reuse != null && reuse.capacity() >= size ? reuse : ByteBuffer.allocate(size);
+		dest.clear();
+		write(weights, dest);
+		dest.flip();
+		return dest;
+	}
+
+	// writes weights at the position of dest and advances it
+	public static void write(Weight[] weights, ByteBuffer dest) {
+		dest.order(ByteOrder.LITTLE_ENDIAN);
+		dest.putInt(MAGIC);
+		dest.put(VERSION);
+		dest.putInt(weights.length);
+		for (Weight weight : weights) {
+			dest.put((byte) (weight != null ? 1 : 0));
+			if (weight != null) {
+				putShape(dest, weight.getWeightShape());
+				putShape(dest, weight.getBiasShape());
+			}
+		}
+		for (Weight weight : weights) {
+			if (weight != null) {
+				put(dest, weight.w);
+				put(dest, weight.b);
+			}
+		}
+	}
+
+	// new weights read from the position of src, which is advanced past them
+	public static Weight[] decode(ByteBuffer src) {
+		int[][][] shapes = readHeader(src);
+		long floats = 0;
+		for (int[][] shape : shapes) {
+			if (shape != null)
+				floats += lengthOf(shape[0]) + lengthOf(shape[1]);
+		}
+		if (4 * floats > src.remaining())
+			throw new IllegalArgumentException(String.format
+					("Truncated weights; %d floats, %d bytes left", floats, src.remaining()));
+		Weight[] weights = new Weight[shapes.length];
+		for (int i = 0; i < weights.length; i++) {
+			if (shapes[i] != null)
+				weights[i] = new Weight(Tensor.zeros(shapes[i][0]), Tensor.zeros(shapes[i][1]));
+		}
+		readFloats(src, weights);
+		return weights;
+	}
+
+	// overwrites the tensors of dest in place; the encoded weights must have the shapes of dest
+	public static void decodeInto(ByteBuffer src, Weight[] dest) {
+		int[][][] shapes = readHeader(src);
+		if (shapes.length != dest.length)
+			throw new IllegalArgumentException(String.format
+					("Number of layers mismatch; encoded %d, dest %d", shapes.length, dest.length));
+		for (int i = 0; i < dest.length; i++) {
+			if ((shapes[i] == null) != (dest[i] == null) || (dest[i] != null
+					&& (!Arrays.equals(shapes[i][0], dest[i].getWeightShape())
+					|| !Arrays.equals(shapes[i][1], dest[i].getBiasShape()))))
+				throw new IllegalArgumentException(String.format("Encoded weights do not match layer %d", i));
+		}
+		readFloats(src, dest);
+	}
+
+	// like decodeInto(), but layers left out of the encoding keep what dest holds
+	public static void decodeChanged(ByteBuffer src, Weight[] dest) {
+		int[][][] shapes = readHeader(src);
+		if (shapes.length != dest.length)
+			throw new IllegalArgumentException(String.format
+					("Number of layers mismatch; encoded %d, dest %d", shapes.length, dest.length));
+		Weight[] changed = new Weight[dest.length];
+		for (int i = 0; i < dest.length; i++) {
+			if (shapes[i] == null)
+				continue;
+			if (dest[i] == null || !Arrays.equals(shapes[i][0], dest[i].getWeightShape())
+					|| !Arrays.equals(shapes[i][1], dest[i].getBiasShape()))
+				throw new IllegalArgumentException(String.format("Encoded weights do not match layer %d", i));
+			changed[i] = dest[i];
+		}
+		readFloats(src, changed);
+	}
+
+	private static int[][][] readHeader(ByteBuffer src) {
+		src.order(ByteOrder.LITTLE_ENDIAN);
+		int magic = src.getInt();
+		if (magic != MAGIC)
+			throw new IllegalArgumentException(String.format("Not encoded weights; magic %08x", magic));
+		byte version = src.get();
+		if (version != VERSION)
+			throw new IllegalArgumentException(String.format("Unsupported weight encoding; version %d", version));
+		int layers = src.getInt();
+		if (layers < 0 || layers > src.remaining())
+			throw new IllegalArgumentException(String.format("Invalid number of layers; %d", layers));
+
+		int[][][] shapes = new int[layers][][];
+		for (int i = 0; i < layers; i++) {
+			if (src.get() != 0)
+				shapes[i] = new int[][] {getShape(src), getShape(src)};
+		}
+		return shapes;
+	}
+
+	private static void readFloats(ByteBuffer src, Weight[] weights) {
+		for (Weight weight : weights) {
+			if (weight != null) {
+				get(src, weight.w);
+				get(src, weight.b);
+			}
+		}
+	}
+
+	private static void putShape(ByteBuffer dest, int[] shape) {
+		dest.put((byte) shape.length);
+		for (int d : shape)
+			dest.putInt(d);
+	}
+
+	private static int[] getShape(ByteBuffer src) {
+		int rank = src.get();
+		if (rank < 0)
+			throw new IllegalArgumentException(String.format("Invalid rank; %d", rank));
+		int[] shape = new int[rank];
+		for (int i = 0; i < shape.length; i++) {
+			shape[i] = src.getInt();
+			if (shape[i] < 0)
+				throw new IllegalArgumentException(String.format("Invalid shape; %s", Arrays.toString(shape)));
+		}
+		return shape;
+	}
+
+	private static long lengthOf(int[] shape) {
+		long length = 1;
+		for (int d : shape)
+			length *= d;
+		return length;
+	}
+
+	private static void put(ByteBuffer dest, Tensor t) {
+		for (FloatMatrix mat : t.data()) {
+			dest.asFloatBuffer().put(mat.data, 0, mat.length);
+			dest.position(dest.position() + 4 * mat.length);
+		}
+	}
+
+	private static void get(ByteBuffer src, Tensor t) {
+		for (FloatMatrix mat : t.data()) {
+			src.asFloatBuffer().get(mat.data, 0, mat.length);
+			src.position(src.position() + 4 * mat.length);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.acl.deepspark.data;
+
+import org.jblas.FloatMatrix;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Position of every layer's weight and bias in one flat float array, in layer order and
+ * Tensor.toArray() order (w of layer i, then b of layer i). Null entries take no space.
+ *
+ * Used wherever a Weight[] is stored or moved as one block, e.g. checkpoints.
+ */
+public class WeightLayout implements Serializable {
+
+	private static final long serialVersionUID = -3716527047123906610L;
+
+	private final int[][] weightShapes;		// null for layers without weights
+	private final int[][] biasShapes;
+	private final int[] offsets;
+	private final int size;
+
+	public WeightLayout(Weight[] weights) {
+		this(shapesOf(weights, true), shapesOf(weights, false));
+	}
+
+	public WeightLayout(int[][] weightShapes, int[][] biasShapes) {
+		if (weightShapes.length != biasShapes.length)
+			throw new IllegalArgumentException(String.format
+					("Number of layers mismatch; weights %d, biases %d", weightShapes.length, biasShapes.length));
+
+		this.weightShapes = weightShapes;
+		this.biasShapes = biasShapes;
+		this.offsets = new int[weightShapes.length];
+
+		long offset = 0;
+		for (int i = 0; i < weightShapes.length; i++) {
+			offsets[i] = (int) offset;
+			if (weightShapes[i] != null)
+				offset += lengthOf(weightShapes[i]) + lengthOf(biasShapes[i]);
+		}
+		if (offset > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(String.format("Too many parameters for one block; %d", offset));
+		this.size = (int) offset;
+	}
+
+	public int getNumLayers() {
+		return offsets.length;
+	}
+
+	// total number of floats
+	public int size() {
+		return size;
+	}
+
+	public boolean isPresent(int layer) {
+		return weightShapes[layer] != null;
+	}
+
+	public int getOffset(int layer) {
+		return offsets[layer];
+	}
+
+	public int getLength(int layer) {
+		return isPresent(layer) ? lengthOf(weightShapes[layer]) + lengthOf(biasShapes[layer]) : 0;
+	}
+
+	public int[] getWeightShape(int layer) {
+		return weightShapes[layer];
+	}
+
+	public int[] getBiasShape(int layer) {
+		return biasShapes[layer];
+	}
+
+	public float[] flatten(Weight[] weights) {
+		float[] flat = new float[size];
+		flatten(weights, flat, 0);
+		return flat;
+	}
+
+	public void flatten(Weight[] weights, float[] dest, int offset) {
+		assertMatches(weights);
+		for (int i = 0; i < weights.length; i++) {
+			if (weightShapes[i] != null) {
+				int pos = copy(weights[i].w, dest, offset + offsets[i]);
+				copy(weights[i].b, dest, pos);
+			}
+		}
+	}
+
+	// dest[offset..] += weights, element-wise
+	public void addTo(Weight[] weights, float[] dest, int offset) {
+		assertMatches(weights);
+		for (int i = 0; i < weights.length; i++) {
+			if (weightShapes[i] != null) {
+				int pos = add(weights[i].w, dest, offset + offsets[i]);
+				add(weights[i].b, dest, pos);
+			}
+		}
+	}
+
+	public Weight[] unflatten(float[] src, int offset) {
+		Weight[] weights = new Weight[offsets.length];
+		for (int i = 0; i < weights.length; i++) {
+			if (weightShapes[i] != null) {
+				int pos = offset + offsets[i];
+				int length = lengthOf(weightShapes[i]);
+				weights[i] = new Weight(Tensor.create(Arrays.copyOfRange(src, pos, pos + length), weightShapes[i]),
+						Tensor.create(Arrays.copyOfRange(src, pos + length, pos + getLength(i)), biasShapes[i]));
+			}
+		}
+		return weights;
+	}
+
+	// overwrites the existing tensors of weights in place
+	public void copyInto(float[] src, int offset, Weight[] weights) {
+		assertMatches(weights);
+		for (int i = 0; i < weights.length; i++) {
+			if (weightShapes[i] != null) {
+				int pos = fill(weights[i].w, src, offset + offsets[i]);
+				fill(weights[i].b, src, pos);
+			}
+		}
+	}
+
+	public boolean matches(Weight[] weights) {
+		if (weights.length != offsets.length)
+			return false;
+		for (int i = 0; i < weights.length; i++) {
+			if ((weights[i] == null) != (weightShapes[i] == null))
+				return false;
+			if (weights[i] != null && (!Arrays.equals(weights[i].getWeightShape(), weightShapes[i])
+					|| !Arrays.equals(weights[i].getBiasShape(), biasShapes[i])))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof WeightLayout))
+			return false;
+		WeightLayout other = (WeightLayout) o;
+		return Arrays.deepEquals(weightShapes, other.weightShapes) && Arrays.deepEquals(biasShapes, other.biasShapes);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.deepHashCode(weightShapes) + Arrays.deepHashCode(biasShapes);
+	}
+
+	private void assertMatches(Weight[] weights) {
+		if (!matches(weights))
+			throw new IllegalArgumentException("Weights do not match the layout");
+	}
+
+	private static int copy(Tensor t, float[] dest, int pos) {
+		for (FloatMatrix mat : t.data()) {
+			System.arraycopy(mat.data, 0, dest, pos, mat.length);
+			pos += mat.length;
+		}
+		return pos;
+	}
+
+	private static int add(Tensor t, float[] dest, int pos) {
+		for (FloatMatrix mat : t.data()) {
+			for (int j = 0; j < mat.length; j++)
+				dest[pos + j] += mat.data[j];
+			pos += mat.length;
+		}
+		return pos;
+	}
+
+	private static int fill(Tensor t, float[] src, int pos) {
+		for (FloatMatrix mat : t.data()) {
+			System.arraycopy(src, pos, mat.data, 0, mat.length);
+			pos += mat.length;
+		}
+		return pos;
+	}
+
+	private static int[][] shapesOf(Weight[] weights, boolean weight) {
+		int[][] shapes = new int[weights.length][];
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] != null)
+				shapes[i] = (weight ? weights[i].getWeightShape() : weights[i].getBiasShape()).clone();
+		}
+		return shapes;
+	}
+
+	private static int lengthOf(int[] shape) {
+		int length = 1;
+		for (int d : shape)
+			length *= d;
+		return length;
+	}
+}
@@ -0,0 +1,219 @@
+package org.acl.deepspark.nn.async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/*
+ * One selector thread serving the connections of all workers on one port, see Frames. Every complete
+ * frame is passed to handle() on that thread, in arrival order; answers are queued with reply().
+ * Other threads hand work back to it with wakeup(), after which it calls woken().
+ */
+abstract class FrameServer {
+	private final int port;
+	private final String name;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+
+	private volatile boolean stopSign = false;
+
+	private Thread thread;
+
+	FrameServer(int port, String name) {
+		this.port = port;
+		this.name = name;
+	}
+
+	// called on the server thread for every frame; the payload is reused once this returns
+	abstract void handle(SelectionKey key, Connection c, ByteBuffer payload) throws IOException;
+
+	// called on the server thread after every select(), also when it was woken up by wakeup()
+	void woken() {
+	}
+
+	// called on the server thread once the connection is closed
+	void closed(Connection c) {
+	}
+
+	void wakeup() {
+		selector.wakeup();
+	}
+
+	public void startServer() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					serve();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					closeAll();
+				}
+			}
+		}, name);
+		thread.start();
+	}
+
+	// may be called more than once, also from another thread of the server
+	public synchronized void stopServer() {
+		stopSign = true;
+		if (selector.isOpen())
+			selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// queues a frame for the connection of key and writes what the socket takes now
+	void reply(SelectionKey key, ByteBuffer frame) throws IOException {
+		((Connection) key.attachment()).pending.add(frame);
+		write(key);
+	}
+
+	private void serve() throws IOException {
+		while (!stopSign) {
+			selector.select();
+			woken();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid())
+					continue;
+				try {
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						if (key.isReadable())
+							read(key);
+						if (key.isValid() && key.isWritable())
+							write(key);
+					}
+				} catch (IOException | RuntimeException e) {
+					// a broken worker or a malformed frame loses its connection, the others carry on
+					e.printStackTrace();
+					close(key);
+				}
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+	}
+
+	// handles every complete frame the connection has received so far
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection c = (Connection) key.attachment();
+		while (true) {
+			if (c.payload == null) {
+				if (channel.read(c.header) < 0) {
+					close(key);
+					return;
+				}
+				if (c.header.hasRemaining())
+					return;
+				c.header.flip();
+				int length = c.header.getInt();
+				c.type = c.header.get();
+				c.header.clear();
+				Frames.checkLength(length);
+				if (c.buffer == null || c.buffer.capacity() < length)
+					c.buffer = ByteBuffer.allocate(length);
+				c.buffer.clear();
+				c.buffer.limit(length);
+				c.payload = c.buffer;
+				c.received = System.nanoTime();
+			}
+			if (c.payload.hasRemaining() && channel.read(c.payload) < 0) {
+				close(key);
+				return;
+			}
+			if (c.payload.hasRemaining())
+				return;
+			ByteBuffer payload = c.payload;
+			payload.flip();
+			c.payload = null;
+			handle(key, c, payload);
+			// handle() may have closed the connection or paused reading it
+			if (!key.isValid() || (key.interestOps() & SelectionKey.OP_READ) == 0)
+				return;
+		}
+	}
+
+	// writes what the socket takes now and waits for OP_WRITE for the rest
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Connection c = (Connection) key.attachment();
+		while (!c.pending.isEmpty()) {
+			ByteBuffer head = c.pending.peek();
+			channel.write(head);
+			if (head.hasRemaining()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			c.pending.poll();
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	void close(SelectionKey key) {
+		if (!key.isValid())
+			return;
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (key.attachment() != null)
+			closed((Connection) key.attachment());
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : selector.keys())
+			close(key);
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// read and write state of one worker's connection
+	static class Connection {
+		final ByteBuffer header = ByteBuffer.allocate(Frames.HEADER_SIZE);
+		ByteBuffer payload;			// null between two frames
+		ByteBuffer buffer;			// reused by the payloads of this connection
+		byte type;
+		long received;
+		long lastPush;				// version the pulls of this connection must see, see ParameterServer
+		int waitingPulls;
+		int worker = -1;			// index in the clock table, see ParameterServer.setStaleness()
+		boolean parked;				// a push waits for room in the update queue, see ParameterServer
+		final Deque<ByteBuffer> pending = new ArrayDeque<>();
+	}
+}
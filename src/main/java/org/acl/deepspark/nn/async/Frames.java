@@ -0,0 +1,75 @@
+package org.acl.deepspark.nn.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Parameter server messages on a long-lived connection: a 4-byte payload length, a 1-byte type and
+ * the payload. Requests on one connection are answered in order. Versions in payloads are longs in
+ * little-endian, like WeightCodec; -1 pulls every layer.
+ */
+class Frames {
+	static final int HEADER_SIZE = 5;
+	// largest payload accepted, a corrupt length must not allocate the heap away
+	static final int MAX_PAYLOAD = 1 << 30;
+
+	static final byte PUSH = 1;				// client: a Java-serialized CompressedDelta to apply, not answered
+	static final byte PULL = 2;				// client: the version last pulled or empty, answered by WEIGHTS or HALF_WEIGHTS
+	static final byte WEIGHTS = 3;			// server: the version, then the layers changed since the pulled version, see WeightCodec
+	static final byte PUSH_WEIGHTS = 4;		// client: a Weight[] delta to apply, see WeightCodec; not answered
+	static final byte HALF_WEIGHTS = 5;		// server: the version, then all weights as Java-serialized HalfWeights
+	static final byte PUSH_SHARD = 6;		// client: the delta of one shard, see ShardServer; not answered
+	static final byte SHARD = 7;			// server: the weights of one shard, answers PULL to a ShardServer
+	static final byte PUSH_PULL = 8;		// client: the version last pulled, then a PUSH_WEIGHTS delta; answered like a PULL
+	static final byte CLOCK = 9;			// client: worker and clock as ints; answered by CLOCK with the slowest clock, see ParameterServer.setStaleness()
+
+	static final int DONE = Integer.MAX_VALUE;		// clock of a worker that has finished
+
+	static void write(DataOutputStream out, byte type, byte[] payload) throws IOException {
+		write(out, type, ByteBuffer.wrap(payload));
+	}
+
+	// writes the remaining bytes of payload, which must be backed by an array
+	static void write(DataOutputStream out, byte type, ByteBuffer payload) throws IOException {
+		out.writeInt(payload.remaining());
+		out.writeByte(type);
+		out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+		out.flush();
+	}
+
+	// a frame with its header in front of the payload, to be written as is
+	static ByteBuffer frame(byte type, int length) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+		frame.putInt(length).put(type);
+		return frame;
+	}
+
+	static void checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_PAYLOAD)
+			throw new IOException(String.format("Invalid frame length; %d", length));
+	}
+
+	static byte[] serialize(Object message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+			os.writeObject(message);
+		}
+		return bytes.toByteArray();
+	}
+
+	// reads the remaining bytes of payload, which must be backed by an array
+	static Object deserialize(ByteBuffer payload) throws IOException {
+		try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(
+				payload.array(), payload.arrayOffset() + payload.position(), payload.remaining()))) {
+			return is.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown message class", e);
+		}
+	}
+}
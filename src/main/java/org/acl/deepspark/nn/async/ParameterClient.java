@@ -1,30 +1,209 @@
 package org.acl.deepspark.nn.async;
 
+import org.acl.deepspark.data.CompressedDelta;
+import org.acl.deepspark.data.HalfWeights;
 import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightCodec;
+import org.acl.deepspark.nn.metrics.Tracer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
-public class ParameterClient {
-	public static void sendDelta(String host, int port, Weight[] d) throws IOException, ClassNotFoundException {
-		Socket s = new Socket(host, port);
+/**
+ * One long-lived connection to a {@link ParameterServer}. Pushes are not answered, and a pull after a
+ * push on the same connection sees that push applied. Pulls into the same tensors send the version
+ * pulled last, and the server leaves out the layers that have not changed since. Not thread-safe; use
+ * one client per worker.
+ */
+public class ParameterClient implements Closeable {
+	// longest wait for slower workers in clock(); a worker that fails closes its connection and releases the others
+	private static final int CLOCK_TIMEOUT_MS = 600000;
+
+	private final Socket s;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private ByteBuffer sendBuffer;
+	private ByteBuffer receiveBuffer = ByteBuffer.allocate(0);
+	private final ByteBuffer requestBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+	private long version = -1;		// of the weights the last pull wrote into lastDest
+	private Weight[] lastDest;
+
+	public ParameterClient(String host, int port) throws IOException {
+		s = new Socket(host, port);
 		s.setSoTimeout(15000);
-		ObjectOutputStream os = new ObjectOutputStream(new GZIPOutputStream(s.getOutputStream()));
-		os.writeObject(d);
-		s.close();
+		s.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+		in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
 	}
-	
-	public static Weight[] getWeights(String host, int port) throws IOException, ClassNotFoundException {
-		Socket s = new Socket(host, port);
-		s.setSoTimeout(15000);
-		ObjectInputStream os = new ObjectInputStream(new GZIPInputStream(s.getInputStream()));
-		Weight[] w = (Weight[]) os.readObject();
-		s.close();
-		
+
+	// layers without a gradient are null, see WeightCodec
+	public void sendDelta(Weight[] d) throws IOException {
+		long start = Tracer.begin();
+		sendBuffer = WeightCodec.encode(d, sendBuffer);
+		Frames.write(out, Frames.PUSH_WEIGHTS, sendBuffer);
+		Tracer.end("rpc", "sendDelta", -1, sendBuffer.limit(), start);
+	}
+
+	// delta encoded by a GradientCompressor, laid out by the trainable weights of the server's net
+	public void sendDelta(CompressedDelta d) throws IOException {
+		long start = Tracer.begin();
+		byte[] payload = Frames.serialize(d);
+		Frames.write(out, Frames.PUSH, payload);
+		Tracer.end("rpc", "sendDelta", -1, payload.length, start);
+	}
+
+	// pushes d and overwrites dest like getWeights(dest) once d is applied, in one request
+	public void pushAndPull(Weight[] d, Weight[] dest) throws IOException {
+		long start = Tracer.begin();
+		int size = 8 + WeightCodec.encodedSize(d);
+		if (sendBuffer == null || sendBuffer.capacity() < size)
+			sendBuffer = ByteBuffer.allocate(size);
+		sendBuffer.clear();
+		sendBuffer.order(ByteOrder.LITTLE_ENDIAN).putLong(seen(dest));
+		WeightCodec.write(d, sendBuffer);
+		sendBuffer.flip();
+		send(Frames.PUSH_PULL, sendBuffer);
+		readInto(receive(Frames.WEIGHTS, Frames.HALF_WEIGHTS), dest);
+		Tracer.end("rpc", "pushAndPull", -1, sendBuffer.limit() + receiveBuffer.limit(), start);
+	}
+
+	// trainable weights of the server's net, null for layers without trainable weights
+	public Weight[] getWeights() throws IOException {
+		long start = Tracer.begin();
+		byte type = pull(-1);
+		readVersion();
+		Weight[] w;
+		try {
+			w = type == Frames.WEIGHTS ? WeightCodec.decode(receiveBuffer)
+					: ((HalfWeights) Frames.deserialize(receiveBuffer)).toWeights();
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			throw new IOException("Malformed weights", e);
+		}
+		Tracer.end("rpc", "getWeights", -1, receiveBuffer.limit(), start);
+
 		return w;
 	}
+
+	/*
+	 * Overwrites the tensors of dest, shaped like the trainable weights of the server's net, in place.
+	 * If dest holds the tensors of the previous pull, only the layers changed since are transferred.
+	 */
+	public void getWeights(Weight[] dest) throws IOException {
+		long start = Tracer.begin();
+		readInto(pull(seen(dest)), dest);
+		Tracer.end("rpc", "getWeights", -1, receiveBuffer.limit(), start);
+	}
+
+	/*
+	 * Reports that worker has pushed clock iterations and waits until the slowest worker is within the
+	 * server's staleness bound, see ParameterServer.setStaleness(). Returns the clock of the slowest.
+	 */
+	public int clock(int worker, int clock) throws IOException {
+		long start = Tracer.begin();
+		requestBuffer.clear();
+		requestBuffer.putInt(worker).putInt(clock).flip();
+		send(Frames.CLOCK, requestBuffer);
+		int timeout = s.getSoTimeout();
+		s.setSoTimeout(CLOCK_TIMEOUT_MS);
+		try {
+			receive(Frames.CLOCK);
+		} finally {
+			s.setSoTimeout(timeout);
+		}
+		if (receiveBuffer.remaining() != 4)
+			throw new IOException(String.format("Malformed clock; %d bytes", receiveBuffer.remaining()));
+		int slowest = receiveBuffer.order(ByteOrder.LITTLE_ENDIAN).getInt();
+		Tracer.end("rpc", "clock", start);
+		return slowest;
+	}
+
+	// worker has pushed its last iteration and no longer holds the others back
+	public void finish(int worker) throws IOException {
+		clock(worker, Frames.DONE);
+	}
+
+	// server version of the weights last pulled into tensors, -1 before the first
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public void close() throws IOException {
+		s.close();
+	}
+
+	// sends a PULL of the layers changed since seen and reads the answer; returns its type
+	private byte pull(long seen) throws IOException {
+		requestBuffer.clear();
+		requestBuffer.putLong(seen).flip();
+		send(Frames.PULL, requestBuffer);
+		return receive(Frames.WEIGHTS, Frames.HALF_WEIGHTS);
+	}
+
+	// reads the received answer to a pull into dest and remembers its version
+	private void readInto(byte type, Weight[] dest) throws IOException {
+		lastDest = null;
+		long pulled = readVersion();
+		try {
+			if (type == Frames.WEIGHTS)
+				WeightCodec.decodeChanged(receiveBuffer, dest);
+			else
+				((HalfWeights) Frames.deserialize(receiveBuffer)).copyInto(dest);
+			version = pulled;
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			throw new IOException("Pulled weights do not match", e);
+		}
+		lastDest = dest.clone();
+	}
+
+	private long readVersion() throws IOException {
+		if (receiveBuffer.remaining() < 8)
+			throw new IOException(String.format("Weights without a version; %d bytes", receiveBuffer.remaining()));
+		return receiveBuffer.order(ByteOrder.LITTLE_ENDIAN).getLong();
+	}
+
+	// version last pulled into dest, -1 unless dest holds the tensors the last pull wrote
+	private long seen(Weight[] dest) {
+		if (lastDest == null || lastDest.length != dest.length)
+			return -1;
+		for (int i = 0; i < dest.length; i++) {
+			if (lastDest[i] != dest[i])
+				return -1;
+		}
+		return version;
+	}
+
+	void send(byte type, ByteBuffer payload) throws IOException {
+		Frames.write(out, type, payload);
+	}
+
+	// reads the next answer into receiveBuffer, which is ready to read; returns its type
+	byte receive(byte... expected) throws IOException {
+		int length = in.readInt();
+		byte type = in.readByte();
+		Frames.checkLength(length);
+		boolean known = false;
+		for (byte e : expected)
+			known |= e == type;
+		if (!known)
+			throw new IOException(String.format("Unexpected frame; type %d", type));
+		if (receiveBuffer.capacity() < length)
+			receiveBuffer = ByteBuffer.allocate(length);
+		receiveBuffer.clear();
+		in.readFully(receiveBuffer.array(), 0, length);
+		receiveBuffer.limit(length);
+		return type;
+	}
+
+	ByteBuffer getReceiveBuffer() {
+		return receiveBuffer;
+	}
 }
@@ -1,93 +1,492 @@
 package org.acl.deepspark.nn.async;
 
+import org.acl.deepspark.data.CompressedDelta;
+import org.acl.deepspark.data.HalfWeights;
 import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightCodec;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.nn.driver.CheckpointWriter;
 import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+import org.acl.deepspark.nn.metrics.Tracer;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-
-public class ParameterServer {
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Serves pushes and pulls of all workers on one port, see {@link Frames}. The selector thread only
+ * reads frames, decodes deltas and answers pulls; an updater thread applies the deltas in arrival
+ * order, so no lock is needed around the net. After every run of queued deltas the updater encodes
+ * the weights once and publishes them as an immutable snapshot, which the selector thread hands to
+ * every pull, so pulls never wait for an update and updates never wait for a slow reader.
+ *
+ * A pull is answered by the first snapshot that includes every push sent before it on the same
+ * connection; until that is published it waits while the other connections are served. It carries
+ * the version the worker pulled last and gets only the layers updated since; a PUSH_PULL pushes a
+ * delta and pulls in one request.
+ *
+ * When MAX_QUEUED deltas wait for the updater, a further push is parked and its connection is not read
+ * until the updater has made room; the other connections are still served.
+ *
+ * With a staleness bound every worker reports its clock, the iterations it has pushed, and waits until
+ * it is at most that many iterations ahead of the slowest worker, see {@link #setStaleness}.
+ */
+public class ParameterServer extends FrameServer {
+	// deltas decoded but not yet applied; pushes beyond that are parked
+	private static final int MAX_QUEUED = 64;
+
 	private NeuralNet p;
-	private int listenPort;
-	private int castPort;
-	private ServerSocket updateSocket;
-	private ServerSocket castSocket;
-	
-	private boolean stopSign = false;
-	private final Object lock = new Object();
-	
-	private Thread[] threads;
-	
-	public ParameterServer(NeuralNet net, int minibatch, int[] port) {
+	private int minibatch;
+
+	private TrainingMonitor monitor;
+	private CheckpointWriter checkpoints;
+	private int dataSize;
+	private int updates;
+	private long lastUpdate;
+	private WeightLayout layout;
+	private boolean halfPrecision;
+
+	private final BlockingQueue<Update> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+	private final ConcurrentLinkedQueue<Weight[]> spareDeltas = new ConcurrentLinkedQueue<>();	// decode buffers of PUSH_WEIGHTS
+	private volatile Snapshot snapshot;
+	private long pushes;				// deltas queued by the selector thread
+	private final Deque<Pull> waiting = new ArrayDeque<>();		// pulls of unpublished pushes, in arrival order
+	private final Deque<Parked> parked = new ArrayDeque<>();		// pushes the full queue did not take, in arrival order
+	private Thread updater;
+	private volatile Throwable failure;
+	private long[] layerVersions;		// version that last updated every layer, on the updater thread
+	private int staleness = -1;
+	private int[] clocks;				// per worker, on the selector thread
+	private final Deque<Clock> waitingClocks = new ArrayDeque<>();
+
+	public ParameterServer(NeuralNet net, int minibatch, int port) {
+		super(port, "parameter-server");
 		p = net;
-		listenPort = port[0];
-		castPort = port[1];
-		threads = new Thread[2];
+		this.minibatch = minibatch;
 	}
-	
-	public void stopServer() {
-		stopSign = true;
-		try {
-			updateSocket.close();
-			castSocket.close();
-			threads[0].join();
-			threads[1].join();
-		} catch (IOException | InterruptedException e) {
-			e.printStackTrace();
-		}
+
+	// pushes and pulls share port[0]; a second port is no longer used
+	public ParameterServer(NeuralNet net, int minibatch, int[] port) {
+		this(net, minibatch, port[0]);
+	}
+
+	// reports every applied delta as one iteration; the loss is computed on the workers and is not known here
+	public void setMonitor(TrainingMonitor monitor, int dataSize) {
+		this.monitor = monitor;
+		this.dataSize = dataSize;
 	}
-	
+
+	// snapshots are taken by the updater thread, between two applied deltas
+	public void setCheckpointWriter(CheckpointWriter checkpoints) {
+		this.checkpoints = checkpoints;
+	}
+
+	// serves the trainable weights in fp16 instead of float Weight[], see HalfWeights
+	public void setHalfPrecisionWeights(boolean halfPrecision) {
+		this.halfPrecision = halfPrecision;
+	}
+
+	/*
+	 * Stale synchronous parallel: a worker at clock c waits in ParameterClient.clock() until every one
+	 * of workers, indexed from 0, has reached c - staleness or finished. Its next pull then includes
+	 * every push the server had received when it was let go. Staleness 0 runs the workers in lock step.
+	 * All workers must run at the same time, or the running ones wait for a worker that never starts.
+	 */
+	public void setStaleness(int staleness, int workers) {
+		if (staleness < 0 || workers < 1)
+			throw new IllegalArgumentException(String.format
+					("Staleness must be non-negative and workers positive; staleness %d, workers %d", staleness, workers));
+		this.staleness = staleness;
+		this.clocks = new int[workers];
+	}
+
+	@Override
 	public void startServer() throws IOException {
-		updateSocket = new ServerSocket(listenPort);
-		updateSocket.setSoTimeout(15000);
-		castSocket = new ServerSocket(castPort);
-		castSocket.setSoTimeout(15000);
-		
-		// update socket
-		threads[0] = new Thread(new Runnable() {
-			
+		lastUpdate = System.nanoTime();
+		Weight[] weights = p.getTrainableWeights();
+		layout = new WeightLayout(weights);
+		layerVersions = new long[weights.length];
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] != null)
+				weights[i] = weights[i].dup();
+		}
+		snapshot = new Snapshot(encodeWeights(weights, 0), 0, layerVersions.clone(), weights);
+		updater = new Thread(new Runnable() {
+
 			@Override
 			public void run() {
-				while(!stopSign) {
-					try {
-						Socket a = castSocket.accept();
-						synchronized (lock) {
-							ObjectOutputStream os = new ObjectOutputStream(new GZIPOutputStream(a.getOutputStream()));
-							os.writeObject(p.getWeights());
-						}
-						a.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+				try {
+					update();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Throwable e) {
+					fail(e);
 				}
 			}
-		});
-		threads[0].start();
-		
-		threads[1] = new Thread(new Runnable() {
-			
-			@Override
-			public void run() {
-				// TODO Auto-generated method stub
-				while(!stopSign) {
-					try {
-						Socket a = updateSocket.accept();
-						synchronized (lock) {
-							ObjectInputStream is = new ObjectInputStream(new GZIPInputStream(a.getInputStream()));
-							p.updateWeight((Weight[]) is.readObject());
-						}
-						a.close();
-					} catch (IOException | ClassNotFoundException e) {
-						e.printStackTrace();
+		}, "parameter-server-updater");
+		updater.start();
+		super.startServer();
+	}
+
+	// stops serving, then applies the deltas already received; throws if the updater failed meanwhile
+	@Override
+	public void stopServer() {
+		super.stopServer();
+		try {
+			if (failure == null) {
+				for (Parked push : parked)
+					queue.put(push.update);
+				parked.clear();
+				queue.put(Update.STOP);
+			}
+			updater.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		if (failure != null)
+			throw new IllegalStateException("Parameter server updater failed", failure);
+	}
+
+	// the cause that stopped the updater, null while it runs
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	// no delta would be applied any more: closing every connection fails the workers instead of leaving them waiting
+	private void fail(Throwable e) {
+		failure = e;
+		e.printStackTrace();
+		super.stopServer();
+	}
+
+	@Override
+	void handle(SelectionKey key, Connection c, ByteBuffer payload) throws IOException {
+		switch (c.type) {
+			case Frames.PUSH:
+			case Frames.PUSH_WEIGHTS:
+				push(key, c, payload);
+				break;
+			case Frames.PULL:
+				pull(key, c, payload.remaining() > 0 ? readVersion(payload) : -1);
+				break;
+			case Frames.PUSH_PULL:
+				long seen = readVersion(payload);
+				push(key, c, payload);
+				pull(key, c, seen);
+				break;
+			case Frames.CLOCK:
+				clock(key, c, payload);
+				break;
+			default:
+				throw new IOException(String.format("Unexpected frame; type %d", c.type));
+		}
+	}
+
+	private void push(SelectionKey key, Connection c, ByteBuffer payload) throws IOException {
+		boolean dense = c.type != Frames.PUSH;
+		Weight[] delta = dense ? decodeWeights(payload) : decode(payload);
+		long read = System.nanoTime();
+		Tracer.record("rpc", "receiveDelta", -1, c.received, read);
+		Update update = new Update(delta, dense, c.received, read);
+		if (parked.isEmpty() && queue.offer(update)) {
+			c.lastPush = ++pushes;
+		} else {
+			// behind the pushes parked before; the connection is read again once it is queued, see woken()
+			parked.add(new Parked(key, update));
+			c.parked = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	private void pull(SelectionKey key, Connection c, long seen) throws IOException {
+		long start = Tracer.begin();
+		Snapshot current = snapshot;
+		if (c.waitingPulls == 0 && !c.parked && current.version >= c.lastPush) {
+			reply(key, answer(current, seen));
+		} else {
+			c.waitingPulls++;
+			waiting.add(new Pull(key, seen));
+		}
+		Tracer.end("rpc", "serveWeights", start);
+	}
+
+	private void clock(SelectionKey key, Connection c, ByteBuffer payload) throws IOException {
+		if (clocks == null)
+			throw new IOException("Clock without a staleness bound");
+		if (payload.remaining() != 8)
+			throw new IOException(String.format("Malformed clock; %d bytes", payload.remaining()));
+		payload.order(ByteOrder.LITTLE_ENDIAN);
+		int worker = payload.getInt();
+		int clock = payload.getInt();
+		if (worker < 0 || worker >= clocks.length || clock < 0)
+			throw new IOException(String.format("Invalid clock; worker %d, clock %d, workers %d", worker, clock, clocks.length));
+		c.worker = worker;
+		clocks[worker] = clock;
+		waitingClocks.add(new Clock(key, clock));
+		releaseClocks();
+	}
+
+	// answers the waiting clocks within the staleness bound of the slowest worker
+	private void releaseClocks() {
+		int slowest = Frames.DONE;
+		for (int clock : clocks)
+			slowest = Math.min(slowest, clock);
+		List<SelectionKey> broken = new ArrayList<>();
+		Iterator<Clock> waits = waitingClocks.iterator();
+		while (waits.hasNext()) {
+			Clock wait = waits.next();
+			if (wait.key.isValid() && (long) wait.clock - staleness > slowest)
+				continue;
+			waits.remove();
+			if (!wait.key.isValid())
+				continue;
+			// the next pull of this worker waits for the pushes of the others received so far
+			((Connection) wait.key.attachment()).lastPush = pushes;
+			ByteBuffer frame = Frames.frame(Frames.CLOCK, 4);
+			frame.order(ByteOrder.LITTLE_ENDIAN).putInt(slowest).flip();
+			try {
+				reply(wait.key, frame);
+			} catch (IOException e) {
+				e.printStackTrace();
+				broken.add(wait.key);
+			}
+		}
+		// after the loop, closing releases the clocks again
+		for (SelectionKey key : broken)
+			close(key);
+	}
+
+	// a worker that is gone no longer holds the others back
+	@Override
+	void closed(Connection c) {
+		if (clocks != null && c.worker >= 0) {
+			clocks[c.worker] = Frames.DONE;
+			releaseClocks();
+		}
+	}
+
+	// queues the parked pushes the updater has made room for, then answers the waiting pulls whose
+	// pushes the latest snapshot includes
+	@Override
+	void woken() {
+		while (!parked.isEmpty() && queue.offer(parked.peek().update)) {
+			SelectionKey key = parked.poll().key;
+			Connection c = (Connection) key.attachment();
+			c.lastPush = ++pushes;
+			c.parked = false;
+			if (key.isValid())
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+
+		Snapshot current = snapshot;
+		Iterator<Pull> pulls = waiting.iterator();
+		while (pulls.hasNext()) {
+			Pull pull = pulls.next();
+			Connection c = (Connection) pull.key.attachment();
+			if (pull.key.isValid() && (c.parked || current.version < c.lastPush))
+				continue;
+			pulls.remove();
+			c.waitingPulls--;
+			if (!pull.key.isValid())
+				continue;
+			try {
+				reply(pull.key, answer(current, pull.seen));
+			} catch (IOException e) {
+				e.printStackTrace();
+				close(pull.key);
+			}
+		}
+	}
+
+	// the layers of the snapshot updated after version seen; the shared frame if that is all of them
+	private ByteBuffer answer(Snapshot current, long seen) throws IOException {
+		if (halfPrecision)
+			return ByteBuffer.wrap(current.frame);
+		Weight[] changed = new Weight[current.weights.length];
+		boolean all = true;
+		for (int i = 0; i < changed.length; i++) {
+			if (current.weights[i] != null && current.layerVersions[i] > seen)
+				changed[i] = current.weights[i];
+			else
+				all &= current.weights[i] == null;
+		}
+		return ByteBuffer.wrap(all ? current.frame : encodeWeights(changed, current.version));
+	}
+
+	// applies every queued delta, then publishes the weights once
+	private void update() throws InterruptedException, IOException {
+		boolean stopping = false;
+		boolean[] touched = new boolean[layerVersions.length];
+		while (!stopping) {
+			Update update = queue.take();
+			do {
+				if (update == Update.STOP) {
+					stopping = true;
+					break;
+				}
+				p.updateWeight(update.delta);
+				report(update.received, update.read);
+				for (int i = 0; i < touched.length; i++) {
+					if (update.delta[i] != null) {
+						layerVersions[i] = updates;
+						touched[i] = true;
 					}
 				}
-			}
-		});
-		threads[1].start();	
+				if (update.dense)
+					spareDeltas.offer(update.delta);
+			} while ((update = queue.poll()) != null);
+
+			long start = Tracer.begin();
+			publish(touched);
+			Arrays.fill(touched, false);
+			Tracer.end("update", "publishWeights", start);
+			wakeup();
+		}
+	}
+
+	// copies the touched layers, the snapshot shares the others with the previous one
+	private void publish(boolean[] touched) throws IOException {
+		Weight[] current = p.getTrainableWeights();
+		Weight[] weights = snapshot.weights.clone();
+		for (int i = 0; i < weights.length; i++) {
+			if (touched[i])
+				weights[i] = current[i].dup();
+		}
+		snapshot = new Snapshot(encodeWeights(weights, updates), updates, layerVersions.clone(), weights);
+	}
+
+	// trainable weights only, the pooling masks are scratch space of every worker
+	private byte[] encodeWeights(Weight[] weights, long version) throws IOException {
+		ByteBuffer frame;
+		if (halfPrecision) {
+			byte[] payload = Frames.serialize(new HalfWeights(weights));
+			frame = Frames.frame(Frames.HALF_WEIGHTS, 8 + payload.length);
+			frame.order(ByteOrder.LITTLE_ENDIAN).putLong(version).put(payload);
+		} else {
+			frame = Frames.frame(Frames.WEIGHTS, 8 + WeightCodec.encodedSize(weights));
+			frame.order(ByteOrder.LITTLE_ENDIAN).putLong(version);
+			WeightCodec.write(weights, frame);
+		}
+		return frame.array();
+	}
+
+	private static long readVersion(ByteBuffer payload) throws IOException {
+		if (payload.remaining() < 8)
+			throw new IOException(String.format("Pull without a version; %d bytes", payload.remaining()));
+		return payload.order(ByteOrder.LITTLE_ENDIAN).getLong();
+	}
+
+	// decoded into a spare buffer, which the updater gives back once the delta is applied
+	private Weight[] decodeWeights(ByteBuffer payload) throws IOException {
+		Weight[] delta = spareDeltas.poll();
+		if (delta == null)
+			delta = layout.unflatten(new float[layout.size()], 0);
+		try {
+			WeightCodec.decodeInto(payload, delta);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			spareDeltas.offer(delta);
+			throw new IOException("Malformed delta", e);
+		}
+		return delta;
+	}
+
+	// a CompressedDelta laid out by the trainable weights
+	private Weight[] decode(ByteBuffer payload) throws IOException {
+		Object message = Frames.deserialize(payload);
+		if (!(message instanceof CompressedDelta))
+			throw new IOException("Unexpected message " + message.getClass().getName());
+
+		CompressedDelta compressed = (CompressedDelta) message;
+		if (compressed.size() != layout.size())
+			throw new IOException(String.format
+					("Delta size mismatch; layout %d, delta %d", layout.size(), compressed.size()));
+		float[] flat = new float[layout.size()];
+		compressed.addTo(flat, 0);
+		return layout.unflatten(flat, 0);
+	}
+
+	private void report(long received, long read) {
+		long now = System.nanoTime();
+		updates++;
+		if (monitor != null) {
+			int epoch = (int) ((long) (updates - 1) * minibatch / Math.max(dataSize, 1)) + 1;
+			monitor.iteration(updates, epoch, minibatch, Double.NaN, now - lastUpdate, read - received, now - read);
+		}
+		lastUpdate = now;
+		if (checkpoints != null)
+			checkpoints.maybeSnapshot(p, updates);
+	}
+
+	// weights once version deltas were applied, never changed after publishing
+	private static class Snapshot {
+		final byte[] frame;				// all layers
+		final long version;
+		final long[] layerVersions;
+		final Weight[] weights;
+
+		Snapshot(byte[] frame, long version, long[] layerVersions, Weight[] weights) {
+			this.frame = frame;
+			this.version = version;
+			this.layerVersions = layerVersions;
+			this.weights = weights;
+		}
+	}
+
+	private static class Clock {
+		final SelectionKey key;
+		final int clock;
+
+		Clock(SelectionKey key, int clock) {
+			this.key = key;
+			this.clock = clock;
+		}
+	}
+
+	private static class Pull {
+		final SelectionKey key;
+		final long seen;
+
+		Pull(SelectionKey key, long seen) {
+			this.key = key;
+			this.seen = seen;
+		}
+	}
+
+	private static class Parked {
+		final SelectionKey key;
+		final Update update;
+
+		Parked(SelectionKey key, Update update) {
+			this.key = key;
+			this.update = update;
+		}
+	}
+
+	private static class Update {
+		static final Update STOP = new Update(null, false, 0, 0);
+
+		final Weight[] delta;
+		final boolean dense;		// a spare buffer of decodeWeights()
+		final long received;
+		final long read;
+
+		Update(Weight[] delta, boolean dense, long received, long read) {
+			this.delta = delta;
+			this.dense = dense;
+			this.received = received;
+			this.read = read;
+		}
 	}
 }
@@ -0,0 +1,220 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.nn.metrics.Tracer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One member of a ring of workers that sum a float array in place, each sending to the next rank and
+ * receiving from the previous one. The array is cut into one chunk per rank; a reduce-scatter leaves
+ * every rank with the total of one chunk and an all-gather passes the totals around, so every rank
+ * sends and receives 2 * (size - 1) / size of the array whatever the number of ranks.
+ *
+ * Members find each other through a {@link RingRendezvous}; all of them have to be running at the
+ * same time, and every rank calls {@link #allReduce} with arrays of the same length.
+ */
+public class RingAllReduce {
+	// generous, a peer may still be computing its gradient when this rank starts waiting for it
+	static final int TIMEOUT_MS = 300000;
+
+	private final int rank;
+	private final int size;
+	private Socket control;
+	private Socket next;
+	private Socket previous;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private DataOutputStream reports;
+	private final ExecutorService sender;
+	private byte[] sendBuffer = new byte[0];
+	private byte[] receiveBuffer = new byte[0];
+	private float[] received = new float[0];
+
+	private RingAllReduce(int rank, int size) {
+		this.rank = rank;
+		this.size = size;
+		this.sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ring-sender");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// registers rank with the rendezvous on host:port and connects to its neighbours
+	public static RingAllReduce join(String host, int port, int rank, int size) throws IOException {
+		if (rank < 0 || rank >= size)
+			throw new IllegalArgumentException(String.format("Rank out of range; rank %d, size %d", rank, size));
+
+		RingAllReduce ring = new RingAllReduce(rank, size);
+		try {
+			ring.connect(host, port);
+		} catch (IOException e) {
+			ring.close();
+			throw e;
+		}
+		return ring;
+	}
+
+	private void connect(String host, int port) throws IOException {
+		long start = Tracer.begin();
+		try (ServerSocket listener = new ServerSocket(0)) {
+			listener.setSoTimeout(TIMEOUT_MS);
+			control = new Socket(host, port);
+			control.setSoTimeout(TIMEOUT_MS);
+			control.setTcpNoDelay(true);
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(control.getOutputStream()));
+			// peers reach this rank through the interface it reaches the driver with
+			os.writeInt(rank);
+			os.writeInt(size);
+			os.writeUTF(control.getLocalAddress().getHostAddress());
+			os.writeInt(listener.getLocalPort());
+			os.flush();
+
+			DataInputStream is = new DataInputStream(new BufferedInputStream(control.getInputStream()));
+			String[] hosts = new String[size];
+			int[] ports = new int[size];
+			for (int r = 0; r < size; r++) {
+				hosts[r] = is.readUTF();
+				ports[r] = is.readInt();
+			}
+			if (rank == 0)
+				reports = os;
+			else
+				closeQuietly(control);
+
+			if (size > 1) {
+				int to = (rank + 1) % size;
+				next = new Socket();
+				next.connect(new InetSocketAddress(hosts[to], ports[to]), TIMEOUT_MS);
+				next.setTcpNoDelay(true);
+				previous = listener.accept();
+				previous.setSoTimeout(TIMEOUT_MS);
+				out = new DataOutputStream(new BufferedOutputStream(next.getOutputStream(), 1 << 16));
+				in = new DataInputStream(new BufferedInputStream(previous.getInputStream(), 1 << 16));
+			}
+		}
+		Tracer.end("rpc", "ringJoin", rank, start);
+	}
+
+	public int getRank() {
+		return rank;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	// replaces data by the element-wise sum of the arrays of all ranks
+	public void allReduce(float[] data) throws IOException {
+		if (size == 1)
+			return;
+		long start = Tracer.begin();
+		// reduce-scatter: after size - 1 steps rank r holds the total of chunk r + 1
+		for (int s = 0; s < size - 1; s++)
+			exchange(data, chunk(rank - s), chunk(rank - s - 1), true);
+		// all-gather: the totals travel once around the ring
+		for (int s = 0; s < size - 1; s++)
+			exchange(data, chunk(rank - s + 1), chunk(rank - s), false);
+		Tracer.end("rpc", "allReduce", rank, start);
+	}
+
+	// progress of the ring, forwarded to the rendezvous listener by rank 0 and ignored on other ranks
+	public void report(int iteration, int samples, double loss, long stepNanos, long commNanos) throws IOException {
+		if (reports == null)
+			return;
+		reports.writeInt(iteration);
+		reports.writeInt(samples);
+		reports.writeDouble(loss);
+		reports.writeLong(stepNanos);
+		reports.writeLong(commNanos);
+		reports.flush();
+	}
+
+	public void close() {
+		sender.shutdownNow();
+		closeQuietly(next);
+		closeQuietly(previous);
+		closeQuietly(control);
+	}
+
+	private int chunk(int c) {
+		return ((c % size) + size) % size;
+	}
+
+	private int chunkStart(int length, int c) {
+		return (int) ((long) length * c / size);
+	}
+
+	// sends chunk send to the next rank while receiving chunk receive from the previous one
+	private void exchange(final float[] data, int send, int receive, boolean add) throws IOException {
+		final int sendFrom = chunkStart(data.length, send);
+		final int sendLength = chunkStart(data.length, send + 1) - sendFrom;
+		int receiveFrom = chunkStart(data.length, receive);
+		int receiveLength = chunkStart(data.length, receive + 1) - receiveFrom;
+		if (sendBuffer.length < 4 * sendLength)
+			sendBuffer = new byte[4 * sendLength];
+		if (receiveBuffer.length < 4 * receiveLength) {
+			receiveBuffer = new byte[4 * receiveLength];
+			received = new float[receiveLength];
+		}
+
+		// sent from another thread, both neighbours may be blocked writing a chunk larger than the socket buffers
+		Future<Void> sent = sender.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				ByteBuffer.wrap(sendBuffer).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().put(data, sendFrom, sendLength);
+				out.write(sendBuffer, 0, 4 * sendLength);
+				out.flush();
+				return null;
+			}
+		});
+
+		in.readFully(receiveBuffer, 0, 4 * receiveLength);
+		FloatBuffer floats = ByteBuffer.wrap(receiveBuffer).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		if (add) {
+			floats.get(received, 0, receiveLength);
+			for (int i = 0; i < receiveLength; i++)
+				data[receiveFrom + i] += received[i];
+		} else {
+			floats.get(data, receiveFrom, receiveLength);
+		}
+
+		try {
+			sent.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sending to the next rank", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to send to the next rank", e.getCause());
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		if (socket == null)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already broken, nothing left to release
+		}
+	}
+}
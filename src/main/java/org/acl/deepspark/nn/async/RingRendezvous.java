@@ -0,0 +1,118 @@
+package org.acl.deepspark.nn.async;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Driver side of a {@link RingAllReduce}: waits until all ranks have registered their address and
+ * hands every rank the addresses of the whole ring. Afterwards it only reads the progress rank 0
+ * reports; gradients never pass through the driver.
+ */
+public class RingRendezvous {
+	public interface Listener {
+		void onReport(int iteration, int samples, double loss, long stepNanos, long commNanos);
+	}
+
+	private final int port;
+	private final int size;
+	private final Listener listener;
+	private ServerSocket serverSocket;
+	private Thread thread;
+	private volatile IOException failure;
+	private volatile boolean stopped;
+
+	// listener may be null if nobody follows the progress
+	public RingRendezvous(int port, int size, Listener listener) {
+		if (size < 1)
+			throw new IllegalArgumentException(String.format("Ring size must be positive; size %d", size));
+		this.port = port;
+		this.size = size;
+		this.listener = listener;
+	}
+
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(port);
+		serverSocket.setSoTimeout(RingAllReduce.TIMEOUT_MS);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serve();
+				} catch (IOException e) {
+					if (!stopped)
+						failure = e;
+				}
+			}
+		}, "ring-rendezvous");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// waits for rank 0 to close its connection; rethrows what went wrong on the driver side before
+	public void stop() throws IOException, InterruptedException {
+		stopped = true;
+		serverSocket.close();
+		thread.join();
+		if (failure != null)
+			throw failure;
+	}
+
+	private void serve() throws IOException {
+		Socket[] members = new Socket[size];
+		try {
+			String[] hosts = new String[size];
+			int[] ports = new int[size];
+			for (int registered = 0; registered < size; registered++) {
+				Socket member = serverSocket.accept();
+				member.setSoTimeout(RingAllReduce.TIMEOUT_MS);
+				member.setTcpNoDelay(true);
+				DataInputStream is = new DataInputStream(new BufferedInputStream(member.getInputStream()));
+				int rank = is.readInt();
+				int ringSize = is.readInt();
+				if (ringSize != size || rank < 0 || rank >= size || members[rank] != null) {
+					member.close();
+					throw new IOException(String.format("Unexpected registration; rank %d of %d, ring of %d", rank, ringSize, size));
+				}
+				members[rank] = member;
+				hosts[rank] = is.readUTF();
+				ports[rank] = is.readInt();
+			}
+
+			for (Socket member : members) {
+				DataOutputStream os = new DataOutputStream(new BufferedOutputStream(member.getOutputStream()));
+				for (int r = 0; r < size; r++) {
+					os.writeUTF(hosts[r]);
+					os.writeInt(ports[r]);
+				}
+				os.flush();
+			}
+
+			DataInputStream reports = new DataInputStream(new BufferedInputStream(members[0].getInputStream()));
+			while (true) {
+				int iteration;
+				try {
+					iteration = reports.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				int samples = reports.readInt();
+				double loss = reports.readDouble();
+				long stepNanos = reports.readLong();
+				long commNanos = reports.readLong();
+				if (listener != null)
+					listener.onReport(iteration, samples, loss, stepNanos, commNanos);
+			}
+		} finally {
+			for (Socket member : members) {
+				if (member != null)
+					member.close();
+			}
+		}
+	}
+}
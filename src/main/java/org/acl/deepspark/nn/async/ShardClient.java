@@ -0,0 +1,83 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.nn.metrics.Tracer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * One long-lived connection to every {@link ShardServer} of a {@link ShardPlan}; shard s listens on
+ * port + s. Weights and deltas are flat arrays in the plan's layout. Every shard gets its request
+ * before any answer is read, so the servers work on one push or pull in parallel. Not thread-safe;
+ * use one client per worker.
+ */
+public class ShardClient implements Closeable {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final ShardPlan plan;
+	private final ParameterClient[] clients;
+	private final ByteBuffer[] sendBuffers;
+
+	public ShardClient(String host, int port, ShardPlan plan) throws IOException {
+		this.plan = plan;
+		this.clients = new ParameterClient[plan.getNumShards()];
+		this.sendBuffers = new ByteBuffer[plan.getNumShards()];
+		try {
+			for (int s = 0; s < clients.length; s++) {
+				clients[s] = new ParameterClient(host, port + s);
+				sendBuffers[s] = ByteBuffer.allocate(4 + 4 * plan.size(s)).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	// sends every shard its part of delta, laid out by the plan's layout
+	public void sendDelta(float[] delta) throws IOException {
+		long start = Tracer.begin();
+		for (int s = 0; s < clients.length; s++) {
+			ByteBuffer buffer = sendBuffers[s];
+			buffer.clear();
+			buffer.putInt(s);
+			plan.write(delta, s, buffer);
+			buffer.flip();
+			clients[s].send(Frames.PUSH_SHARD, buffer);
+		}
+		Tracer.end("rpc", "sendDelta", -1, 4L * plan.getLayout().size(), start);
+	}
+
+	// overwrites weights, laid out by the plan's layout, with the weights of all shards
+	public void getWeights(float[] weights) throws IOException {
+		long start = Tracer.begin();
+		for (ParameterClient client : clients)
+			client.send(Frames.PULL, EMPTY.duplicate());
+		for (int s = 0; s < clients.length; s++) {
+			clients[s].receive(Frames.SHARD);
+			ByteBuffer payload = clients[s].getReceiveBuffer().order(ByteOrder.LITTLE_ENDIAN);
+			int index = payload.remaining() >= 4 ? payload.getInt() : -1;
+			if (index != s || payload.remaining() != 4 * plan.size(s))
+				throw new IOException(String.format("Pulled weights do not match shard %d; shard %d, %d bytes",
+						s, index, payload.remaining()));
+			plan.read(payload, s, weights);
+		}
+		Tracer.end("rpc", "getWeights", -1, 4L * plan.getLayout().size(), start);
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (ParameterClient client : clients) {
+			try {
+				if (client != null)
+					client.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
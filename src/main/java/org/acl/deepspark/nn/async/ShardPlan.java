@@ -0,0 +1,172 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.data.WeightLayout;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Split of the trainable weights, flattened by a {@link WeightLayout}, across several parameter
+ * servers. Every layer is cut into its weight and its bias, and parts longer than the chunk size into
+ * chunks of at most that many floats. The ranges are dealt out largest first to the least loaded
+ * shard, so a shard holds a few whole layers or chunks of a large one.
+ *
+ * A shard keeps its ranges as one contiguous array, in the order of their offsets.
+ */
+public class ShardPlan implements Serializable {
+
+	private static final long serialVersionUID = 6412093457725148362L;
+
+	// floats per chunk, 256 KB
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+	private final WeightLayout layout;
+	private final int[][] offsets;		// per shard, offset of every range in the layout
+	private final int[][] lengths;
+	private final boolean[][] decayed;	// per shard, whether a range is a weight and takes weight decay
+	private final int[] sizes;
+
+	public ShardPlan(WeightLayout layout, int shards, int chunkSize) {
+		if (shards < 1)
+			throw new IllegalArgumentException(String.format("Number of shards must be positive; shards %d", shards));
+		if (chunkSize < 1)
+			throw new IllegalArgumentException(String.format("Chunk size must be positive; chunkSize %d", chunkSize));
+
+		List<int[]> ranges = new ArrayList<>();		// offset, length, 1 for weights
+		for (int i = 0; i < layout.getNumLayers(); i++) {
+			if (layout.isPresent(i)) {
+				int weights = lengthOf(layout.getWeightShape(i));
+				cut(ranges, layout.getOffset(i), weights, true, chunkSize);
+				cut(ranges, layout.getOffset(i) + weights, layout.getLength(i) - weights, false, chunkSize);
+			}
+		}
+		Collections.sort(ranges, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return a[1] != b[1] ? Integer.compare(b[1], a[1]) : Integer.compare(a[0], b[0]);
+			}
+		});
+
+		List<List<int[]>> assigned = new ArrayList<>();
+		for (int s = 0; s < shards; s++)
+			assigned.add(new ArrayList<int[]>());
+		this.sizes = new int[shards];
+		for (int[] range : ranges) {
+			int least = 0;
+			for (int s = 1; s < shards; s++) {
+				if (sizes[s] < sizes[least])
+					least = s;
+			}
+			assigned.get(least).add(range);
+			sizes[least] += range[1];
+		}
+
+		this.layout = layout;
+		this.offsets = new int[shards][];
+		this.lengths = new int[shards][];
+		this.decayed = new boolean[shards][];
+		for (int s = 0; s < shards; s++) {
+			List<int[]> shard = assigned.get(s);
+			Collections.sort(shard, new Comparator<int[]>() {
+				@Override
+				public int compare(int[] a, int[] b) {
+					return Integer.compare(a[0], b[0]);
+				}
+			});
+			offsets[s] = new int[shard.size()];
+			lengths[s] = new int[shard.size()];
+			decayed[s] = new boolean[shard.size()];
+			for (int r = 0; r < shard.size(); r++) {
+				offsets[s][r] = shard.get(r)[0];
+				lengths[s][r] = shard.get(r)[1];
+				decayed[s][r] = shard.get(r)[2] != 0;
+			}
+		}
+	}
+
+	public WeightLayout getLayout() {
+		return layout;
+	}
+
+	public int getNumShards() {
+		return sizes.length;
+	}
+
+	// floats held by shard
+	public int size(int shard) {
+		return sizes[shard];
+	}
+
+	public int getNumRanges(int shard) {
+		return offsets[shard].length;
+	}
+
+	public int getOffset(int shard, int range) {
+		return offsets[shard][range];
+	}
+
+	public int getLength(int shard, int range) {
+		return lengths[shard][range];
+	}
+
+	// weights take weight decay, biases do not; see NeuralNet.updateWeight()
+	public boolean isDecayed(int shard, int range) {
+		return decayed[shard][range];
+	}
+
+	// the floats of shard from the flat layout, into its contiguous array
+	public void gather(float[] flat, int shard, float[] dest) {
+		int pos = 0;
+		for (int r = 0; r < offsets[shard].length; r++) {
+			System.arraycopy(flat, offsets[shard][r], dest, pos, lengths[shard][r]);
+			pos += lengths[shard][r];
+		}
+	}
+
+	// the contiguous array of shard back into the flat layout
+	public void scatter(float[] src, int shard, float[] flat) {
+		int pos = 0;
+		for (int r = 0; r < offsets[shard].length; r++) {
+			System.arraycopy(src, pos, flat, offsets[shard][r], lengths[shard][r]);
+			pos += lengths[shard][r];
+		}
+	}
+
+	// puts the floats of shard from the flat layout at the position of dest, in its byte order
+	public void write(float[] flat, int shard, ByteBuffer dest) {
+		for (int r = 0; r < offsets[shard].length; r++) {
+			dest.asFloatBuffer().put(flat, offsets[shard][r], lengths[shard][r]);
+			dest.position(dest.position() + 4 * lengths[shard][r]);
+		}
+	}
+
+	// reads the floats of shard at the position of src into the flat layout
+	public void read(ByteBuffer src, int shard, float[] flat) {
+		for (int r = 0; r < offsets[shard].length; r++) {
+			src.asFloatBuffer().get(flat, offsets[shard][r], lengths[shard][r]);
+			src.position(src.position() + 4 * lengths[shard][r]);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d shards of %s floats", sizes.length, Arrays.toString(sizes));
+	}
+
+	private static void cut(List<int[]> ranges, int offset, int length, boolean weights, int chunkSize) {
+		for (int pos = 0; pos < length; pos += chunkSize)
+			ranges.add(new int[] {offset + pos, Math.min(chunkSize, length - pos), weights ? 1 : 0});
+	}
+
+	private static int lengthOf(int[] shape) {
+		int length = 1;
+		for (int d : shape)
+			length *= d;
+		return length;
+	}
+}
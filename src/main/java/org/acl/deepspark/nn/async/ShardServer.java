@@ -0,0 +1,146 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+import org.acl.deepspark.nn.metrics.Tracer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Parameter server of one shard of a {@link ShardPlan}. It keeps the weights and the momentum of its
+ * ranges as flat arrays and applies the update of NeuralNet.updateWeight() to them element-wise, so
+ * the shards together train like one {@link ParameterServer} while each receives, updates and serves
+ * only its part of every delta. A worker talks to all of them through a {@link ShardClient}.
+ *
+ * PUSH_SHARD and SHARD payloads are the shard index and the floats of the shard, little-endian.
+ */
+public class ShardServer extends FrameServer {
+	private final ShardPlan plan;
+	private final int shard;
+	private final float learningRate;
+	private final float momentum;
+	private final float decayLambda;
+	private final float[] weights;
+	private final float[] weightUpdates;
+	private final float[] delta;
+
+	private TrainingMonitor monitor;
+	private int minibatch;
+	private int dataSize;
+	private int applied;
+	private long lastUpdate;
+	private byte[] weightsFrame;		// SHARD frame of the current weights, null once a delta changed them
+
+	/*
+	 * Takes its ranges of the trainable weights of net and of updates, their momentum flattened by the
+	 * plan's layout (null for none), and the learning rate, momentum and decay of net.
+	 */
+	public ShardServer(NeuralNet net, float[] updates, ShardPlan plan, int shard, int port) {
+		super(port, "shard-server-" + shard);
+		if (shard < 0 || shard >= plan.getNumShards())
+			throw new IllegalArgumentException(String.format
+					("Shard out of range; shard %d, shards %d", shard, plan.getNumShards()));
+		if (updates != null && updates.length != plan.getLayout().size())
+			throw new IllegalArgumentException(String.format
+					("Momentum size mismatch; layout %d, updates %d", plan.getLayout().size(), updates.length));
+
+		this.plan = plan;
+		this.shard = shard;
+		this.learningRate = net.learningRate;
+		this.momentum = net.momentum;
+		this.decayLambda = net.decayLambda;
+		this.weights = new float[plan.size(shard)];
+		this.weightUpdates = new float[plan.size(shard)];
+		this.delta = new float[plan.size(shard)];
+		plan.gather(plan.getLayout().flatten(net.getTrainableWeights()), shard, weights);
+		if (updates != null)
+			plan.gather(updates, shard, weightUpdates);
+	}
+
+	// reports every applied delta as one iteration; set on one shard only, every shard sees every delta
+	public void setMonitor(TrainingMonitor monitor, int minibatch, int dataSize) {
+		this.monitor = monitor;
+		this.minibatch = minibatch;
+		this.dataSize = dataSize;
+	}
+
+	// writes the weights and momentum of this shard into the flat layout; call after stopServer()
+	public void copyState(float[] flatWeights, float[] flatUpdates) {
+		plan.scatter(weights, shard, flatWeights);
+		plan.scatter(weightUpdates, shard, flatUpdates);
+	}
+
+	@Override
+	public void startServer() throws IOException {
+		lastUpdate = System.nanoTime();
+		super.startServer();
+	}
+
+	@Override
+	void handle(SelectionKey key, Connection c, ByteBuffer payload) throws IOException {
+		switch (c.type) {
+			case Frames.PUSH_SHARD:
+				payload.order(ByteOrder.LITTLE_ENDIAN);
+				int index = payload.remaining() >= 4 ? payload.getInt() : -1;
+				if (index != shard || payload.remaining() != 4 * delta.length)
+					throw new IOException(String.format("Delta does not match shard %d; shard %d, %d bytes",
+							shard, index, payload.remaining()));
+				payload.asFloatBuffer().get(delta);
+				long read = System.nanoTime();
+				Tracer.record("rpc", "receiveDelta", shard, c.received, read);
+				apply();
+				weightsFrame = null;
+				report(c.received, read);
+				break;
+			case Frames.PULL:
+				long start = Tracer.begin();
+				if (weightsFrame == null)
+					weightsFrame = encodeWeights();
+				reply(key, ByteBuffer.wrap(weightsFrame));
+				Tracer.end("rpc", "serveWeights", shard, start);
+				break;
+			default:
+				throw new IOException(String.format("Unexpected frame; type %d", c.type));
+		}
+	}
+
+	// momentum SGD with weight decay on the weights but not the biases, as in NeuralNet.updateWeight()
+	private void apply() {
+		long start = Tracer.begin();
+		float decay = learningRate * decayLambda;
+		int pos = 0;
+		for (int r = 0; r < plan.getNumRanges(shard); r++) {
+			int end = pos + plan.getLength(shard, r);
+			boolean decayed = plan.isDecayed(shard, r);
+			for (int j = pos; j < end; j++) {
+				weightUpdates[j] *= momentum;
+				if (decayed)
+					weightUpdates[j] -= weights[j] * decay;
+				weightUpdates[j] -= delta[j] * learningRate;
+				weights[j] += weightUpdates[j];
+			}
+			pos = end;
+		}
+		Tracer.end("update", "updateShard", shard, start);
+	}
+
+	private byte[] encodeWeights() {
+		ByteBuffer frame = Frames.frame(Frames.SHARD, 4 + 4 * weights.length);
+		frame.order(ByteOrder.LITTLE_ENDIAN).putInt(shard);
+		frame.asFloatBuffer().put(weights);
+		return frame.array();
+	}
+
+	private void report(long received, long read) {
+		long now = System.nanoTime();
+		applied++;
+		if (monitor != null) {
+			int epoch = (int) ((long) (applied - 1) * minibatch / Math.max(dataSize, 1)) + 1;
+			monitor.iteration(applied, epoch, minibatch, Double.NaN, now - lastUpdate, read - received, now - read);
+		}
+		lastUpdate = now;
+	}
+}
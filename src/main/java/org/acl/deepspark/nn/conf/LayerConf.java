@@ -2,12 +2,15 @@ package org.acl.deepspark.nn.conf;
 
 import org.acl.deepspark.nn.layers.LayerType;
 
+import java.io.Serializable;
 import java.util.HashMap;
 
 /**
  * Created by Jaehong on 2015-07-16.
  */
-public class LayerConf {
+public class LayerConf implements Serializable {
+
+    private static final long serialVersionUID = 6150914476384357823L;
 
     private HashMap<String, Object> layerParams;
     private LayerType type;
@@ -13,6 +13,9 @@ public class NeuralNetConf implements Serializable {
 	 */
 	private static final long serialVersionUID = -2798664570482111852L;
 
+	// checkpoint interval picking ceil(sqrt(numLayers)), which minimizes activation memory
+	public static final int CHECKPOINT_SQRT = -1;
+
 	private int[] dimIn;
 	private int[] dimOut;
 	private ArrayList<LayerConf> layers;
@@ -27,6 +30,7 @@ public class NeuralNetConf implements Serializable {
 		params.put("decayLambda", 0.0005);
 		params.put("momentum", 0.9);
 		params.put("dropOutRate", 0.0);
+		params.put("checkpointInterval", 0.0);
 	}
 
 	public NeuralNetConf setLearningRate(double learningRate) {
@@ -49,6 +53,13 @@ public class NeuralNetConf implements Serializable {
 		return this;
 	}
 
+	/* keep only every k-th activation during training and recompute the others segment by segment
+	 * in backprop; 0 or 1 keeps all activations */
+	public NeuralNetConf setCheckpointInterval(int k) {
+		params.put("checkpointInterval", (double) k);
+		return this;
+	}
+
 	public NeuralNetConf setInputDim(int[] dimIn) {
 		this.dimIn = dimIn;
 		return this;
@@ -100,6 +111,10 @@ public class NeuralNetConf implements Serializable {
 		return params.get("gpuAccel");
 	}
 
+	public int getCheckpointInterval() {
+		return params.get("checkpointInterval").intValue();
+	}
+
 	public NeuralNetConf addLayer(LayerConf l) {
 		layers.add(l);
 		return this;
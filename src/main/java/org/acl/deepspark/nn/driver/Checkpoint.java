@@ -0,0 +1,298 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.jblas.FloatMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary checkpoint of the trainable weights and, optionally, the momentum of a {@link NeuralNet}.
+ *
+ * File layout, all little-endian:
+ *   int magic, int version, int flags, long iteration, int numLayers
+ *   per layer: int present, then int[4] weight shape and int[4] bias shape if present
+ *   float[] weights in {@link WeightLayout} order, float[] momentum in the same order (FLAG_MOMENTUM)
+ *   int CRC32 of all preceding bytes (FLAG_CRC)
+ *
+ * Files are written to a temporary name and renamed, so a crash never leaves a truncated checkpoint
+ * behind. Reading maps the file and copies the float blocks with bulk gets.
+ */
+public class Checkpoint {
+    public static final int MAGIC = 0x4b435344;        // "DSCK"
+    public static final int VERSION = 1;
+    public static final int FLAG_MOMENTUM = 1;
+    public static final int FLAG_CRC = 2;
+    public static final String SUFFIX = ".ckpt";
+
+    private static final int CHUNK = 1 << 16;          // bytes per write / CRC block
+
+    private final long iteration;
+    private final WeightLayout layout;
+    private final Weight[] weights;
+    private final Weight[] momentum;
+
+    private Checkpoint(long iteration, WeightLayout layout, Weight[] weights, Weight[] momentum) {
+        this.iteration = iteration;
+        this.layout = layout;
+        this.weights = weights;
+        this.momentum = momentum;
+    }
+
+    public long getIteration() {
+        return iteration;
+    }
+
+    public WeightLayout getLayout() {
+        return layout;
+    }
+
+    public Weight[] getWeights() {
+        return weights;
+    }
+
+    public boolean hasMomentum() {
+        return momentum != null;
+    }
+
+    public Weight[] getMomentum() {
+        return momentum;
+    }
+
+    // replaces the weights and momentum of net; without stored momentum it restarts from zero
+    public void restore(NeuralNet net) {
+        net.restoreState(weights, momentum);
+    }
+
+    public static String fileName(long iteration) {
+        return String.format("checkpoint-%012d%s", iteration, SUFFIX);
+    }
+
+    // most recent checkpoint in directory, null if there is none
+    public static String latest(String directory) {
+        File[] files = new File(directory).listFiles();
+        String latest = null;
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith("checkpoint-") && name.endsWith(SUFFIX)
+                        && (latest == null || name.compareTo(new File(latest).getName()) > 0))
+                    latest = f.getPath();
+            }
+        }
+        return latest;
+    }
+
+    public static void write(NeuralNet net, long iteration, String path) throws IOException {
+        Weight[][] state = net.pinState();
+        try {
+            write(path, iteration, state[0], state[1], true);
+        } finally {
+            net.unpinState();
+        }
+    }
+
+    static void write(String path, long iteration, Weight[] weights, Weight[] momentum, boolean crc) throws IOException {
+        WeightLayout layout = new WeightLayout(weights);
+        int flags = (momentum != null ? FLAG_MOMENTUM : 0) | (crc ? FLAG_CRC : 0);
+
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 checksum = new CRC32();
+        File tmp = new File(path + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+            FileChannel channel = file.getChannel();
+            file.setLength(0);
+
+            buf.putInt(MAGIC).putInt(VERSION).putInt(flags).putLong(iteration).putInt(weights.length);
+            for (int i = 0; i < weights.length; i++) {
+                ensure(buf, channel, checksum, 36);
+                buf.putInt(layout.isPresent(i) ? 1 : 0);
+                if (layout.isPresent(i)) {
+                    for (int d : layout.getWeightShape(i))
+                        buf.putInt(d);
+                    for (int d : layout.getBiasShape(i))
+                        buf.putInt(d);
+                }
+            }
+            putFloats(weights, buf, channel, checksum);
+            if (momentum != null)
+                putFloats(momentum, buf, channel, checksum);
+            flush(buf, channel, checksum);
+
+            if (crc) {
+                buf.putInt((int) checksum.getValue());
+                buf.flip();
+                while (buf.hasRemaining())
+                    channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(path).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static Checkpoint read(String path) throws IOException {
+        Mapping mapping = map(path, true);
+        WeightLayout layout = mapping.getLayout();
+        float[] flat = new float[layout.size()];
+        mapping.getWeights().get(flat);
+        Weight[] weights = layout.unflatten(flat, 0);
+        Weight[] momentum = null;
+        if (mapping.momentum != null) {
+            mapping.momentum.duplicate().get(flat);
+            momentum = layout.unflatten(flat, 0);
+        }
+        return new Checkpoint(mapping.getIteration(), layout, weights, momentum);
+    }
+
+    /*
+     * Maps a checkpoint read-only without copying the float blocks. The pages are shared by every process
+     * mapping the same file. verify reads the whole file once to check the CRC.
+     */
+    public static Mapping map(String path, boolean verify) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(String.format("Checkpoint too large to map; %d bytes", channel.size()));
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (map.getInt() != MAGIC)
+                throw new IOException(String.format("Not a checkpoint file; %s", path));
+            int version = map.getInt();
+            if (version != VERSION)
+                throw new IOException(String.format("Unsupported checkpoint version; %d", version));
+            int flags = map.getInt();
+            long iteration = map.getLong();
+            int numLayers = map.getInt();
+
+            int[][] weightShapes = new int[numLayers][];
+            int[][] biasShapes = new int[numLayers][];
+            for (int i = 0; i < numLayers; i++) {
+                if (map.getInt() != 0) {
+                    weightShapes[i] = new int[4];
+                    biasShapes[i] = new int[4];
+                    for (int d = 0; d < 4; d++)
+                        weightShapes[i][d] = map.getInt();
+                    for (int d = 0; d < 4; d++)
+                        biasShapes[i][d] = map.getInt();
+                }
+            }
+            WeightLayout layout = new WeightLayout(weightShapes, biasShapes);
+            boolean hasMomentum = (flags & FLAG_MOMENTUM) != 0;
+            long expected = map.position() + 4L * layout.size() * (hasMomentum ? 2 : 1) + ((flags & FLAG_CRC) != 0 ? 4 : 0);
+            if (expected != channel.size())
+                throw new IOException(String.format("Checkpoint size mismatch; expected %d, actual %d", expected, channel.size()));
+
+            if (verify && (flags & FLAG_CRC) != 0) {
+                int end = (int) channel.size() - 4;
+                int stored = map.getInt(end);
+                if (stored != crcOf(map, end))
+                    throw new IOException(String.format("Checkpoint CRC mismatch; %s", path));
+            }
+
+            FloatBuffer weights = map.asFloatBuffer();
+            weights.limit(layout.size());
+            FloatBuffer momentum = null;
+            if (hasMomentum) {
+                map.position(map.position() + 4 * layout.size());
+                momentum = map.asFloatBuffer();
+                momentum.limit(layout.size());
+            }
+            return new Mapping(iteration, layout, weights.slice(), momentum == null ? null : momentum.slice());
+        }
+    }
+
+    // float blocks of a mapped checkpoint; the mapping stays valid after the file is closed
+    public static class Mapping {
+        private final long iteration;
+        private final WeightLayout layout;
+        private final FloatBuffer weights;
+        private final FloatBuffer momentum;
+
+        private Mapping(long iteration, WeightLayout layout, FloatBuffer weights, FloatBuffer momentum) {
+            this.iteration = iteration;
+            this.layout = layout;
+            this.weights = weights;
+            this.momentum = momentum;
+        }
+
+        public long getIteration() {
+            return iteration;
+        }
+
+        public WeightLayout getLayout() {
+            return layout;
+        }
+
+        // a fresh view in WeightLayout order, positioned at 0
+        public FloatBuffer getWeights() {
+            return weights.duplicate();
+        }
+
+        // view of the w or b block of one layer
+        public FloatBuffer getWeights(int layer, boolean bias) {
+            int length = layout.getWeightShape(layer)[0] * layout.getWeightShape(layer)[1]
+                    * layout.getWeightShape(layer)[2] * layout.getWeightShape(layer)[3];
+            FloatBuffer view = weights.duplicate();
+            int start = layout.getOffset(layer) + (bias ? length : 0);
+            view.limit(bias ? layout.getOffset(layer) + layout.getLength(layer) : start + length);
+            view.position(start);
+            return view.slice();
+        }
+    }
+
+    private static void putFloats(Weight[] weights, ByteBuffer buf, FileChannel channel, CRC32 checksum) throws IOException {
+        for (Weight weight : weights) {
+            if (weight == null)
+                continue;
+            for (FloatMatrix[] block : new FloatMatrix[][] {weight.w.data(), weight.b.data()}) {
+                for (FloatMatrix mat : block) {
+                    for (int pos = 0; pos < mat.length; ) {
+                        ensure(buf, channel, checksum, 4);
+                        int n = Math.min(buf.remaining() / 4, mat.length - pos);
+                        buf.asFloatBuffer().put(mat.data, pos, n);
+                        buf.position(buf.position() + 4 * n);
+                        pos += n;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void ensure(ByteBuffer buf, FileChannel channel, CRC32 checksum, int bytes) throws IOException {
+        if (buf.remaining() < bytes)
+            flush(buf, channel, checksum);
+    }
+
+    private static void flush(ByteBuffer buf, FileChannel channel, CRC32 checksum) throws IOException {
+        checksum.update(buf.array(), 0, buf.position());
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write(buf);
+        buf.clear();
+    }
+
+    private static int crcOf(ByteBuffer map, int end) {
+        CRC32 checksum = new CRC32();
+        byte[] chunk = new byte[CHUNK];
+        ByteBuffer view = map.duplicate();
+        view.position(0);
+        for (int pos = 0; pos < end; pos += chunk.length) {
+            int n = Math.min(chunk.length, end - pos);
+            view.get(chunk, 0, n);
+            checksum.update(chunk, 0, n);
+        }
+        return (int) checksum.getValue();
+    }
+}
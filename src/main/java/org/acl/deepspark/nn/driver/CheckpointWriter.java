@@ -0,0 +1,123 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Weight;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a {@link Checkpoint} of a training net every interval iterations on a background thread.
+ *
+ * A snapshot only pins the current tensors of the net (copy on write, see NeuralNet.pinState()), so
+ * the training thread is never paused by a write. If the previous checkpoint is still being written
+ * when the next one is due, the new snapshot is skipped. Only the latest keep files are retained.
+ */
+public class CheckpointWriter {
+    public static final int DEFAULT_KEEP = 3;
+
+    private final String directory;
+    private final int interval;
+    private int keep = DEFAULT_KEEP;
+    private boolean crc = true;
+
+    private final ExecutorService executor;
+    private Future<?> pending;
+    private int skipped;
+    private volatile String lastPath;
+    private volatile IOException failure;
+
+    public CheckpointWriter(String directory, int interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException(String.format("Invalid checkpoint interval; %d", interval));
+        this.directory = directory;
+        this.interval = interval;
+        new File(directory).mkdirs();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "checkpoint-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public CheckpointWriter setKeep(int keep) {
+        this.keep = keep;
+        return this;
+    }
+
+    public CheckpointWriter setCrc(boolean crc) {
+        this.crc = crc;
+        return this;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public String getLastPath() {
+        return lastPath;
+    }
+
+    // called after updateWeight() of every iteration, from the thread that updates the net
+    public boolean maybeSnapshot(NeuralNet net, long iteration) {
+        return iteration % interval == 0 && snapshot(net, iteration);
+    }
+
+    public synchronized boolean snapshot(final NeuralNet net, final long iteration) {
+        if (pending != null && !pending.isDone()) {
+            skipped++;
+            return false;
+        }
+
+        final Weight[][] state = net.pinState();
+        pending = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                String path = new File(directory, Checkpoint.fileName(iteration)).getPath();
+                try {
+                    Checkpoint.write(path, iteration, state[0], state[1], crc);
+                    lastPath = path;
+                    removeOld();
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    net.unpinState();
+                }
+            }
+        });
+        return true;
+    }
+
+    // waits for the pending write and rethrows the first write failure
+    public synchronized void close() throws IOException, InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (failure != null)
+            throw failure;
+    }
+
+    private void removeOld() {
+        File[] files = new File(directory).listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files);
+        int count = 0;
+        for (int i = files.length - 1; i >= 0; i--) {
+            String name = files[i].getName();
+            if (name.startsWith("checkpoint-") && name.endsWith(Checkpoint.SUFFIX) && ++count > keep)
+                files[i].delete();
+        }
+    }
+}
@@ -1,22 +1,38 @@
 package org.acl.deepspark.nn.driver;
 
 import jcuda.jcublas.JCublas;
-import org.acl.deepspark.data.Accumulator;
+import org.acl.deepspark.data.EpochSampler;
+import org.acl.deepspark.data.FlatAccumulator;
+import org.acl.deepspark.data.GradientCompressor;
 import org.acl.deepspark.data.Sample;
 import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
 import org.acl.deepspark.nn.async.ParameterClient;
 import org.acl.deepspark.nn.async.ParameterServer;
+import org.acl.deepspark.nn.async.ShardClient;
+import org.acl.deepspark.nn.async.ShardPlan;
+import org.acl.deepspark.nn.async.ShardServer;
+import org.acl.deepspark.nn.metrics.TrainingListener;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+import org.acl.deepspark.nn.metrics.Tracer;
 import org.acl.deepspark.utils.GPUUtils;
 import org.apache.hadoop.mapreduce.filecache.DistributedCache;
+import org.apache.spark.TaskContext;
 import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.VoidFunction;
-import org.jblas.util.Random;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by Jaehong on 2015-07-31.
@@ -29,12 +45,26 @@ public class DistAsyncNeuralNetRunner implements Serializable {
 	private static final long serialVersionUID = -5070368428661536358L;
 
 	private NeuralNet net;
+	private transient Evaluator evaluator;
+    private transient List<TrainingListener> listeners = new ArrayList<>();
 
     private int iteration;
     private int batchSize;
     private String host;
     private int[] port;
+    private EpochSampler.Mode samplingMode = EpochSampler.Mode.PERMUTATION;
+    private long seed = new Random().nextLong();
+    private String traceDir;
+    private GradientCompressor compressor;
+    private boolean halfPrecisionWeights;
+    private String checkpointDir;
+    private int checkpointInterval;
+    private int threads = 1;
+    private int shards = 1;
+    private int chunkSize = ShardPlan.DEFAULT_CHUNK_SIZE;
+    private int staleness = -1;
 
+    // the parameter server listens on port[0] only, see ParameterServer
     public DistAsyncNeuralNetRunner(NeuralNet net, String host, int[] port) {
         this.net = net;
         this.host = host;
@@ -51,7 +81,96 @@ public class DistAsyncNeuralNetRunner implements Serializable {
         return this;
     }
 
-    public void train(JavaRDD<Sample> data) throws IOException {
+    public DistAsyncNeuralNetRunner setSamplingMode(EpochSampler.Mode samplingMode) {
+        this.samplingMode = samplingMode;
+        return this;
+    }
+
+    public DistAsyncNeuralNetRunner setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // records a Chrome trace on the driver and on every worker into this directory, local to each machine
+    public DistAsyncNeuralNetRunner setTraceDir(String traceDir) {
+        this.traceDir = traceDir;
+        return this;
+    }
+
+    /*
+     * Training threads per partition. The threads split every minibatch of the partition and share
+     * one replica of the weights, and their gradients are summed into one delta before it is sent.
+     */
+    public DistAsyncNeuralNetRunner setThreadsPerPartition(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException(String.format("Threads per partition must be positive; threads %d", threads));
+        this.threads = threads;
+        return this;
+    }
+
+    /*
+     * Splits the weights across this many parameter servers by layer and by chunks of at most chunkSize
+     * floats, see ShardPlan; shard s listens on port[0] + s. Deltas are sent dense and weights pulled
+     * in float, so a compressor, fp16 weights and checkpoints need a single server.
+     */
+    public DistAsyncNeuralNetRunner setShards(int shards, int chunkSize) {
+        if (shards < 1 || chunkSize < 1)
+            throw new IllegalArgumentException(String.format
+                    ("Shards and chunk size must be positive; shards %d, chunkSize %d", shards, chunkSize));
+        this.shards = shards;
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public DistAsyncNeuralNetRunner setShards(int shards) {
+        return setShards(shards, ShardPlan.DEFAULT_CHUNK_SIZE);
+    }
+
+    /*
+     * Stale synchronous parallel: a partition waits after every push until it is at most staleness
+     * iterations ahead of the slowest one, then pulls, see ParameterServer.setStaleness(). Without it
+     * the partitions run fully asynchronously. All partitions must run at once, so the data may have at
+     * most as many partitions as the default parallelism of its SparkContext; train() checks that.
+     */
+    public DistAsyncNeuralNetRunner setStaleness(int staleness) {
+        if (staleness < 0)
+            throw new IllegalArgumentException(String.format("Staleness must be non-negative; staleness %d", staleness));
+        this.staleness = staleness;
+        return this;
+    }
+
+    // encodes every delta sent to the parameter server, e.g. TopKCompressor; each worker keeps its own copy
+    public DistAsyncNeuralNetRunner setCompressor(GradientCompressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+
+    // workers pull the weights in fp16, see ParameterServer.setHalfPrecisionWeights()
+    public DistAsyncNeuralNetRunner setHalfPrecisionWeights(boolean halfPrecisionWeights) {
+        this.halfPrecisionWeights = halfPrecisionWeights;
+        return this;
+    }
+
+    // the parameter server writes a checkpoint every interval applied deltas, see CheckpointWriter
+    public DistAsyncNeuralNetRunner setCheckpoints(String directory, int interval) {
+        this.checkpointDir = directory;
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    // restores weights and momentum from a checkpoint before training
+    public DistAsyncNeuralNetRunner resume(String path) throws IOException {
+        Checkpoint.read(path).restore(net);
+        return this;
+    }
+
+    public DistAsyncNeuralNetRunner addListener(TrainingListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    // events are reported by the parameter server for every applied delta, see ParameterServer.setMonitor()
+    public void train(JavaRDD<Sample> data) throws IOException, InterruptedException {
         System.out.println("Start async learning...");
         System.out.println(String.format("batchSize: %d", batchSize));
         System.out.println(String.format("iterations: %d", iteration));
@@ -60,82 +179,241 @@ public class DistAsyncNeuralNetRunner implements Serializable {
         System.out.println(String.format("decayLambda: %4f", net.decayLambda));
         System.out.println(String.format("dropOutRate: %4f", net.dropOutRate));
         System.out.println(String.format("gpuAccel: %s", net.gpuAccel ? "true" : "false"));
+        System.out.println(net.planTrainingMemory());
 
+        if (shards > 1 && (compressor != null || halfPrecisionWeights || checkpointDir != null || staleness >= 0))
+            throw new IllegalArgumentException(String.format
+                    ("Sharded parameter servers take dense deltas without checkpoints or staleness; shards %d", shards));
+        // a partition Spark cannot schedule yet would hold the running ones at their clock forever
+        if (staleness >= 0 && data.partitions().size() > data.context().defaultParallelism())
+            throw new IllegalArgumentException(String.format
+                    ("Staleness needs all partitions running at once; partitions %d, parallelism %d",
+                            data.partitions().size(), data.context().defaultParallelism()));
         final int dataSize = (int) data.cache().count();
 
+        if (traceDir != null)
+            Tracer.enable();
+        TrainingMonitor monitor = new TrainingMonitor(listeners);
+        if (shards > 1) {
+            trainSharded(data, monitor, dataSize);
+            return;
+        }
         ParameterServer server = new ParameterServer(net, batchSize, port);
+        server.setMonitor(monitor, dataSize);
+        CheckpointWriter checkpoints = checkpointDir != null ? new CheckpointWriter(checkpointDir, checkpointInterval) : null;
+        server.setCheckpointWriter(checkpoints);
+        server.setHalfPrecisionWeights(halfPrecisionWeights);
+        if (staleness >= 0)
+            server.setStaleness(staleness, data.partitions().size());
         server.startServer();
 
-        data.foreachPartition(new VoidFunction<Iterator<Sample>>() {
-            private static final long serialVersionUID = -7223288722205378737L;
+        ModelBroadcast model = new ModelBroadcast(JavaSparkContext.fromSparkContext(data.context()), net);
+        data.foreachPartition(new AsyncWorker(this, model, dataSize, null));
 
-            @Override
-            public void call(Iterator<Sample> samples) throws Exception {
-                if(net.gpuAccel) {
-                    JCublas.cublasInit();
-                    GPUUtils.preAllocationMemory();
-                }
-                Accumulator w = new Accumulator(net.getNumLayers());
-                List<Sample> sampleList = new ArrayList<Sample>();
-                while (samples.hasNext())
-                    sampleList.add(samples.next());
-                int listSize = sampleList.size();
+        server.stopServer();
+        model.destroy();
+        monitor.close();
+        if (checkpoints != null)
+            checkpoints.close();
+        if (traceDir != null)
+            Tracer.writeChromeTrace(traceDir + "/trace-driver.json");
+    }
 
-                int localIter = iteration * listSize / dataSize;
-                for (int i = 0; i < localIter; i++) {
-                    System.out.println(String.format("%d th iteration", i));
-/*
-                    Iterator<Sample> iter = sampleList.iterator();
-                    net.setWeights(ParameterClient.getWeights(host, port[1]));
-                    while (iter.hasNext()) {
-                        w.accumulate(net.train(iter.next()));
-
-                        if (w.getCount() == batchSize) {
-                            ParameterClient.sendDelta(host, port[0], w.getAverage());
-                            net.setWeights(ParameterClient.getWeights(host, port[1]));
-                            w.clear();
-                        }
-                    }
-                    if (w.getCount() != 0) {
-                        ParameterClient.sendDelta(host, port[0], w.getAverage());
-                        w.clear();
-                    }
-*/
-                    for (int j = 0; j < batchSize; j++)
-                        w.accumulate(net.train(sampleList.get(Random.nextInt(listSize))));
-                    ParameterClient.sendDelta(host, port[0], w.getAverage());
-                    net.setWeights(ParameterClient.getWeights(host, port[1]));
-                    w.clear();
-                }
-                if(net.gpuAccel) {
-                    GPUUtils.clearGPUMem();
-                    JCublas.cublasShutdown();
-                }
+    // the shards hold the weights while training and hand them and their momentum back to the net at the end
+    private void trainSharded(JavaRDD<Sample> data, TrainingMonitor monitor, int dataSize) throws IOException, InterruptedException {
+        WeightLayout layout = new WeightLayout(net.getTrainableWeights());
+        ShardPlan plan = new ShardPlan(layout, shards, chunkSize);
+        System.out.println(plan);
+        float[] updates = layout.flatten(net.getTrainableUpdates());
+        ShardServer[] servers = new ShardServer[shards];
+        try {
+            for (int s = 0; s < shards; s++) {
+                servers[s] = new ShardServer(net, updates, plan, s, port[0] + s);
+                servers[s].startServer();
             }
-        });
+            servers[0].setMonitor(monitor, batchSize, dataSize);
 
-        server.stopServer();
+            ModelBroadcast model = new ModelBroadcast(JavaSparkContext.fromSparkContext(data.context()), net);
+            data.foreachPartition(new AsyncWorker(this, model, dataSize, plan));
+            model.destroy();
+        } finally {
+            for (ShardServer server : servers) {
+                if (server != null)
+                    server.stopServer();
+            }
+        }
+
+        float[] weights = new float[layout.size()];
+        for (ShardServer server : servers)
+            server.copyState(weights, updates);
+        net.restoreState(layout.unflatten(weights, 0), layout.unflatten(updates, 0));
+        monitor.close();
+        if (traceDir != null)
+            Tracer.writeChromeTrace(traceDir + "/trace-driver.json");
     }
 
-    public Tensor[] predict(Sample[] data) {
-        Tensor[] output = new Tensor[data.length];
-        for (int i = 0 ; i < data.length ; i++)
-            output[i] = predict(data[i]);
-        return output;
+    public Tensor[] predict(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.predict(net);
     }
 
     public Tensor predict(Sample data) {
         return net.predict(data);
     }
 
-    public double printAccuracy(Sample[] data) {
-        int count = 0;
-        for (Sample sample : data) {
-            Tensor output = net.predict(sample);
-            if (sample.label.slice(0,0).argmax() == output.slice(0,0).argmax())
-                count++;
+    public double printAccuracy(Sample[] data) throws InterruptedException {
+        return evaluate(data).getAccuracy();
+    }
+
+    public Evaluation evaluate(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.evaluate(net);
+    }
+
+    // static so that tasks serialize the model handle and the settings only, not this runner and its net
+    private static class AsyncWorker implements VoidFunction<Iterator<Sample>> {
+        private static final long serialVersionUID = -7223288722205378737L;
+
+        private final ModelBroadcast model;
+        private final int dataSize;
+        private final int iteration;
+        private final int batchSize;
+        private final String host;
+        private final int[] port;
+        private final EpochSampler.Mode samplingMode;
+        private final long seed;
+        private final String traceDir;
+        private final GradientCompressor compressor;
+        private final int threads;
+        private final ShardPlan plan;       // null for a single parameter server
+        private final int staleness;
+
+        AsyncWorker(DistAsyncNeuralNetRunner runner, ModelBroadcast model, int dataSize, ShardPlan plan) {
+            this.model = model;
+            this.dataSize = dataSize;
+            this.iteration = runner.iteration;
+            this.batchSize = runner.batchSize;
+            this.host = runner.host;
+            this.port = runner.port;
+            this.samplingMode = runner.samplingMode;
+            this.seed = runner.seed;
+            this.traceDir = runner.traceDir;
+            this.compressor = runner.compressor;
+            this.threads = runner.threads;
+            this.plan = plan;
+            this.staleness = runner.staleness;
+        }
+
+        @Override
+        public void call(Iterator<Sample> samples) throws Exception {
+            if (traceDir != null)
+                Tracer.enable();
+            ModelBroadcast.Replica replica = model.acquire();
+            NeuralNet net = replica.getNet();
+            if(net.gpuAccel) {
+                JCublas.cublasInit();
+                GPUUtils.preAllocationMemory();
+            }
+            List<Sample> sampleList = new ArrayList<Sample>();
+            while (samples.hasNext())
+                sampleList.add(samples.next());
+            int listSize = sampleList.size();
+            // an empty partition runs no iterations, but still reports its clock as finished
+            EpochSampler sampler = listSize > 0 ? new EpochSampler(listSize, samplingMode,
+                    seed + TaskContext.get().partitionId()) : null;
+
+            // weights pulled from the parameter server replace the broadcast ones
+            replica.invalidate();
+            NeuralNet[] nets = new NeuralNet[threads];
+            nets[0] = net;
+            for (int t = 1; t < threads; t++)
+                nets[t] = net.fork();
+            ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads - 1) : null;
+            ParameterClient client = plan == null ? new ParameterClient(host, port[0]) : null;
+            ShardClient shardClient = plan != null ? new ShardClient(host, port[0], plan) : null;
+            float[] flat = plan != null ? new float[plan.getLayout().size()] : null;
+            try {
+                int localIter = iteration * listSize / dataSize;
+                for (int i = 0; i < localIter; i++) {
+                    System.out.println(String.format("%d th iteration", i));
+                    long compute = Tracer.begin();
+                    Sample[] batch = new Sample[batchSize];
+                    for (int j = 0; j < batchSize; j++)
+                        batch[j] = sampleList.get(sampler.next());
+                    FlatAccumulator w = computeGradient(nets, batch, pool);
+                    Tracer.end("step", "compute", i, compute);
+                    if (shardClient != null) {
+                        float[] sum = w.getSum();
+                        for (int k = 0; k < flat.length; k++)
+                            flat[k] = sum[k] / w.getCount();
+                        shardClient.sendDelta(flat);
+                        shardClient.getWeights(flat);
+                        model.getLayout().copyInto(flat, 0, nets[0].getTrainableWeights());
+                        nets[0].weightsChanged();
+                    } else if (compressor == null && staleness < 0) {
+                        client.pushAndPull(w.getAverage(), nets[0].getTrainableWeights());
+                        nets[0].weightsChanged();
+                    } else {
+                        if (compressor != null)
+                            client.sendDelta(compressor.compress(model.getLayout().flatten(w.getAverage()), model.getLayout()));
+                        else
+                            client.sendDelta(w.getAverage());
+                        // waits for the slowest partition, then pulls what the others pushed meanwhile
+                        if (staleness >= 0)
+                            client.clock(TaskContext.get().partitionId(), i + 1);
+                        pull(client, nets);
+                    }
+                }
+                if (staleness >= 0)
+                    client.finish(TaskContext.get().partitionId());
+            } finally {
+                if (client != null)
+                    client.close();
+                if (shardClient != null)
+                    shardClient.close();
+                if (pool != null)
+                    pool.shutdownNow();
+                model.release(replica);
+            }
+            if(net.gpuAccel) {
+                GPUUtils.clearGPUMem();
+                JCublas.cublasShutdown();
+            }
+            if (traceDir != null)
+                Tracer.writeChromeTrace(String.format("%s/trace-partition-%d.json", traceDir, TaskContext.get().partitionId()));
+        }
+
+        // thread t trains on samples t, t + threads, ... of the batch with nets[t]
+        private FlatAccumulator computeGradient(final NeuralNet[] nets, final Sample[] batch, ExecutorService pool)
+                throws Exception {
+            List<Future<FlatAccumulator>> partial = new ArrayList<>();
+            for (int t = 1; t < nets.length; t++) {
+                final int first = t;
+                partial.add(pool.submit(new Callable<FlatAccumulator>() {
+                    @Override
+                    public FlatAccumulator call() throws Exception {
+                        return train(nets[first], batch, first);
+                    }
+                }));
+            }
+            FlatAccumulator sum = train(nets[0], batch, 0);
+            for (Future<FlatAccumulator> f : partial)
+                sum.merge(f.get());
+            return sum;
+        }
+
+        private FlatAccumulator train(NeuralNet net, Sample[] batch, int first) throws Exception {
+            FlatAccumulator sum = new FlatAccumulator(model.getLayout());
+            for (int j = first; j < batch.length; j += threads)
+                sum.accumulate(net.train(batch[j]), net.getLastLoss());
+            return sum;
+        }
+
+        // in place: the forks share the trainable tensors and keep their own pooling masks
+        private void pull(ParameterClient client, NeuralNet[] nets) throws IOException {
+            client.getWeights(nets[0].getTrainableWeights());
+            nets[0].weightsChanged();
         }
-        return (double) count / data.length * 100;
     }
 
 }
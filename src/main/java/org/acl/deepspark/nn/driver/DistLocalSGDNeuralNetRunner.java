@@ -0,0 +1,263 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Accumulator;
+import org.acl.deepspark.data.EpochSampler;
+import org.acl.deepspark.data.FlatAccumulator;
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.nn.metrics.TrainingListener;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+import org.acl.deepspark.nn.metrics.Tracer;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function2;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Local SGD: every partition trains its own replica for H minibatch steps with the single-node
+ * train()/updateWeight(), then weights and momentum of all replicas are averaged in a tree and the
+ * average is broadcast as the starting point of the next round. Models are exchanged once per H
+ * steps instead of once per step.
+ *
+ * With adaptive H, a round runs H0 * sqrt(loss / loss0) steps (at least 1), where loss0 is the
+ * training loss of the first round: replicas synchronize rarely while the loss is high and more
+ * often as training converges.
+ */
+public class DistLocalSGDNeuralNetRunner implements Serializable {
+
+    private static final long serialVersionUID = 3349517617206364251L;
+
+    private NeuralNet net;
+    private transient Evaluator evaluator;
+    private transient List<TrainingListener> listeners = new ArrayList<>();
+
+    private int iteration;
+    private int batchSize;
+    private int localSteps = 8;
+    private boolean adaptive;
+    private int treeDepth = 2;
+    private EpochSampler.Mode samplingMode = EpochSampler.Mode.PERMUTATION;
+    private long seed = new Random().nextLong();
+    private String checkpointDir;
+    private int checkpointInterval;
+    private int startStep;
+
+    public DistLocalSGDNeuralNetRunner(NeuralNet net) {
+        this.net = net;
+    }
+
+    // local steps of every replica over the whole run
+    public DistLocalSGDNeuralNetRunner setIterations(int iteration) {
+        this.iteration = iteration;
+        return this;
+    }
+
+    // minibatch of one local step of one replica
+    public DistLocalSGDNeuralNetRunner setMiniBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    // H, local steps between two averaging rounds; the initial H when adaptive
+    public DistLocalSGDNeuralNetRunner setLocalSteps(int localSteps) {
+        if (localSteps < 1)
+            throw new IllegalArgumentException(String.format("Local steps must be positive; steps %d", localSteps));
+        this.localSteps = localSteps;
+        return this;
+    }
+
+    public DistLocalSGDNeuralNetRunner setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+
+    // levels of partial model sums between the partitions and the driver, see TreeReduce
+    public DistLocalSGDNeuralNetRunner setTreeDepth(int treeDepth) {
+        if (treeDepth < 1)
+            throw new IllegalArgumentException(String.format("Tree depth must be positive; depth %d", treeDepth));
+        this.treeDepth = treeDepth;
+        return this;
+    }
+
+    public DistLocalSGDNeuralNetRunner setSamplingMode(EpochSampler.Mode samplingMode) {
+        this.samplingMode = samplingMode;
+        return this;
+    }
+
+    public DistLocalSGDNeuralNetRunner setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // writes a checkpoint of the averaged model whenever the local steps pass a multiple of interval
+    public DistLocalSGDNeuralNetRunner setCheckpoints(String directory, int interval) {
+        this.checkpointDir = directory;
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    // restores weights and momentum from a checkpoint and continues after the local steps it covers
+    public DistLocalSGDNeuralNetRunner resume(String path) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(path);
+        checkpoint.restore(net);
+        startStep = (int) checkpoint.getIteration();
+        return this;
+    }
+
+    public DistLocalSGDNeuralNetRunner addListener(TrainingListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    // one event per averaging round; its iteration is the number of local steps done so far
+    public void train(JavaSparkContext sc, JavaRDD<Sample> data) throws IOException, InterruptedException {
+        JavaRDD<SampleBlock> blocks = SampleBlock.cache(data);
+        List<Integer> sizes = SampleBlock.sizes(blocks);
+        long dataSize = 0;
+        int replicas = 0;
+        for (int size : sizes) {
+            dataSize += size;
+            if (size > 0)
+                replicas++;
+        }
+        if (dataSize == 0)
+            throw new IllegalArgumentException("Training data is empty");
+
+        System.out.println("Start local SGD learning...");
+        System.out.println(String.format("batchSize: %d", batchSize));
+        System.out.println(String.format("iterations: %d", iteration));
+        System.out.println(String.format("localSteps: %d%s", localSteps, adaptive ? " (adaptive)" : ""));
+        System.out.println(String.format("learningRate: %4f", net.learningRate));
+        System.out.println(String.format("momentum: %4f", net.momentum));
+        System.out.println(String.format("decayLambda: %4f", net.decayLambda));
+        System.out.println(String.format("dropOutRate: %4f", net.dropOutRate));
+        System.out.println(net.planTrainingMemory());
+        System.out.println(String.format("Training %d replicas on %d samples", replicas, dataSize));
+
+        ModelBroadcast model = new ModelBroadcast(sc, net, true);
+        TrainingMonitor monitor = new TrainingMonitor(listeners);
+        CheckpointWriter checkpoints = checkpointDir != null ? new CheckpointWriter(checkpointDir, checkpointInterval) : null;
+        double initialLoss = Double.NaN;
+        int steps = localSteps;
+        int done = startStep;
+        for (int round = 0; done < iteration; round++) {
+            long start = System.nanoTime();
+            steps = Math.min(steps, iteration - done);
+            long job = Tracer.begin();
+            if (round > 0)
+                model.update(sc, net);
+            JavaRDD<FlatAccumulator> replicaStates = blocks.mapPartitionsWithIndex(
+                    new LocalTraining(model, done, steps, batchSize, samplingMode, seed), false);
+            FlatAccumulator sum = TreeReduce.reduce(replicaStates, new DistNeuralNetRunner.Merge(), treeDepth);
+            Tracer.end("step", "localRound", round, job);
+
+            long update = System.nanoTime();
+            Weight[] average = sum.getAverage();
+            int numLayers = average.length / 2;
+            net.restoreState(Arrays.copyOfRange(average, 0, numLayers), Arrays.copyOfRange(average, numLayers, average.length));
+            int previous = done;
+            done += steps;
+            if (checkpoints != null && done / checkpointInterval > previous / checkpointInterval)
+                checkpoints.snapshot(net, done);
+
+            double loss = sum.getLoss() / sum.getCount();
+            if (adaptive) {
+                if (Double.isNaN(initialLoss))
+                    initialLoss = loss;
+                steps = adaptiveSteps(localSteps, loss, initialLoss);
+            }
+
+            long end = System.nanoTime();
+            long samples = (long) sum.getCount() * (done - previous) * batchSize;
+            int epoch = (int) ((long) done * batchSize * replicas / dataSize) + 1;
+            monitor.iteration(done, epoch, (int) samples, loss, end - start, 0, end - update);
+        }
+        model.destroy();
+        blocks.unpersist(false);
+        monitor.close();
+        if (checkpoints != null)
+            checkpoints.close();
+    }
+
+    public Tensor[] predict(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.predict(net);
+    }
+
+    public Tensor predict(Sample data) {
+        return net.predict(data);
+    }
+
+    public double printAccuracy(Sample[] data) throws InterruptedException {
+        return evaluate(data).getAccuracy();
+    }
+
+    public Evaluation evaluate(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.evaluate(net);
+    }
+
+    // H0 * sqrt(loss / loss0) local steps for the next round, at least 1
+    static int adaptiveSteps(int localSteps, double loss, double initialLoss) {
+        return Math.max(1, (int) Math.ceil(localSteps * Math.sqrt(loss / initialLoss)));
+    }
+
+    // runs the local steps of one round on a replica and returns its weights and momentum
+    private static class LocalTraining implements Function2<Integer, Iterator<SampleBlock>, Iterator<FlatAccumulator>> {
+        private final ModelBroadcast model;
+        private final int done;
+        private final int steps;
+        private final int batchSize;
+        private final EpochSampler.Mode mode;
+        private final long seed;
+
+        LocalTraining(ModelBroadcast model, int done, int steps, int batchSize, EpochSampler.Mode mode, long seed) {
+            this.model = model;
+            this.done = done;
+            this.steps = steps;
+            this.batchSize = batchSize;
+            this.mode = mode;
+            this.seed = seed;
+        }
+
+        @Override
+        public Iterator<FlatAccumulator> call(Integer partition, Iterator<SampleBlock> blocks) throws Exception {
+            FlatAccumulator state = new FlatAccumulator(model.getLayout());
+            SampleBlock block = blocks.hasNext() ? blocks.next() : null;
+            if (block != null && block.size() > 0) {
+                ModelBroadcast.Replica replica = model.acquire();
+                try {
+                    NeuralNet net = replica.getNet();
+                    Accumulator gradient = new Accumulator(net.getNumLayers());
+                    double loss = 0;
+                    Sample[] batch = block.take((long) done * batchSize, steps * batchSize, mode, seed);
+                    for (int s = 0; s < steps; s++) {
+                        long step = Tracer.begin();
+                        for (int j = 0; j < batchSize; j++) {
+                            gradient.accumulate(net.train(batch[s * batchSize + j]));
+                            loss += net.getLastLoss();
+                        }
+                        net.updateWeight(gradient.getAverage());
+                        gradient.clear();
+                        Tracer.end("step", "localStep", s, step);
+                    }
+                    state.accumulate(model.stateOf(net), loss / (steps * batchSize));
+                } finally {
+                    replica.invalidate();
+                    model.release(replica);
+                }
+            }
+            return Collections.singletonList(state).iterator();
+        }
+    }
+
+}
@@ -1,16 +1,25 @@
 package org.acl.deepspark.nn.driver;
 
-import org.acl.deepspark.data.DistAccumulator;
+import org.acl.deepspark.data.EpochSampler;
+import org.acl.deepspark.data.FlatAccumulator;
+import org.acl.deepspark.data.GradientCompressor;
 import org.acl.deepspark.data.Sample;
 import org.acl.deepspark.data.Tensor;
 import org.acl.deepspark.data.Weight;
-import org.apache.spark.Accumulator;
+import org.acl.deepspark.nn.metrics.TrainingListener;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+import org.acl.deepspark.nn.metrics.Tracer;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
-import org.apache.spark.api.java.function.VoidFunction;
-import org.jblas.util.Random;
+import org.apache.spark.api.java.function.Function2;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Created by Jaehong on 2015-07-31.
@@ -18,9 +27,18 @@ import java.io.Serializable;
 public class DistNeuralNetRunner implements Serializable {
 
     private NeuralNet net;
+    private transient Evaluator evaluator;
+    private transient List<TrainingListener> listeners = new ArrayList<>();
 
     private int iteration;
     private int batchSize;
+    private int treeDepth = 2;
+    private EpochSampler.Mode samplingMode = EpochSampler.Mode.PERMUTATION;
+    private GradientCompressor compressor;
+    private long seed = new Random().nextLong();
+    private String checkpointDir;
+    private int checkpointInterval;
+    private int startIteration;
 
     public DistNeuralNetRunner(NeuralNet net) {
         this.net = net;
@@ -36,8 +54,63 @@ public class DistNeuralNetRunner implements Serializable {
         return this;
     }
 
-    public void train(JavaSparkContext sc, JavaRDD<Sample> data) {
-        int numPartition = (int) data.cache().count() / batchSize;
+    // levels of partial gradient sums between the partitions and the driver, see TreeReduce
+    public DistNeuralNetRunner setTreeDepth(int treeDepth) {
+        if (treeDepth < 1)
+            throw new IllegalArgumentException(String.format("Tree depth must be positive; depth %d", treeDepth));
+        this.treeDepth = treeDepth;
+        return this;
+    }
+
+    public DistNeuralNetRunner setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // writes a checkpoint into directory every interval iterations, see CheckpointWriter
+    public DistNeuralNetRunner setCheckpoints(String directory, int interval) {
+        this.checkpointDir = directory;
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    // restores weights and momentum from a checkpoint and continues after the iterations it covers
+    public DistNeuralNetRunner resume(String path) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(path);
+        checkpoint.restore(net);
+        startIteration = (int) checkpoint.getIteration();
+        return this;
+    }
+
+    public DistNeuralNetRunner addListener(TrainingListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    // encodes the partial sum of every partition before it leaves the executor, e.g. TopKCompressor
+    public DistNeuralNetRunner setCompressor(GradientCompressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+
+    public DistNeuralNetRunner setSamplingMode(EpochSampler.Mode samplingMode) {
+        this.samplingMode = samplingMode;
+        return this;
+    }
+
+    /*
+     * Every partition is cached as one SampleBlock, and each iteration takes a fixed share of the
+     * minibatch from every block by index, so a gradient job touches batchSize samples and the lineage
+     * does not grow with the number of minibatches. Data wait is not observable on the driver and is
+     * reported as 0.
+     */
+    public void train(JavaSparkContext sc, JavaRDD<Sample> data) throws IOException, InterruptedException {
+        JavaRDD<SampleBlock> blocks = SampleBlock.cache(data);
+        List<Integer> sizes = SampleBlock.sizes(blocks);
+        int[] shares = shares(sizes, batchSize);
+        long dataSize = 0;
+        for (int size : sizes)
+            dataSize += size;
 
         System.out.println("Start learning...");
         System.out.println(String.format("batchSize: %d", batchSize));
@@ -46,59 +119,135 @@ public class DistNeuralNetRunner implements Serializable {
         System.out.println(String.format("momentum: %4f", net.momentum));
         System.out.println(String.format("decayLambda: %4f", net.decayLambda));
         System.out.println(String.format("dropOutRate: %4f", net.dropOutRate));
-
-        System.out.println(String.format("Partitioning into %d pieces", numPartition));
-        double[] weights = new double[numPartition];
-        for (int i = 0 ; i < numPartition; i++) {
-            weights[i] = 1.0;
+        System.out.println(net.planTrainingMemory());
+        System.out.println(String.format("Sampling %d samples from %d partitions", dataSize, sizes.size()));
+
+        ModelBroadcast model = new ModelBroadcast(sc, net);
+        TrainingMonitor monitor = new TrainingMonitor(listeners);
+        CheckpointWriter checkpoints = checkpointDir != null ? new CheckpointWriter(checkpointDir, checkpointInterval) : null;
+        for (int i = startIteration; i < iteration; i++) {
+            long start = System.nanoTime();
+            int epoch = (int) ((long) i * batchSize / dataSize) + 1;
+            long job = Tracer.begin();
+            if (i > startIteration)
+                model.update(sc, net);
+            // one flat partial sum per partition, merged in a tree instead of sample by sample on the driver
+            JavaRDD<FlatAccumulator> partial = blocks.mapPartitionsWithIndex(
+                    new PartialGradient(model, shares, i, samplingMode, seed, compressor), false);
+            FlatAccumulator sum = TreeReduce.reduce(partial, new Merge(), treeDepth);
+            Tracer.end("step", "gradientJob", i, job);
+
+            long update = System.nanoTime();
+            if (sum.getCount() > 0)
+                net.updateWeight(sum.getAverage());
+            if (checkpoints != null)
+                checkpoints.maybeSnapshot(net, i + 1);
+
+            long end = System.nanoTime();
+            monitor.iteration(i + 1, epoch, sum.getCount(), sum.getLoss() / Math.max(sum.getCount(), 1),
+                    end - start, 0, end - update);
         }
+        model.destroy();
+        blocks.unpersist(false);
+        monitor.close();
+        if (checkpoints != null)
+            checkpoints.close();
+    }
 
-        JavaRDD<Sample>[] partition = data.randomSplit(weights);
-        Weight[] init = new Weight[net.getWeights().length];
-        for (int i = 0 ; i < net.getWeights().length; i++) {
-            if (net.getWeights()[i] != null)
-                init[i] = new Weight(net.getWeights()[i].getWeightShape(), net.getWeights()[i].getBiasShape());
-        }
-        final Accumulator<Weight[]> deltaAccum = sc.accumulator(init, new DistAccumulator());
-        for (int i = 0 ; i < iteration; i++) {
-            JavaRDD<Sample> miniBatch = partition[Random.nextInt(numPartition)];
-            miniBatch.foreach(new VoidFunction<Sample>() {
-                @Override
-                public void call(Sample sample) throws Exception {
-                    deltaAccum.add(net.train(sample));
-                }
-            });
+    public Tensor[] predict(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.predict(net);
+    }
 
-            Weight[] delta = deltaAccum.value();
-            for (int j = 0; j < delta.length; j++) {
-                if (delta[j] != null)
-                    delta[j].divi(batchSize);
-            }
-            net.updateWeight(delta);
-            deltaAccum.zero();
-        }
+    public Tensor predict(Sample data) {
+        return net.predict(data);
+    }
 
+    public double printAccuracy(Sample[] data) throws InterruptedException {
+        return evaluate(data).getAccuracy();
     }
 
-    public Tensor[] predict(Sample[] data) {
-        Tensor[] output = new Tensor[data.length];
-        for (int i = 0 ; i < data.length ; i++)
-            output[i] = predict(data[i]);
-        return output;
+    public Evaluation evaluate(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.evaluate(net);
     }
 
-    public Tensor predict(Sample data) {
-        return net.predict(data);
+    // samples every partition contributes to one minibatch, proportional to its size (largest remainder)
+    static int[] shares(List<Integer> sizes, int batchSize) {
+        long total = 0;
+        for (int size : sizes)
+            total += size;
+        if (total == 0)
+            throw new IllegalArgumentException("Training data is empty");
+
+        int[] shares = new int[sizes.size()];
+        double[] remainders = new double[sizes.size()];
+        int assigned = 0;
+        for (int p = 0; p < shares.length; p++) {
+            double exact = (double) batchSize * sizes.get(p) / total;
+            shares[p] = (int) exact;
+            remainders[p] = sizes.get(p) > 0 ? exact - shares[p] : -1;
+            assigned += shares[p];
+        }
+        for (; assigned < batchSize; assigned++) {
+            int largest = 0;
+            for (int p = 1; p < shares.length; p++) {
+                if (remainders[p] > remainders[largest])
+                    largest = p;
+            }
+            shares[largest]++;
+            remainders[largest] = -1;
+        }
+        return shares;
+    }
+
+    // static so that tasks serialize the model handle and the shares only, not this runner and its net
+    private static class PartialGradient implements Function2<Integer, Iterator<SampleBlock>, Iterator<FlatAccumulator>> {
+        private final ModelBroadcast model;
+        private final int[] shares;
+        private final int iteration;
+        private final EpochSampler.Mode mode;
+        private final long seed;
+        private final GradientCompressor compressor;
+
+        PartialGradient(ModelBroadcast model, int[] shares, int iteration, EpochSampler.Mode mode, long seed,
+                        GradientCompressor compressor) {
+            this.model = model;
+            this.shares = shares;
+            this.iteration = iteration;
+            this.mode = mode;
+            this.seed = seed;
+            this.compressor = compressor;
+        }
+
+        @Override
+        public Iterator<FlatAccumulator> call(Integer partition, Iterator<SampleBlock> blocks) throws Exception {
+            FlatAccumulator sum = new FlatAccumulator(model.getLayout());
+            int share = shares[partition];
+            if (share > 0 && blocks.hasNext()) {
+                SampleBlock block = blocks.next();
+                ModelBroadcast.Replica replica = model.acquire();
+                try {
+                    NeuralNet net = replica.getNet();
+                    for (Sample sample : block.take((long) iteration * share, share, mode, seed)) {
+                        Weight[] gradient = net.train(sample);
+                        sum.accumulate(gradient, net.getLastLoss());
+                    }
+                } finally {
+                    model.release(replica);
+                }
+                if (compressor != null)
+                    sum.compress(model.partitionLocal(partition, compressor));
+            }
+            return Collections.singletonList(sum).iterator();
+        }
     }
 
-    public double printAccuracy(Sample[] data) {
-        int count = 0;
-        for (Sample sample : data) {
-            Tensor output = net.predict(sample);
-            if (sample.label.slice(0,0).argmax() == output.slice(0,0).argmax())
-                count++;
+    static class Merge implements Function2<FlatAccumulator, FlatAccumulator, FlatAccumulator> {
+        @Override
+        public FlatAccumulator call(FlatAccumulator a, FlatAccumulator b) {
+            return a.merge(b);
         }
-        return (double) count / data.length * 100;
     }
 
 }
@@ -0,0 +1,227 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.EpochSampler;
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.nn.async.RingAllReduce;
+import org.acl.deepspark.nn.async.RingRendezvous;
+import org.acl.deepspark.nn.metrics.TrainingListener;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function2;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synchronous SGD without the driver in the data path: one long-running task per partition trains a
+ * replica and sums the gradients of every minibatch with the other tasks in a ring all-reduce, then
+ * applies the same average with updateWeight(), so all replicas stay identical. The driver only runs
+ * the {@link RingRendezvous} and receives the progress of rank 0; the trained weights and momentum
+ * are collected once at the end.
+ *
+ * All partitions have to run at the same time, so there must be at least as many task slots as
+ * partitions. A failed task breaks the ring and fails the whole job.
+ */
+public class DistRingNeuralNetRunner implements Serializable {
+
+    private static final long serialVersionUID = -2412698823710447723L;
+
+    private NeuralNet net;
+    private transient Evaluator evaluator;
+    private transient List<TrainingListener> listeners = new ArrayList<>();
+
+    private int iteration;
+    private int batchSize;
+    private String host;
+    private int port;
+    private EpochSampler.Mode samplingMode = EpochSampler.Mode.PERMUTATION;
+    private long seed = new Random().nextLong();
+    private int startIteration;
+
+    // host and port of the rendezvous on the driver, as seen from the executors
+    public DistRingNeuralNetRunner(NeuralNet net, String host, int port) {
+        this.net = net;
+        this.host = host;
+        this.port = port;
+    }
+
+    public DistRingNeuralNetRunner setIterations(int iteration) {
+        this.iteration = iteration;
+        return this;
+    }
+
+    public DistRingNeuralNetRunner setMiniBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public DistRingNeuralNetRunner setSamplingMode(EpochSampler.Mode samplingMode) {
+        this.samplingMode = samplingMode;
+        return this;
+    }
+
+    public DistRingNeuralNetRunner setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // restores weights and momentum from a checkpoint and continues after the iterations it covers
+    public DistRingNeuralNetRunner resume(String path) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(path);
+        checkpoint.restore(net);
+        startIteration = (int) checkpoint.getIteration();
+        return this;
+    }
+
+    public DistRingNeuralNetRunner addListener(TrainingListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    // events are reported by rank 0 after every all-reduce; the update time includes the all-reduce
+    public void train(JavaSparkContext sc, JavaRDD<Sample> data) throws IOException, InterruptedException {
+        JavaRDD<SampleBlock> blocks = SampleBlock.cache(data);
+        List<Integer> sizes = SampleBlock.sizes(blocks);
+        int[] shares = DistNeuralNetRunner.shares(sizes, batchSize);
+        if (sizes.size() > sc.defaultParallelism())
+            throw new IllegalArgumentException(String.format
+                    ("Ring needs all partitions running at once; partitions %d, parallelism %d", sizes.size(), sc.defaultParallelism()));
+        long total = 0;
+        for (int size : sizes)
+            total += size;
+        final long dataSize = total;
+
+        System.out.println("Start ring all-reduce learning...");
+        System.out.println(String.format("batchSize: %d", batchSize));
+        System.out.println(String.format("iterations: %d", iteration));
+        System.out.println(String.format("learningRate: %4f", net.learningRate));
+        System.out.println(String.format("momentum: %4f", net.momentum));
+        System.out.println(String.format("decayLambda: %4f", net.decayLambda));
+        System.out.println(String.format("dropOutRate: %4f", net.dropOutRate));
+        System.out.println(net.planTrainingMemory());
+        System.out.println(String.format("Ring of %d ranks on %d samples", sizes.size(), dataSize));
+
+        ModelBroadcast model = new ModelBroadcast(sc, net, true);
+        final TrainingMonitor monitor = new TrainingMonitor(listeners);
+        RingRendezvous rendezvous = new RingRendezvous(port, sizes.size(), new RingRendezvous.Listener() {
+            @Override
+            public void onReport(int iteration, int samples, double loss, long stepNanos, long commNanos) {
+                int epoch = (int) ((long) (iteration - 1) * batchSize / dataSize) + 1;
+                monitor.iteration(iteration, epoch, samples, loss, stepNanos, 0, commNanos);
+            }
+        });
+        rendezvous.start();
+        List<float[]> states;
+        try {
+            states = blocks.mapPartitionsWithIndex(new RingTraining(this, model, shares), false).collect();
+        } finally {
+            rendezvous.stop();
+        }
+
+        Weight[] state = model.getLayout().unflatten(states.get(0), 0);
+        int numLayers = state.length / 2;
+        net.restoreState(Arrays.copyOfRange(state, 0, numLayers), Arrays.copyOfRange(state, numLayers, state.length));
+        model.destroy();
+        blocks.unpersist(false);
+        monitor.close();
+    }
+
+    public Tensor[] predict(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.predict(net);
+    }
+
+    public Tensor predict(Sample data) {
+        return net.predict(data);
+    }
+
+    public double printAccuracy(Sample[] data) throws InterruptedException {
+        return evaluate(data).getAccuracy();
+    }
+
+    public Evaluation evaluate(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.evaluate(net);
+    }
+
+    // trains one rank of the ring for all iterations; rank 0 returns weights and momentum of its replica
+    private static class RingTraining implements Function2<Integer, Iterator<SampleBlock>, Iterator<float[]>> {
+        private final ModelBroadcast model;
+        private final int[] shares;
+        private final String host;
+        private final int port;
+        private final int startIteration;
+        private final int iteration;
+        private final EpochSampler.Mode mode;
+        private final long seed;
+
+        RingTraining(DistRingNeuralNetRunner runner, ModelBroadcast model, int[] shares) {
+            this.model = model;
+            this.shares = shares;
+            this.host = runner.host;
+            this.port = runner.port;
+            this.startIteration = runner.startIteration;
+            this.iteration = runner.iteration;
+            this.mode = runner.samplingMode;
+            this.seed = runner.seed;
+        }
+
+        @Override
+        public Iterator<float[]> call(Integer partition, Iterator<SampleBlock> blocks) throws Exception {
+            SampleBlock block = blocks.next();
+            int share = shares[partition];
+            ModelBroadcast.Replica replica = model.acquire();
+            RingAllReduce ring = null;
+            try {
+                NeuralNet net = replica.getNet();
+                WeightLayout layout = new WeightLayout(net.getTrainableWeights());
+                int n = layout.size();
+                // gradient sum, then number of samples and summed loss, reduced in one pass
+                float[] sum = new float[n + 2];
+                ring = RingAllReduce.join(host, port, partition, shares.length);
+                for (int i = startIteration; i < iteration; i++) {
+                    long start = System.nanoTime();
+                    Arrays.fill(sum, 0);
+                    double loss = 0;
+                    if (share > 0) {
+                        for (Sample sample : block.take((long) i * share, share, mode, seed)) {
+                            layout.addTo(net.train(sample), sum, 0);
+                            loss += net.getLastLoss();
+                        }
+                    }
+                    sum[n] = share;
+                    sum[n + 1] = (float) loss;
+
+                    long reduce = System.nanoTime();
+                    ring.allReduce(sum);
+                    int count = (int) sum[n];
+                    for (int j = 0; j < n; j++)
+                        sum[j] /= count;
+                    net.updateWeight(layout.unflatten(sum, 0));
+
+                    long end = System.nanoTime();
+                    ring.report(i + 1, count, sum[n + 1] / count, end - start, end - reduce);
+                }
+                if (partition != 0)
+                    return Collections.<float[]>emptyList().iterator();
+                return Collections.singletonList(model.getLayout().flatten(model.stateOf(net))).iterator();
+            } finally {
+                if (ring != null)
+                    ring.close();
+                replica.invalidate();
+                model.release(replica);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.acl.deepspark.nn.driver;
+
+/**
+ * Result of one {@link Evaluator} pass: top-1 / top-k accuracy and the confusion matrix
+ * (confusion[label][predicted]).
+ */
+public class Evaluation {
+    private final int count;
+    private final int correct;
+    private final int topKCorrect;
+    private final int topK;
+    private final long[][] confusion;
+
+    Evaluation(int count, int correct, int topKCorrect, int topK, long[][] confusion) {
+        this.count = count;
+        this.correct = correct;
+        this.topKCorrect = topKCorrect;
+        this.topK = topK;
+        this.confusion = confusion;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // in percent, same scale as printAccuracy()
+    public double getAccuracy() {
+        return (double) correct / count * 100;
+    }
+
+    public double getTopKAccuracy() {
+        return (double) topKCorrect / count * 100;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public long[][] getConfusionMatrix() {
+        return confusion;
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Accuracy: %f %%, top-%d accuracy: %f %% (%d samples)",
+                getAccuracy(), topK, getTopKAccuracy(), count)).append("\n");
+        for (long[] row : confusion) {
+            for (long c : row)
+                builder.append(String.format("%6d", c));
+            builder.append("\n");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,276 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.jblas.FloatMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batched, multithreaded evaluation of a fixed data set.
+ *
+ * Whole batches run through a {@link FrozenNet} that the evaluator keeps across calls: the net is
+ * frozen on the first call, later calls on the same net copy its weights into the frozen tensors only
+ * if they have changed since, and the activation buffers of the FrozenNet stay allocated. Label classes
+ * are computed once when the evaluator is created, and the per-thread input and output batches and
+ * confusion counters are allocated once and reused by every call, so evaluating the same test set after
+ * each epoch does not redo that work.
+ */
+public class Evaluator {
+    public static final int DEFAULT_BATCH_SIZE = 128;
+    public static final int DEFAULT_TOP_K = 5;
+
+    private final Sample[] data;
+    private final int[] labels;
+    private final int numClasses;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int topK = DEFAULT_TOP_K;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    private ExecutorService pool;
+    private FrozenNet frozen;
+    private NeuralNet frozenFrom;
+    private long frozenVersion;
+    private Partial[] partials;
+    private Batch[] batches;
+
+    public Evaluator(Sample[] data) {
+        this.data = data;
+        this.labels = new int[data.length];
+        this.numClasses = data.length > 0 ? data[0].label.length() : 0;
+        for (int i = 0; i < data.length; i++)
+            labels[i] = data[i].label.slice(0, 0).argmax();
+    }
+
+    public Evaluator setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public Evaluator setTopK(int topK) {
+        this.topK = topK;
+        return this;
+    }
+
+    public Evaluator setNumThreads(int numThreads) {
+        if (numThreads != this.numThreads) {
+            shutdown();
+            this.numThreads = numThreads;
+        }
+        return this;
+    }
+
+    public Sample[] getData() {
+        return data;
+    }
+
+    // evaluator of data: current if it evaluates the same array, otherwise a new one after shutting current down
+    public static Evaluator forData(Evaluator current, Sample[] data) {
+        if (current != null && current.data == data)
+            return current;
+        if (current != null)
+            current.shutdown();
+        return new Evaluator(data);
+    }
+
+    public Evaluation evaluate(NeuralNet net) throws InterruptedException {
+        final FrozenNet frozen = freeze(net);
+        final int threads = Math.max(1, numThreads);
+        if (partials == null || partials.length != threads) {
+            partials = new Partial[threads];
+            for (int t = 0; t < threads; t++)
+                partials[t] = new Partial(numClasses);
+        }
+
+        run(frozen, threads, new Worker() {
+            @Override
+            public void process(int t, Batch batch, int from, int to) {
+                int size = frozen.getOutputSize();
+                for (int i = from; i < to; i++)
+                    partials[t].add(labels[i], batch.output, (i - from) * size, size, topK);
+            }
+        });
+
+        int correct = 0, topKCorrect = 0;
+        long[][] confusion = new long[numClasses][numClasses];
+        for (int t = 0; t < threads; t++) {
+            correct += partials[t].correct;
+            topKCorrect += partials[t].topKCorrect;
+            for (int l = 0; l < numClasses; l++)
+                for (int p = 0; p < numClasses; p++)
+                    confusion[l][p] += partials[t].confusion[l * numClasses + p];
+            partials[t].clear();
+        }
+        return new Evaluation(data.length, correct, topKCorrect, topK, confusion);
+    }
+
+    public Tensor[] predict(NeuralNet net) throws InterruptedException {
+        final FrozenNet frozen = freeze(net);
+        final Tensor[] output = new Tensor[data.length];
+        run(frozen, Math.max(1, numThreads), new Worker() {
+            @Override
+            public void process(int t, Batch batch, int from, int to) {
+                int size = frozen.getOutputSize();
+                for (int i = from; i < to; i++) {
+                    int offset = (i - from) * size;
+                    output[i] = Tensor.create(Arrays.copyOfRange(batch.output, offset, offset + size), frozen.getOutputShape());
+                }
+            }
+        });
+        return output;
+    }
+
+    // the kept FrozenNet with the current weights of net; frozen again only for another net or other shapes
+    private FrozenNet freeze(NeuralNet net) {
+        long version = net.getWeightVersion();
+        if (net != frozenFrom || (version != frozenVersion && !frozen.refresh(net.getWeights()))) {
+            frozen = net.freeze();
+            frozenFrom = net;
+        }
+        frozenVersion = version;
+        return frozen;
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    // FrozenNet runs on the CPU BLAS and is shared by all threads, each with its own batch buffers
+    private void run(final FrozenNet frozen, int threads, final Worker worker) throws InterruptedException {
+        final int numBatches = (data.length + batchSize - 1) / batchSize;
+        final AtomicInteger nextBatch = new AtomicInteger();
+        if (batches == null || batches.length != threads || !batches[0].fits(frozen, batchSize)) {
+            batches = new Batch[threads];
+            for (int t = 0; t < threads; t++)
+                batches[t] = new Batch(frozen, batchSize);
+        }
+
+        if (threads == 1) {
+            for (int b = 0; b < numBatches; b++)
+                process(frozen, worker, 0, b);
+            return;
+        }
+
+        if (pool == null)
+            pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "evaluator-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int batch;
+                    while ((batch = nextBatch.getAndIncrement()) < numBatches)
+                        process(frozen, worker, id, batch);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Evaluation failed", e.getCause());
+        }
+    }
+
+    // copies the inputs of batch b into the buffers of thread t, predicts them and hands the outputs to worker
+    private void process(FrozenNet frozen, Worker worker, int t, int b) {
+        Batch batch = batches[t];
+        int from = b * batchSize;
+        int to = Math.min(data.length, from + batchSize);
+        int size = frozen.getInputSize();
+        for (int i = from; i < to; i++) {
+            if (data[i].data.length() != size)
+                throw new IllegalArgumentException(String.format
+                        ("Input size mismatch; expected %d, sample %d has %d", size, i, data[i].data.length()));
+            int pos = (i - from) * size;
+            for (FloatMatrix mat : data[i].data.data()) {
+                System.arraycopy(mat.data, 0, batch.input, pos, mat.length);
+                pos += mat.length;
+            }
+        }
+        frozen.predict(batch.input, 0, batch.output, 0, to - from);
+        worker.process(t, batch, from, to);
+    }
+
+    private interface Worker {
+        void process(int thread, Batch batch, int from, int to);
+    }
+
+    // flat inputs and outputs of one batch, samples back to back
+    private static class Batch {
+        final float[] input;
+        final float[] output;
+
+        Batch(FrozenNet frozen, int batchSize) {
+            this.input = new float[batchSize * frozen.getInputSize()];
+            this.output = new float[batchSize * frozen.getOutputSize()];
+        }
+
+        boolean fits(FrozenNet frozen, int batchSize) {
+            return input.length == batchSize * frozen.getInputSize() && output.length == batchSize * frozen.getOutputSize();
+        }
+    }
+
+    private static class Partial {
+        private final int numClasses;
+        private final long[] confusion;
+        private int correct;
+        private int topKCorrect;
+
+        Partial(int numClasses) {
+            this.numClasses = numClasses;
+            this.confusion = new long[numClasses * numClasses];
+        }
+
+        // output of one sample in out[offset..offset + length)
+        void add(int label, float[] out, int offset, int length, int topK) {
+            // top-1 prediction and rank of the true label, without sorting
+            int predicted = 0;
+            int rank = 0;
+            float target = out[offset + label];
+            for (int c = 0; c < length; c++) {
+                if (out[offset + c] > out[offset + predicted])
+                    predicted = c;
+                if (out[offset + c] > target)
+                    rank++;
+            }
+
+            if (predicted == label)
+                correct++;
+            if (rank < topK)
+                topKCorrect++;
+            confusion[label * numClasses + predicted]++;
+        }
+
+        void clear() {
+            Arrays.fill(confusion, 0);
+            correct = 0;
+            topKCorrect = 0;
+        }
+    }
+}
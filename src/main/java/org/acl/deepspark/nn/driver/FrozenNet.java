@@ -0,0 +1,270 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.layers.Layer;
+import org.acl.deepspark.nn.layers.PoolingLayer;
+import org.jblas.FloatMatrix;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Immutable inference graph created by {@link NeuralNet#freeze()}.
+ *
+ * Weights are copied at freeze time, momentum buffers and pooling argmax masks are dropped, and all
+ * layer shapes are computed once. Activations live in flat buffers that every thread allocates once
+ * (and grows only for a larger batch), so a prediction does not allocate apart from its result.
+ * A FrozenNet can be shared by any number of threads. Inference always runs on the CPU BLAS.
+ *
+ * A FrozenNet created by {@link #map} reads its weights straight from a memory-mapped checkpoint, so
+ * processes serving the same file share one page-cache copy. Each thread copies the weights through
+ * a small panel right before the BLAS call that needs them.
+ */
+public class FrozenNet {
+    private final Layer[] layers;
+    private final Weight[] weights;
+    private final int[] inputShape;
+    private final int[] outputShape;
+    private final int[] sizes;          // floats per sample: sizes[0] input, sizes[i+1] output of layer i
+    private final MemoryPlan plan;
+
+    public static final int DEFAULT_PANEL_SIZE = 1 << 16;
+    private final FloatBuffer[] mappedW;    // null unless mapped
+    private final FloatBuffer[] mappedB;
+    private final int panelSize;
+
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers(1);
+        }
+    };
+
+    FrozenNet(Layer[] layers, Weight[] weights, int[] inputShape) {
+        this(layers, inputShape, new Weight[weights.length], null);
+        for (int i = 0; i < layers.length; i++) {
+            if (weights[i] != null && !(layers[i] instanceof PoolingLayer))
+                this.weights[i] = new Weight(copy(weights[i].w), copy(weights[i].b));
+        }
+    }
+
+    FrozenNet(Layer[] layers, int[] inputShape, Checkpoint.Mapping mapping) {
+        this(layers, inputShape, null, mapping);
+    }
+
+    private FrozenNet(Layer[] layers, int[] inputShape, Weight[] weights, Checkpoint.Mapping mapping) {
+        this.layers = layers;
+        this.weights = weights;
+        this.sizes = new int[layers.length + 1];
+        this.inputShape = inputShape.clone();
+
+        sizes[0] = sampleSize(inputShape);
+        for (int i = 0; i < layers.length; i++)
+            sizes[i+1] = sampleSize(layers[i].calcOutputShape());
+        this.plan = MemoryPlan.forInference(layers, inputShape);
+        this.outputShape = layers.length > 0 ? layers[layers.length - 1].calcOutputShape().clone() : this.inputShape;
+
+        if (mapping == null) {
+            mappedW = mappedB = null;
+            panelSize = 0;
+        } else {
+            mappedW = new FloatBuffer[layers.length];
+            mappedB = new FloatBuffer[layers.length];
+            int panel = DEFAULT_PANEL_SIZE;
+            for (int i = 0; i < layers.length; i++) {
+                if (mapping.getLayout().isPresent(i)) {
+                    mappedW[i] = mapping.getWeights(i, false);
+                    mappedB[i] = mapping.getWeights(i, true);
+                    panel = Math.max(panel, mapping.getLayout().getWeightShape(i)[2]);     // one column of w
+                }
+            }
+            panelSize = panel;
+        }
+    }
+
+    // inference graph of conf whose weights stay in the mapped checkpoint file; no weights are allocated on the heap
+    public static FrozenNet map(NeuralNetConf conf, String path) throws IOException {
+        Layer[] layers = NeuralNet.buildLayers(conf.getLayerList(), conf.getDimIn(), false);
+        int[][] weightShapes = new int[layers.length][];
+        int[][] biasShapes = new int[layers.length][];
+        int[] dimIn = conf.getDimIn();
+        for (int i = 0; i < layers.length; i++) {
+            int[][] shapes = layers[i].calcWeightShapes(dimIn);
+            if (shapes != null) {
+                weightShapes[i] = shapes[0];
+                biasShapes[i] = shapes[1];
+            }
+            dimIn = layers[i].calcOutputShape();
+        }
+
+        Checkpoint.Mapping mapping = Checkpoint.map(path, false);
+        if (!mapping.getLayout().equals(new WeightLayout(weightShapes, biasShapes)))
+            throw new IllegalArgumentException(String.format("Checkpoint does not match the network; %s", path));
+        return new FrozenNet(layers, conf.getDimIn(), mapping);
+    }
+
+    public boolean isMapped() {
+        return mappedW != null;
+    }
+
+    public int[] getInputShape() {
+        return inputShape.clone();
+    }
+
+    public int[] getOutputShape() {
+        return outputShape.clone();
+    }
+
+    public int getInputSize() {
+        return sizes[0];
+    }
+
+    public int getOutputSize() {
+        return sizes[layers.length];
+    }
+
+    public int getNumLayers() {
+        return layers.length;
+    }
+
+    public MemoryPlan getMemoryPlan() {
+        return plan;
+    }
+
+    public Tensor predict(Sample in) {
+        float[] out = new float[getOutputSize()];
+        predict(in.data, out);
+        return Tensor.create(out, outputShape);
+    }
+
+    public Tensor[] predict(Sample[] in) {
+        float[] input = new float[in.length * getInputSize()];
+        float[] output = new float[in.length * getOutputSize()];
+        for (int n = 0; n < in.length; n++)
+            flatten(in[n].data, input, n * getInputSize());
+        predict(input, 0, output, 0, in.length);
+
+        Tensor[] result = new Tensor[in.length];
+        float[] out = new float[getOutputSize()];
+        for (int n = 0; n < in.length; n++) {
+            System.arraycopy(output, n * out.length, out, 0, out.length);
+            result[n] = Tensor.create(out, outputShape);
+        }
+        return result;
+    }
+
+    public void predict(Tensor in, float[] out) {
+        Buffers buf = buffers(1);
+        flatten(in, buf.activations[0], 0);
+        forward(buf, 1);
+        System.arraycopy(buf.activations[layers.length], 0, out, 0, getOutputSize());
+    }
+
+    // in and out hold batch samples back to back, in Tensor.toArray() order
+    public void predict(float[] in, int inOff, float[] out, int outOff, int batch) {
+        Buffers buf = buffers(batch);
+        System.arraycopy(in, inOff, buf.activations[0], 0, batch * getInputSize());
+        forward(buf, batch);
+        System.arraycopy(buf.activations[layers.length], 0, out, outOff, batch * getOutputSize());
+    }
+
+    private void forward(Buffers buf, int batch) {
+        for (int i = 0; i < layers.length; i++) {
+            if (mappedW != null)
+                layers[i].inferMapped(mappedW[i], mappedB[i], buf.activations[i], 0, buf.activations[i+1], 0, batch,
+                        buf.workspaces[i], buf.panel);
+            else
+                layers[i].infer(weights[i], buf.activations[i], 0, buf.activations[i+1], 0, batch, buf.workspaces[i]);
+        }
+    }
+
+    private Buffers buffers(int batch) {
+        Buffers buf = buffers.get();
+        if (buf.capacity < batch) {
+            buf = new Buffers(batch);
+            buffers.set(buf);
+        }
+        return buf;
+    }
+
+    private void flatten(Tensor in, float[] dest, int offset) {
+        if (in.length() != getInputSize())
+            throw new IllegalArgumentException(String.format
+                    ("Input size mismatch; expected %d, input %d", getInputSize(), in.length()));
+        for (FloatMatrix mat : in.data()) {
+            System.arraycopy(mat.data, 0, dest, offset, mat.length);
+            offset += mat.length;
+        }
+    }
+
+    /*
+     * Copies the weights of a net with the same layers into this net's tensors, in place. Returns false,
+     * copying nothing, if they do not match. Only for a FrozenNet that no other thread is using.
+     */
+    boolean refresh(Weight[] weights) {
+        if (isMapped() || weights.length != layers.length)
+            return false;
+        for (int i = 0; i < layers.length; i++) {
+            boolean present = weights[i] != null && !(layers[i] instanceof PoolingLayer);
+            if (present != (this.weights[i] != null) || (present
+                    && (!Arrays.equals(weights[i].w.shape(), this.weights[i].w.shape())
+                    || !Arrays.equals(weights[i].b.shape(), this.weights[i].b.shape()))))
+                return false;
+        }
+        for (int i = 0; i < layers.length; i++) {
+            if (this.weights[i] != null) {
+                copyInto(weights[i].w, this.weights[i].w);
+                copyInto(weights[i].b, this.weights[i].b);
+            }
+        }
+        return true;
+    }
+
+    private static void copyInto(Tensor src, Tensor dest) {
+        FloatMatrix[] from = src.data();
+        FloatMatrix[] to = dest.data();
+        for (int k = 0; k < to.length; k++)
+            System.arraycopy(from[k].data, 0, to[k].data, 0, to[k].length);
+    }
+
+    private static Tensor copy(Tensor t) {
+        return Tensor.create(t.toArray(), t.shape());
+    }
+
+    private static int sampleSize(int[] shape) {
+        int size = 1;
+        for (int i = 1; i < shape.length; i++)
+            size *= shape[i];
+        return size;
+    }
+
+    /* activations and workspaces are views of the slabs assigned by the memory plan */
+    private class Buffers {
+        final int capacity;
+        final float[][] activations;
+        final float[][] workspaces;
+        final float[] panel;
+
+        Buffers(int capacity) {
+            this.capacity = capacity;
+            this.panel = new float[panelSize];
+            float[][] slabs = new float[plan.getNumSlabs()][];
+            for (int s = 0; s < slabs.length; s++)
+                slabs[s] = new float[capacity * plan.getSlabSize(s)];
+
+            this.activations = new float[layers.length + 1][];
+            this.workspaces = new float[layers.length][];
+            for (int i = 0; i <= layers.length; i++)
+                activations[i] = slabs[plan.slabOf(String.format("activated[%d]", i))];
+            for (int i = 0; i < layers.length; i++) {
+                int slab = plan.slabOf(String.format("workspace[%d]", i));
+                workspaces[i] = slab < 0 ? new float[0] : slabs[slab];
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.nn.layers.Layer;
+import org.acl.deepspark.nn.layers.PoolingLayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Static plan of the activation and gradient buffers used by one pass of {@link NeuralNet#train}
+ * or {@link NeuralNet#predict}.
+ *
+ * Every buffer has a lifetime [start, end] in steps of the pass (forward of layer i is step i, backward
+ * of layer i is step 2L-1-i). Buffers whose lifetimes do not overlap are assigned to the same slab, so
+ * the planned footprint is the sum of the slab sizes instead of the sum of all buffers.
+ * Sizes are in floats for one sample.
+ */
+public class MemoryPlan {
+
+    public static class Buffer {
+        private final String name;
+        private final int size;
+        private final int start;
+        private final int end;
+        private int slab = -1;
+
+        Buffer(String name, int size, int start, int end) {
+            this.name = name;
+            this.size = size;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public int getSlab() {
+            return slab;
+        }
+
+        private boolean overlaps(Buffer b) {
+            return start <= b.end && b.start <= end;
+        }
+    }
+
+    private final String title;
+    private final List<Buffer> buffers;
+    private final int numSteps;
+    private int[] slabSizes;
+
+    private MemoryPlan(String title, List<Buffer> buffers, int numSteps) {
+        this.title = title;
+        this.buffers = buffers;
+        this.numSteps = numSteps;
+        assignSlabs();
+    }
+
+    static MemoryPlan forTraining(Layer[] layers, int[] dimIn, Weight[] weights, int checkpointInterval) {
+        int numLayers = layers.length;
+        int last = 2 * numLayers - 1;
+        int k = checkpointInterval > 1 ? checkpointInterval : 1;
+        int lastCheckpoint = (numLayers - 1) / k * k;
+        List<Buffer> buffers = new ArrayList<>();
+
+        // activated[i] is the input of layer i: needed by its forward step and by its gradient
+        buffers.add(new Buffer("activated[0]", sampleSize(dimIn), 0, last));
+        for (int i = 0; i < numLayers; i++) {
+            int[] dimOut = layers[i].calcOutputShape();
+            int backward = last - i;
+
+            // raw output is consumed by activate() right away
+            buffers.add(new Buffer(String.format("output[%d]", i), sampleSize(dimOut), i, i));
+            if ((i + 1) % k == 0 || i + 1 > lastCheckpoint) {
+                buffers.add(new Buffer(String.format("activated[%d]", i + 1), sampleSize(dimOut), i, backward));
+            } else {
+                // dropped after the next layer's forward, recomputed when backprop reaches its segment
+                int segmentEnd = Math.min((i + 1) / k * k + k, numLayers);
+                buffers.add(new Buffer(String.format("activated[%d]", i + 1), sampleSize(dimOut), i, i + 1));
+                buffers.add(new Buffer(String.format("activated[%d] (recomputed)", i + 1), sampleSize(dimOut),
+                        last - (segmentEnd - 1), backward));
+            }
+            // error w.r.t. the layer output and the delta derived from it
+            buffers.add(new Buffer(String.format("error[%d]", i), sampleSize(dimOut), backward - 1, backward));
+            buffers.add(new Buffer(String.format("delta[%d]", i), sampleSize(dimOut), backward, backward));
+            // weight gradients are returned to the caller
+            if (weights[i] != null && !(layers[i] instanceof PoolingLayer))
+                buffers.add(new Buffer(String.format("gradient[%d]", i),
+                        weights[i].w.length() + weights[i].b.length(), backward, last));
+        }
+        return new MemoryPlan(k > 1 ? String.format("training (checkpoint every %d layers)", k) : "training",
+                buffers, last + 1);
+    }
+
+    static MemoryPlan forInference(Layer[] layers, int[] dimIn) {
+        int numLayers = layers.length;
+        List<Buffer> buffers = new ArrayList<>();
+
+        // the output of layer i is dead as soon as layer i+1 has consumed it
+        buffers.add(new Buffer("activated[0]", sampleSize(dimIn), 0, 0));
+        for (int i = 0; i < numLayers; i++) {
+            buffers.add(new Buffer(String.format("activated[%d]", i + 1),
+                    sampleSize(layers[i].calcOutputShape()), i, Math.min(i + 1, numLayers - 1)));
+            if (layers[i].getWorkspaceSize() > 0)
+                buffers.add(new Buffer(String.format("workspace[%d]", i), layers[i].getWorkspaceSize(), i, i));
+        }
+        return new MemoryPlan("inference", buffers, numLayers);
+    }
+
+    public List<Buffer> getBuffers() {
+        return Collections.unmodifiableList(buffers);
+    }
+
+    int slabOf(String name) {
+        for (Buffer b : buffers) {
+            if (b.name.equals(name))
+                return b.slab;
+        }
+        return -1;
+    }
+
+    public int getNumSlabs() {
+        return slabSizes.length;
+    }
+
+    public int getSlabSize(int slab) {
+        return slabSizes[slab];
+    }
+
+    // largest amount of memory live at a single step
+    public long getPeakBytes() {
+        long peak = 0;
+        for (int step = 0; step < numSteps; step++) {
+            long live = 0;
+            for (Buffer b : buffers) {
+                if (b.start <= step && step <= b.end)
+                    live += b.size;
+            }
+            peak = Math.max(peak, live);
+        }
+        return peak * 4;
+    }
+
+    public long getPlannedBytes() {
+        long total = 0;
+        for (int size : slabSizes)
+            total += size;
+        return total * 4;
+    }
+
+    // every buffer held for the whole pass
+    public long getUnsharedBytes() {
+        long total = 0;
+        for (Buffer b : buffers)
+            total += b.size;
+        return total * 4;
+    }
+
+    public String toString() {
+        return String.format("%s memory per sample: peak %s, planned %s in %d slabs, unshared %s",
+                title, formatBytes(getPeakBytes()), formatBytes(getPlannedBytes()), slabSizes.length,
+                formatBytes(getUnsharedBytes()));
+    }
+
+    /* greedy interval colouring, largest buffers first */
+    private void assignSlabs() {
+        List<Buffer> sorted = new ArrayList<>(buffers);
+        Collections.sort(sorted, new Comparator<Buffer>() {
+            @Override
+            public int compare(Buffer a, Buffer b) {
+                return a.size != b.size ? Integer.compare(b.size, a.size) : Integer.compare(a.start, b.start);
+            }
+        });
+
+        List<List<Buffer>> slabs = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (Buffer b : sorted) {
+            int slab = 0;
+            for (; slab < slabs.size(); slab++) {
+                boolean free = true;
+                for (Buffer other : slabs.get(slab)) {
+                    if (other.overlaps(b)) {
+                        free = false;
+                        break;
+                    }
+                }
+                if (free)
+                    break;
+            }
+            if (slab == slabs.size()) {
+                slabs.add(new ArrayList<Buffer>());
+                sizes.add(0);
+            }
+            slabs.get(slab).add(b);
+            sizes.set(slab, Math.max(sizes.get(slab), b.size));
+            b.slab = slab;
+        }
+
+        slabSizes = new int[sizes.size()];
+        for (int i = 0; i < slabSizes.length; i++)
+            slabSizes[i] = sizes.get(i);
+    }
+
+    private static int sampleSize(int[] shape) {
+        int size = 1;
+        for (int i = 1; i < shape.length; i++)
+            size *= shape[i];
+        return size;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes >= 1 << 20)
+            return String.format("%.2f MB", bytes / (double) (1 << 20));
+        if (bytes >= 1 << 10)
+            return String.format("%.2f KB", bytes / (double) (1 << 10));
+        return String.format("%d B", bytes);
+    }
+}
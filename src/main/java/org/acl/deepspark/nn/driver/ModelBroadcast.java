@@ -0,0 +1,163 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Handle through which Spark tasks get a network without serializing it into every task.
+ *
+ * The configuration is broadcast once and the trainable weights are broadcast as one flat block
+ * whenever the driver calls {@link #update}, so a task carries only the model id, the layout and two
+ * broadcast references. On the executors {@link #acquire()} hands out a replica from a JVM-wide cache
+ * keyed by model id: the topology is built once per concurrent task slot, and the weights are copied
+ * in only when the broadcast version differs from the one the replica last loaded.
+ *
+ * With momentum, the block holds the momentum of every trainable layer after the weights, for
+ * runners whose replicas run updateWeight() themselves.
+ */
+class ModelBroadcast implements Serializable {
+
+    private static final long serialVersionUID = -1454367282093569035L;
+
+    // models with replicas kept per executor; older ones are dropped first
+    private static final int MAX_CACHED_MODELS = 4;
+    // idle replicas and partition state of this JVM, by model id
+    private static final Map<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > MAX_CACHED_MODELS;
+        }
+    };
+
+    private final String modelId = UUID.randomUUID().toString();
+    private final Broadcast<NeuralNetConf> conf;
+    private final WeightLayout layout;
+    private final boolean withMomentum;
+    private Broadcast<float[]> weights;
+    private long version;
+
+    ModelBroadcast(JavaSparkContext sc, NeuralNet net) {
+        this(sc, net, false);
+    }
+
+    ModelBroadcast(JavaSparkContext sc, NeuralNet net, boolean withMomentum) {
+        this.withMomentum = withMomentum;
+        this.conf = sc.broadcast(net.getConf());
+        this.layout = new WeightLayout(stateOf(net));
+        this.weights = sc.broadcast(layout.flatten(stateOf(net)));
+    }
+
+    // driver: publishes the current weights of net for the tasks submitted from now on
+    void update(JavaSparkContext sc, NeuralNet net) {
+        Broadcast<float[]> previous = weights;
+        weights = sc.broadcast(layout.flatten(stateOf(net)));
+        version++;
+        previous.unpersist(false);
+    }
+
+    // driver: releases the broadcast blocks once no more tasks use this model
+    void destroy() {
+        weights.destroy(false);
+        conf.destroy(false);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    WeightLayout getLayout() {
+        return layout;
+    }
+
+    // the broadcast part of net: trainable weights, followed by their momentum if enabled
+    Weight[] stateOf(NeuralNet net) {
+        Weight[] weights = net.getTrainableWeights();
+        if (!withMomentum)
+            return weights;
+        Weight[] state = Arrays.copyOf(weights, 2 * weights.length);
+        System.arraycopy(net.getTrainableUpdates(), 0, state, weights.length, weights.length);
+        return state;
+    }
+
+    // executor: a replica holding the broadcast weights, owned by the caller until release()
+    Replica acquire() {
+        Replica replica;
+        synchronized (cache) {
+            replica = cached().idle.poll();
+        }
+        if (replica == null)
+            replica = new Replica(new NeuralNet(conf.value()));
+        if (replica.version != version) {
+            layout.copyInto(weights.value(), 0, stateOf(replica.net));
+            replica.net.weightsChanged();
+            replica.version = version;
+        }
+        return replica;
+    }
+
+    // executor: returns a replica to the cache for the next task on this executor
+    void release(Replica replica) {
+        synchronized (cache) {
+            cached().idle.push(replica);
+        }
+    }
+
+    /*
+     * executor: object kept for one partition of this model from task to task, e.g. the residual of a
+     * compressor; initial is stored and returned unless the partition already has one. State is lost
+     * when the partition runs on another executor.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T partitionLocal(int partition, T initial) {
+        synchronized (cache) {
+            Map<Integer, Object> partitions = cached().partitions;
+            if (!partitions.containsKey(partition))
+                partitions.put(partition, initial);
+            return (T) partitions.get(partition);
+        }
+    }
+
+    private Cached cached() {
+        Cached cached = cache.get(modelId);
+        if (cached == null) {
+            cached = new Cached();
+            cache.put(modelId, cached);
+        }
+        return cached;
+    }
+
+    private static class Cached {
+        final Deque<Replica> idle = new ArrayDeque<>();
+        final Map<Integer, Object> partitions = new HashMap<>();
+    }
+
+    static class Replica {
+        private final NeuralNet net;
+        private long version = -1;
+
+        private Replica(NeuralNet net) {
+            this.net = net;
+        }
+
+        NeuralNet getNet() {
+            return net;
+        }
+
+        // the task replaced the weights, reload them on the next acquire()
+        void invalidate() {
+            version = -1;
+        }
+    }
+}
@@ -8,10 +8,16 @@ import org.acl.deepspark.nn.conf.NeuralNetConf;
 import org.acl.deepspark.nn.layers.ConvolutionLayer;
 import org.acl.deepspark.nn.layers.FullyConnectedLayer;
 import org.acl.deepspark.nn.layers.Layer;
+import org.acl.deepspark.nn.layers.LayerOp;
 import org.acl.deepspark.nn.layers.PoolingLayer;
+import org.acl.deepspark.nn.metrics.LayerMetrics;
+import org.acl.deepspark.nn.metrics.Tracer;
+import org.jblas.FloatMatrix;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Created by Jaehong on 2015-07-16.
@@ -22,29 +28,52 @@ public class NeuralNet implements Serializable {
     public float momentum;
     public float dropOutRate;
     public boolean gpuAccel;
+    public int checkpointInterval;
 
+    private NeuralNetConf conf;
+    private int[]       dimIn;
     private Layer[]     layers;
     private Weight[]    weights;
     private Weight[]    weightUpdates;
 
+    private transient LayerMetrics metrics;
+    private transient float lastLoss;
+    private transient volatile boolean pinned;      // a checkpoint is reading the current tensors, see pinState()
+    private transient long weightVersion;           // bumped whenever the weights change, see weightsChanged()
+
     public NeuralNet(final NeuralNetConf conf) {
+        this.conf = conf;
         learningRate = (float) conf.getLearningRate();
         decayLambda = (float) conf.getDecayLambda();
         momentum = (float) conf.getMomentum();
         dropOutRate = (float) conf.getDropOutRate();
         gpuAccel = (conf.getGpuAccel() == 1.0);
+        checkpointInterval = (conf.getCheckpointInterval() == NeuralNetConf.CHECKPOINT_SQRT) ?
+                (int) Math.ceil(Math.sqrt(conf.getNumLayers())) : conf.getCheckpointInterval();
         initNetwork(conf);
     }
 
     private void initNetwork(final NeuralNetConf conf) {
         int size = conf.getLayerList().size();
-        layers = new Layer[size];
         weights = new Weight[size];
         weightUpdates = new Weight[size];
-        buildNetwork(conf.getLayerList(), conf.getDimIn());
+        dimIn = conf.getDimIn();
+        buildNetwork(conf.getLayerList(), dimIn);
     }
 
     private void buildNetwork(ArrayList<LayerConf> arr, int[] dimIn) {
+        layers = buildLayers(arr, dimIn, gpuAccel);
+        for (int i = 0 ; i< arr.size(); i++) {
+            weights[i] = layers[i].createWeight(arr.get(i), dimIn);
+            dimIn = layers[i].calcOutputShape();
+            if (weights[i] != null)
+                weightUpdates[i] = new Weight(weights[i].getWeightShape(), weights[i].getBiasShape());
+        }
+    }
+
+    // layers of arr without their weights
+    static Layer[] buildLayers(ArrayList<LayerConf> arr, int[] dimIn, boolean gpuAccel) {
+        Layer[] layers = new Layer[arr.size()];
         for (int i = 0 ; i< arr.size(); i++) {
             LayerConf layerConf = arr.get(i);
             switch (layerConf.getType()) {
@@ -58,63 +87,287 @@ public class NeuralNet implements Serializable {
                     layers[i] = new FullyConnectedLayer(dimIn, layerConf, gpuAccel);
                     break;
             }
-            weights[i] = layers[i].createWeight(layerConf, dimIn);
             dimIn = layers[i].calcOutputShape();
-            if (weights[i] != null)
-                weightUpdates[i] = new Weight(weights[i].getWeightShape(), weights[i].getBiasShape());
         }
+        return layers;
+    }
+
+    /*
+     * Replica for another training thread: shares the layers and the trainable tensors with this net
+     * but has its own pooling masks, which train() writes. Only this net may call updateWeight(); the
+     * fork sees in-place changes, tensors replaced on this net reach it through setTrainableWeights().
+     */
+    NeuralNet fork() {
+        NeuralNet fork = new NeuralNet();
+        fork.conf = conf;
+        fork.dimIn = dimIn;
+        fork.layers = layers;
+        fork.weights = weights.clone();
+        fork.weightUpdates = weightUpdates;
+        for (int i = 0; i < layers.length; i++) {
+            if (weights[i] != null && !isTrainable(i))
+                fork.weights[i] = copy(weights[i]);
+        }
+        fork.learningRate = learningRate;
+        fork.decayLambda = decayLambda;
+        fork.momentum = momentum;
+        fork.dropOutRate = dropOutRate;
+        fork.gpuAccel = gpuAccel;
+        fork.checkpointInterval = checkpointInterval;
+        return fork;
+    }
+
+    private NeuralNet() {
     }
 
     public void setWeights(Weight[] weights) {
         this.weights = weights;
+        weightVersion++;
+    }
+
+    // replaces the trainable entries only; null entries of weights and the pooling masks are kept
+    void setTrainableWeights(Weight[] weights) {
+        if (weights.length != layers.length)
+            throw new IllegalArgumentException(String.format
+                    ("Number of layers mismatch; current %d, weights %d", layers.length, weights.length));
+        Weight[] updated = this.weights.clone();
+        for (int i = 0; i < layers.length; i++) {
+            if (isTrainable(i) && weights[i] != null)
+                updated[i] = weights[i];
+        }
+        this.weights = updated;
+        weightVersion++;
     }
 
     public Weight[] getWeights() {
         return weights;
     }
 
+    // changes with every update of the weights, so a frozen copy can tell whether it is still current
+    long getWeightVersion() {
+        return weightVersion;
+    }
+
+    // for callers that overwrite the tensors of getTrainableWeights() in place
+    void weightsChanged() {
+        weightVersion++;
+    }
+
+    // configuration the net was built from, enough to build a replica with the same topology
+    public NeuralNetConf getConf() {
+        return conf;
+    }
+
     public int getNumLayers() {
         return layers.length;
     }
 
+    // starts recording per-layer timings; metrics are not serialized with the net
+    public LayerMetrics enableMetrics() {
+        if (metrics == null)
+            metrics = new LayerMetrics(layers);
+        return metrics;
+    }
+
+    public void disableMetrics() {
+        metrics = null;
+    }
+
+    public LayerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // squared error of the sample passed to the last train() call
+    public float getLastLoss() {
+        return lastLoss;
+    }
+
+    public MemoryPlan planTrainingMemory() {
+        return MemoryPlan.forTraining(layers, dimIn, weights, checkpointInterval);
+    }
+
+    public MemoryPlan planInferenceMemory() {
+        return MemoryPlan.forInference(layers, dimIn);
+    }
+
     public Weight[] train(Sample in) throws Exception {
         Weight[] gradient = new Weight[layers.length];
-        Tensor[] output = new Tensor[layers.length];
         Tensor[] activated = new Tensor[layers.length + 1];
         activated[0] = in.data;
 
+        // with checkpointing, only activated[i] with i % k == 0 and the last segment survive the forward pass
+        int k = checkpointInterval > 1 ? checkpointInterval : 1;
+        int lastCheckpoint = (layers.length - 1) / k * k;
+
+        // raw outputs are not kept; backprop only needs the activations
         for (int i = 0; i < layers.length; i++) {
-            output[i] = layers[i].generateOutput(weights[i], activated[i]);
-            activated[i+1] = layers[i].activate(output[i]);
+            activated[i+1] = forward(i, activated[i]);
+            if (i % k != 0 && i < lastCheckpoint)
+                activated[i] = null;
         }
 
         Tensor delta = activated[layers.length].sub(in.label);
-        System.out.println(delta.mul(delta).sum());
-        
+        lastLoss = 0;
+        for (FloatMatrix d : delta.data())
+            lastLoss += d.dot(d);
+        LayerMetrics m = metrics;
+
         for (int i = layers.length-1; i >= 0; i--) {
+            if (activated[i] == null) {
+                // recompute the segment from its checkpoint
+                long recompute = Tracer.begin();
+                for (int j = i - i % k; j < i; j++)
+                    activated[j+1] = forward(j, activated[j]);
+                Tracer.end("layer", "recompute", i, recompute);
+            }
+
+            long backward = Tracer.begin();
+            if (m != null) m.start();
             delta = layers[i].deriveDelta(activated[i+1], delta);
+            if (m != null) m.stop(i, LayerOp.DERIVE_DELTA);
+            activated[i+1] = null;
+
+            if (m != null) m.start();
             gradient[i] = layers[i].gradient(activated[i], delta);
+            if (m != null) m.stop(i, LayerOp.GRADIENT);
 
-            if (i > 0)
+            if (i > 0) {
+                if (m != null) m.start();
                 delta = layers[i].calculateBackprop(weights[i], delta);
+                if (m != null) m.stop(i, LayerOp.CALCULATE_BACKPROP);
+            }
+            Tracer.end("layer", "backward", i, backward);
         }
         return gradient;
     }
 
     public Tensor predict(Sample in) {
         Tensor activatedOut = in.data;
+        for (int i = 0; i < layers.length; i++)
+            activatedOut = forward(i, activatedOut);
+        return activatedOut;
+    }
+
+    private Tensor forward(int i, Tensor input) {
+        LayerMetrics m = metrics;
+        long start = Tracer.begin();
+        Tensor output;
+        if (m == null) {
+            output = layers[i].activate(layers[i].generateOutput(weights[i], input));
+        } else {
+            m.start();
+            output = layers[i].generateOutput(weights[i], input);
+            m.stop(i, LayerOp.GENERATE_OUTPUT);
+            m.start();
+            output = layers[i].activate(output);
+            m.stop(i, LayerOp.ACTIVATE);
+        }
+        Tracer.end("layer", "forward", i, start);
+        return output;
+    }
+
+    /*
+     * Weights and momentum of the trainable layers (pooling masks are scratch space and left out).
+     * The returned tensors stay unchanged until unpinState(): the next updateWeight() replaces them
+     * with copies before changing anything, so a snapshot costs no copy on the training thread.
+     * Must be called from the thread that calls updateWeight().
+     */
+    Weight[][] pinState() {
+        Weight[] w = new Weight[layers.length];
+        Weight[] u = new Weight[layers.length];
         for (int i = 0; i < layers.length; i++) {
-            Tensor output = layers[i].generateOutput(weights[i], activatedOut);
-            activatedOut = layers[i].activate(output);
+            if (isTrainable(i)) {
+                w[i] = weights[i];
+                u[i] = weightUpdates[i];
+            }
         }
-        return activatedOut;
+        pinned = true;
+        return new Weight[][] {w, u};
+    }
+
+    void unpinState() {
+        pinned = false;
+    }
+
+    // replaces weights (and momentum, if given) of the trainable layers
+    void restoreState(Weight[] w, Weight[] u) {
+        if (w.length != layers.length || (u != null && u.length != layers.length))
+            throw new IllegalArgumentException(String.format
+                    ("Number of layers mismatch; current %d, restored %d", layers.length, w.length));
+
+        for (int i = 0; i < layers.length; i++) {
+            if (isTrainable(i) != (w[i] != null) || (w[i] != null
+                    && (!Arrays.equals(w[i].getWeightShape(), weights[i].getWeightShape())
+                    || !Arrays.equals(w[i].getBiasShape(), weights[i].getBiasShape()))))
+                throw new IllegalArgumentException(String.format("Restored weights do not match layer %d", i));
+            if (w[i] != null) {
+                weights[i] = w[i];
+                weightUpdates[i] = u != null ? u[i] : new Weight(w[i].getWeightShape(), w[i].getBiasShape());
+            }
+        }
+        pinned = false;
+        weightVersion++;
+    }
+
+    // weights with null for the layers train() returns no gradient for
+    public Weight[] getTrainableWeights() {
+        Weight[] trainable = new Weight[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            if (isTrainable(i))
+                trainable[i] = weights[i];
+        }
+        return trainable;
+    }
+
+    // momentum of the trainable layers, null elsewhere
+    Weight[] getTrainableUpdates() {
+        Weight[] trainable = new Weight[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            if (isTrainable(i))
+                trainable[i] = weightUpdates[i];
+        }
+        return trainable;
+    }
+
+    private boolean isTrainable(int i) {
+        return weights[i] != null && !(layers[i] instanceof PoolingLayer);
+    }
+
+    private static Weight copy(Weight weight) {
+        return new Weight(Tensor.create(weight.w.toArray(), weight.w.shape()),
+                Tensor.create(weight.b.toArray(), weight.b.shape()));
+    }
+
+    // snapshot of the current weights as an immutable, thread-safe inference graph
+    public FrozenNet freeze() {
+        return new FrozenNet(layers, weights, dimIn);
+    }
+
+    // inference graph reading the weights from a mapped checkpoint of this net instead of the heap
+    public FrozenNet freezeMapped(String path) throws IOException {
+        Checkpoint.Mapping mapping = Checkpoint.map(path, false);
+        if (!mapping.getLayout().matches(getTrainableWeights()))
+            throw new IllegalArgumentException(String.format("Checkpoint does not match the network; %s", path));
+        return new FrozenNet(layers, dimIn, mapping);
     }
 
     public void updateWeight(Weight[] deltaWeight) {
+        long start = Tracer.begin();
         if (weights.length != deltaWeight.length)
             throw new IllegalArgumentException(String.format
                     ("Number of layers mismatch; current %d, deltaWeight %d", weights.length, deltaWeight.length));
 
+        if (pinned) {
+            // copy on write, the pinned tensors belong to the snapshot from now on
+            for (int i = 0; i < weights.length; i++) {
+                if (isTrainable(i)) {
+                    weights[i] = copy(weights[i]);
+                    weightUpdates[i] = copy(weightUpdates[i]);
+                }
+            }
+            pinned = false;
+        }
+
         for (int i = 0 ; i < weights.length; i++) {
             if (deltaWeight[i] != null) {
                 weightUpdates[i].w.muli(momentum);
@@ -128,5 +381,7 @@ public class NeuralNet implements Serializable {
                 weights[i].b.addi(weightUpdates[i].b);
             }
         }
+        weightVersion++;
+        Tracer.end("update", "updateWeight", start);
     }
 }
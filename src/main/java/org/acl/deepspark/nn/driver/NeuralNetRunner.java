@@ -1,9 +1,18 @@
 package org.acl.deepspark.nn.driver;
 
 import org.acl.deepspark.data.Accumulator;
+import org.acl.deepspark.data.EpochSampler;
 import org.acl.deepspark.data.Sample;
 import org.acl.deepspark.data.Tensor;
-import org.jblas.util.Random;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.nn.metrics.TrainingListener;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+import org.acl.deepspark.nn.metrics.Tracer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Created by Jaehong on 2015-07-16.
@@ -11,9 +20,17 @@ import org.jblas.util.Random;
 public class NeuralNetRunner {
     private NeuralNet net;
     private Accumulator weightAccum;
+    private Evaluator evaluator;
+    private List<TrainingListener> listeners = new ArrayList<>();
 
     private int iteration;
+    private int epochs;
     private int batchSize;
+    private EpochSampler.Mode samplingMode = EpochSampler.Mode.PERMUTATION;
+    private long seed = new Random().nextLong();
+    private String checkpointDir;
+    private int checkpointInterval;
+    private int startIteration;
 
     public NeuralNetRunner(NeuralNet net) {
         this.net = net;
@@ -25,43 +42,109 @@ public class NeuralNetRunner {
         return this;
     }
 
+    // overrides setIterations() with enough iterations to pass over the data the given number of times
+    public NeuralNetRunner setEpochs(int epochs) {
+        this.epochs = epochs;
+        return this;
+    }
+
     public NeuralNetRunner setMiniBatchSize(int batchSize) {
         this.batchSize = batchSize;
         return this;
     }
 
+    public NeuralNetRunner setSamplingMode(EpochSampler.Mode samplingMode) {
+        this.samplingMode = samplingMode;
+        return this;
+    }
+
+    public NeuralNetRunner setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // writes a checkpoint into directory every interval iterations, see CheckpointWriter
+    public NeuralNetRunner setCheckpoints(String directory, int interval) {
+        this.checkpointDir = directory;
+        this.checkpointInterval = interval;
+        return this;
+    }
+
+    // restores weights and momentum from a checkpoint and continues after the iterations it covers
+    public NeuralNetRunner resume(String path) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(path);
+        checkpoint.restore(net);
+        startIteration = (int) checkpoint.getIteration();
+        return this;
+    }
+
+    public NeuralNetRunner addListener(TrainingListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
     public void train(Sample[] data) throws Exception {
         int dataSize = data.length;
-        for (int i = 0 ; i < iteration; i++) {
-        	System.out.println(String.format("%d(th) iteration...", i + 1));
+        EpochSampler sampler = new EpochSampler(dataSize, samplingMode, seed);
+        if (epochs > 0)
+            iteration = (int) (((long) epochs * dataSize + batchSize - 1) / batchSize);
+        System.out.println(net.planTrainingMemory());
+        TrainingMonitor monitor = new TrainingMonitor(listeners);
+        CheckpointWriter checkpoints = checkpointDir != null ? new CheckpointWriter(checkpointDir, checkpointInterval) : null;
+        sampler.seek((long) startIteration * batchSize);
 
+        for (int i = startIteration; i < iteration; i++) {
+            int epoch = sampler.getEpoch() + 1;
+        	System.out.println(String.format("%d(th) iteration... (epoch %d)", i + 1, epoch));
+
+            long start = System.nanoTime();
+            long dataWait = 0;
+            double loss = 0;
+            long step = Tracer.begin();
             for (int j = 0; j < batchSize; j++) {
-                weightAccum.accumulate(net.train(data[Random.nextInt(dataSize)]));
+                long fetch = System.nanoTime();
+                Sample sample = data[sampler.next()];
+                long fetched = System.nanoTime();
+                dataWait += fetched - fetch;
+                Tracer.record("data", "fetch", -1, fetch, fetched);
+
+                Weight[] gradient = net.train(sample);
+                long accumulate = Tracer.begin();
+                weightAccum.accumulate(gradient);
+                Tracer.end("update", "accumulate", accumulate);
+                loss += net.getLastLoss();
             }
+            long update = System.nanoTime();
             net.updateWeight(weightAccum.getAverage());
             weightAccum.clear();
+            Tracer.end("step", "iteration", i + 1, step);
+            if (checkpoints != null)
+                checkpoints.maybeSnapshot(net, i + 1);
+
+            long end = System.nanoTime();
+            monitor.iteration(i + 1, epoch, batchSize, loss / batchSize, end - start, dataWait, end - update);
         }
+        monitor.close();
+        if (checkpoints != null)
+            checkpoints.close();
     }
 
-    public Tensor[] predict(Sample[] data) {
-        Tensor[] output = new Tensor[data.length];
-        for (int i = 0 ; i < data.length ; i++)
-            output[i] = predict(data[i]);
-        return output;
+    public Tensor[] predict(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.predict(net);
     }
 
     public Tensor predict(Sample data) {
         return net.predict(data);
     }
 
-    public double printAccuracy(Sample[] data) {
-        int count = 0;
-        for (Sample sample : data) {
-            Tensor output = net.predict(sample);
-            if (sample.label.slice(0,0).argmax() == output.slice(0,0).argmax())
-                count++;
-        }
-        return (double) count / data.length * 100;
+    public double printAccuracy(Sample[] data) throws InterruptedException {
+        return evaluate(data).getAccuracy();
+    }
+
+    public Evaluation evaluate(Sample[] data) throws InterruptedException {
+        evaluator = Evaluator.forData(evaluator, data);
+        return evaluator.evaluate(net);
     }
 
 }
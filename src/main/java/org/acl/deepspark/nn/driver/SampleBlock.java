@@ -0,0 +1,74 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.EpochSampler;
+import org.acl.deepspark.data.Sample;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.Function;
+import org.apache.spark.api.java.function.Function2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * All samples of one partition as a single cached record, so a task can pick its share of a minibatch
+ * by index instead of iterating the partition.
+ *
+ * The sampler is rebuilt from (seed, partition) whenever the block is recomputed, so the indices
+ * drawn at a given iteration do not depend on where or how often the block was cached.
+ */
+class SampleBlock implements Serializable {
+
+    private static final long serialVersionUID = 2783307714962520118L;
+
+    private final Sample[] samples;
+    private final int partition;
+    private transient EpochSampler sampler;
+
+    SampleBlock(Sample[] samples, int partition) {
+        this.samples = samples;
+        this.partition = partition;
+    }
+
+    int size() {
+        return samples.length;
+    }
+
+    // the samples drawn by this block at positions [start, start + count) of its sampling stream
+    Sample[] take(long start, int count, EpochSampler.Mode mode, long seed) {
+        if (sampler == null)
+            sampler = new EpochSampler(samples.length, mode, seed + partition);
+        Sample[] taken = new Sample[count];
+        for (int i = 0; i < count; i++)
+            taken[i] = samples[sampler.indexAt(start + i)];
+        return taken;
+    }
+
+    // one cached block per partition of data
+    static JavaRDD<SampleBlock> cache(JavaRDD<Sample> data) {
+        return data.mapPartitionsWithIndex(new ToBlock(), true).cache();
+    }
+
+    static List<Integer> sizes(JavaRDD<SampleBlock> blocks) {
+        return blocks.map(new Size()).collect();
+    }
+
+    private static class ToBlock implements Function2<Integer, Iterator<Sample>, Iterator<SampleBlock>> {
+        @Override
+        public Iterator<SampleBlock> call(Integer partition, Iterator<Sample> samples) {
+            List<Sample> list = new ArrayList<>();
+            while (samples.hasNext())
+                list.add(samples.next());
+            return Collections.singletonList(new SampleBlock(list.toArray(new Sample[list.size()]), partition)).iterator();
+        }
+    }
+
+    private static class Size implements Function<SampleBlock, Integer> {
+        @Override
+        public Integer call(SampleBlock block) {
+            return block.size();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.acl.deepspark.nn.driver;
+
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.Function2;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Multi-level reduce of an RDD, as RDD.treeAggregate does in later Spark versions.
+ *
+ * With depth d the partitions are merged in d-1 shuffle rounds, each dividing their number by
+ * p^(1/d), before the driver merges what is left. A plain reduce (depth 1) makes the driver merge
+ * one value per partition.
+ */
+final class TreeReduce {
+
+    private TreeReduce() {
+    }
+
+    static <T> T reduce(JavaRDD<T> rdd, Function2<T, T, T> merge, int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException(String.format("Depth must be positive; depth %d", depth));
+
+        int numPartitions = rdd.partitions().size();
+        int scale = Math.max((int) Math.ceil(Math.pow(numPartitions, 1.0 / depth)), 2);
+        while (numPartitions > scale + (int) Math.ceil((double) numPartitions / scale)) {
+            numPartitions /= scale;
+            rdd = JavaPairRDD.fromJavaRDD(rdd.mapPartitionsWithIndex(new KeyByPartition<T>(numPartitions), false))
+                    .reduceByKey(new HashPartitioner(numPartitions), merge)
+                    .values();
+        }
+        return rdd.reduce(merge);
+    }
+
+    private static class KeyByPartition<T> implements Function2<Integer, Iterator<T>, Iterator<Tuple2<Integer, T>>> {
+        private final int numKeys;
+
+        KeyByPartition(int numKeys) {
+            this.numKeys = numKeys;
+        }
+
+        @Override
+        public Iterator<Tuple2<Integer, T>> call(Integer partition, Iterator<T> values) {
+            List<Tuple2<Integer, T>> keyed = new ArrayList<>();
+            while (values.hasNext())
+                keyed.add(new Tuple2<>(partition % numKeys, values.next()));
+            return keyed.iterator();
+        }
+    }
+}
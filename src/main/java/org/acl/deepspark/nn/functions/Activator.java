@@ -11,4 +11,7 @@ public abstract class Activator implements Serializable {
 
 	public abstract Tensor output(Tensor input);
 	public abstract Tensor derivative(Tensor activated);
+
+	// in-place output on a flat buffer holding one matrix (column-major) of a tensor
+	public abstract void outputi(float[] data, int offset, int length);
 }
@@ -55,6 +55,12 @@ public class ActivatorFactory implements Serializable {
 						}
 						return null;
 					}
+
+					@Override
+					public void outputi(float[] data, int offset, int length) {
+						for (int i = offset; i < offset + length; i++)
+							data[i] = (float) (1.0 / (1.0 + Math.exp(-data[i])));
+					}
 				};
 			
 			case RECTIFIED_LINEAR:
@@ -100,6 +106,14 @@ public class ActivatorFactory implements Serializable {
 						}
 						return null;
 					}
+
+					@Override
+					public void outputi(float[] data, int offset, int length) {
+						for (int i = offset; i < offset + length; i++) {
+							if (data[i] < 0.0f)
+								data[i] = 0.0f;
+						}
+					}
 				};
 
 			case SOFTMAX: // only for output
@@ -148,6 +162,17 @@ public class ActivatorFactory implements Serializable {
 						}
 						return null;
 					}
+
+					@Override
+					public void outputi(float[] data, int offset, int length) {
+						float sum = 0.0f;
+						for (int i = offset; i < offset + length; i++) {
+							data[i] = (float) Math.exp(data[i]);
+							sum += data[i];
+						}
+						for (int i = offset; i < offset + length; i++)
+							data[i] /= sum;
+					}
 				};
 			case NONE:
 				return new Activator() {
@@ -177,6 +202,10 @@ public class ActivatorFactory implements Serializable {
 							return activated.dup();
 						return null;
 					}
+
+					@Override
+					public void outputi(float[] data, int offset, int length) {
+					}
 				};
 
 			case TANH:
@@ -220,6 +249,12 @@ public class ActivatorFactory implements Serializable {
 						}
 						return null;
 					}
+
+					@Override
+					public void outputi(float[] data, int offset, int length) {
+						for (int i = offset; i < offset + length; i++)
+							data[i] = (float) Math.tanh(data[i]);
+					}
 				};
 
 			default:
@@ -1,6 +1,7 @@
 package org.acl.deepspark.nn.layers;
 
 import java.io.Serializable;
+import java.nio.FloatBuffer;
 
 
 public abstract class BaseLayer implements Layer,Serializable {
@@ -18,4 +19,11 @@ public abstract class BaseLayer implements Layer,Serializable {
 		return dimIn;
 	}
 
+	// bulk copy without moving the position of a buffer shared by several threads
+	protected static void read(FloatBuffer src, int pos, float[] dest, int length) {
+		FloatBuffer view = src.duplicate();
+		view.position(pos);
+		view.get(dest, 0, length);
+	}
+
 }
@@ -10,9 +10,11 @@ import org.acl.deepspark.nn.functions.ActivatorFactory;
 import org.acl.deepspark.nn.functions.ActivatorType;
 import org.acl.deepspark.utils.ArrayUtils;
 import org.jblas.FloatMatrix;
+import org.jblas.NativeBlas;
 import org.jblas.ranges.RangeUtils;
 
 import java.io.Serializable;
+import java.nio.FloatBuffer;
 
 public class ConvolutionLayer extends BaseLayer implements Serializable {
 	private int kernels;
@@ -21,6 +23,7 @@ public class ConvolutionLayer extends BaseLayer implements Serializable {
 	private int padding;
 	private boolean gpuAccel;
 	private Activator activator;
+	private int[] dimOut;
 
 	private static final long serialVersionUID = 140807767171115076L;
 
@@ -72,6 +75,11 @@ public class ConvolutionLayer extends BaseLayer implements Serializable {
 						WeightFactory.create(typeB, valueB, kernels));
 	}
 
+	@Override
+	public int[][] calcWeightShapes(int[] input) {
+		return new int[][] {{1, 1, kernelRow*kernelCol*input[1], kernels}, {1, 1, 1, kernels}};
+	}
+
 	@Override
 	public Tensor generateOutput(Weight weight, Tensor input) {
 		int channels = getDimIn()[1];
@@ -137,11 +145,13 @@ public class ConvolutionLayer extends BaseLayer implements Serializable {
 
 	@Override
 	public int[] calcOutputShape() {
-		int[] dimOut = new int[] {
-				getDimIn()[0],										// # of batch processed (currently 1)
-				kernels,											// # of featureMaps
-				(getDimIn()[2]-kernelRow+2*padding)/stride + 1,  	// featureMap width
-				(getDimIn()[3]-kernelCol+2*padding)/stride + 1}; 	// featureMap height
+		if (dimOut == null) {
+			dimOut = new int[] {
+					getDimIn()[0],										// # of batch processed (currently 1)
+					kernels,											// # of featureMaps
+					(getDimIn()[2]-kernelRow+2*padding)/stride + 1,  	// featureMap width
+					(getDimIn()[3]-kernelCol+2*padding)/stride + 1}; 	// featureMap height
+		}
 		return dimOut;
 	}
 
@@ -175,4 +185,112 @@ public class ConvolutionLayer extends BaseLayer implements Serializable {
 		}
 		return ArrayUtils.centerCrop(backProp, padding);
 	}
+
+	@Override
+	public long getFlops(LayerOp op) {
+		int[] dimOut = calcOutputShape();
+		long outputs = (long) kernels * dimOut[2]*dimOut[3];
+		long macs = outputs * kernelRow*kernelCol*getDimIn()[1];
+		switch (op) {
+			case GENERATE_OUTPUT:		return 2*macs + outputs;
+			case ACTIVATE:				return outputs;
+			case DERIVE_DELTA:			return 2*outputs;
+			case GRADIENT:				return 2*macs;
+			case CALCULATE_BACKPROP:	return 2*macs;
+		}
+		return 0;
+	}
+
+	@Override
+	public int getWorkspaceSize() {
+		int[] dimOut = calcOutputShape();
+		return kernelRow*kernelCol*getDimIn()[1] * dimOut[2]*dimOut[3];
+	}
+
+	@Override
+	public void infer(Weight weight, float[] in, int inOff, float[] out, int outOff, int batch, float[] workspace) {
+		int[] dimIn = getDimIn();
+		int channels = dimIn[1];
+		int rowKernels = calcOutputShape()[2];
+		int colKernels = calcOutputShape()[3];
+		int positions = rowKernels*colKernels;
+		int patch = kernelRow*kernelCol*channels;
+		int inSize = channels*dimIn[2]*dimIn[3];
+		float[] bias = weight.b.data()[0].data;
+
+		for (int n = 0; n < batch; n++) {
+			int inBase = inOff + n*inSize;
+			int outBase = outOff + n*kernels*positions;
+
+			im2col(in, inBase, workspace);
+
+			// (positions x patch) * (patch x kernels) is already laid out as kernels feature maps
+			NativeBlas.sgemm('N', 'N', positions, kernels, patch, 1.0f, workspace, 0, positions,
+					weight.w.data()[0].data, 0, patch, 0.0f, out, outBase, positions);
+			for (int k = 0; k < kernels; k++) {
+				int offset = outBase + k*positions;
+				for (int i = 0; i < positions; i++)
+					out[offset + i] += bias[k];
+				activator.outputi(out, offset, positions);
+			}
+		}
+	}
+
+	@Override
+	public void inferMapped(FloatBuffer w, FloatBuffer b, float[] in, int inOff, float[] out, int outOff, int batch,
+							float[] workspace, float[] panel) {
+		int[] dimIn = getDimIn();
+		int positions = calcOutputShape()[2]*calcOutputShape()[3];
+		int patch = kernelRow*kernelCol*dimIn[1];
+		int inSize = dimIn[1]*dimIn[2]*dimIn[3];
+		int columns = Math.max(1, panel.length / patch);
+
+		for (int n = 0; n < batch; n++) {
+			int outBase = outOff + n*kernels*positions;
+			im2col(in, inOff + n*inSize, workspace);
+
+			// kernels are contiguous in w; a panel holding all of them is read once per call
+			for (int k = 0; k < kernels; k += columns) {
+				int count = Math.min(columns, kernels - k);
+				if (n == 0 || columns < kernels)
+					read(w, k*patch, panel, count*patch);
+				NativeBlas.sgemm('N', 'N', positions, count, patch, 1.0f, workspace, 0, positions,
+						panel, 0, patch, 0.0f, out, outBase + k*positions, positions);
+			}
+			for (int k = 0; k < kernels; k++) {
+				int offset = outBase + k*positions;
+				float bias = b.get(k);
+				for (int i = 0; i < positions; i++)
+					out[offset + i] += bias;
+				activator.outputi(out, offset, positions);
+			}
+		}
+	}
+
+	/* same (positions x patch) matrix as generateOutput(), zero padding resolved on the fly */
+	private void im2col(float[] in, int inBase, float[] workspace) {
+		int[] dimIn = getDimIn();
+		int channels = dimIn[1];
+		int rowKernels = calcOutputShape()[2];
+		int colKernels = calcOutputShape()[3];
+		int positions = rowKernels*colKernels;
+
+		for (int ch = 0; ch < channels; ch++) {
+			int chBase = inBase + ch*dimIn[2]*dimIn[3];
+			for (int kc = 0; kc < kernelCol; kc++) {
+				for (int kr = 0; kr < kernelRow; kr++) {
+					int col = (ch*kernelCol + kc)*kernelRow + kr;
+					int dest = col*positions;
+					for (int c = 0; c < colKernels; c++) {
+						int inCol = c*stride + kc - padding;
+						for (int r = 0; r < rowKernels; r++) {
+							int inRow = r*stride + kr - padding;
+							workspace[dest++] = (inRow < 0 || inRow >= dimIn[2] || inCol < 0 || inCol >= dimIn[3]) ?
+									0.0f : in[chBase + inCol*dimIn[2] + inRow];
+						}
+					}
+				}
+			}
+		}
+	}
 }
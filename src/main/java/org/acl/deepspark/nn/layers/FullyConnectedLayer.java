@@ -9,13 +9,16 @@ import org.acl.deepspark.nn.functions.Activator;
 import org.acl.deepspark.nn.functions.ActivatorFactory;
 import org.acl.deepspark.nn.functions.ActivatorType;
 import org.acl.deepspark.utils.ArrayUtils;
+import org.jblas.NativeBlas;
 
 import java.io.Serializable;
+import java.nio.FloatBuffer;
 
 
 // Fully Connected HiddenLayer
 public class FullyConnectedLayer extends BaseLayer implements Serializable {
 	private int 		dimOut;
+	private int[]		outputShape;
 	private boolean gpuAccel;
 	private Activator 	activator;
 
@@ -83,9 +86,16 @@ public class FullyConnectedLayer extends BaseLayer implements Serializable {
 		return activator.output(output);
 	}
 
+	@Override
+	public int[][] calcWeightShapes(int[] input) {
+		return new int[][] {{1, 1, input[1]*input[2]*input[3], dimOut}, {1, 1, 1, dimOut}};
+	}
+
 	@Override
 	public int[] calcOutputShape() {
-		return new int[] { getDimIn()[0], 1, 1, dimOut };
+		if (outputShape == null)
+			outputShape = new int[] { getDimIn()[0], 1, 1, dimOut };
+		return outputShape;
 	}
 
 	@Override
@@ -93,4 +103,62 @@ public class FullyConnectedLayer extends BaseLayer implements Serializable {
 		Tensor data = weight.w.mmul(delta.transpose(), gpuAccel);
 		return data.reshape(getDimIn());
 	}
+
+	@Override
+	public long getFlops(LayerOp op) {
+		int[] dimIn = getDimIn();
+		long weights = (long) dimIn[1]*dimIn[2]*dimIn[3] * dimOut;
+		switch (op) {
+			case GENERATE_OUTPUT:		return 2*weights + dimOut;
+			case ACTIVATE:				return dimOut;
+			case DERIVE_DELTA:			return 2*dimOut;
+			case GRADIENT:				return weights;
+			case CALCULATE_BACKPROP:	return 2*weights;
+		}
+		return 0;
+	}
+
+	@Override
+	public int getWorkspaceSize() {
+		return 0;
+	}
+
+	@Override
+	public void infer(Weight weight, float[] in, int inOff, float[] out, int outOff, int batch, float[] workspace) {
+		int[] dimIn = getDimIn();
+		int length = dimIn[1]*dimIn[2]*dimIn[3];
+		float[] bias = weight.b.data()[0].data;
+
+		// out = transpose(w) * [in_1 .. in_batch], every sample being one column
+		NativeBlas.sgemm('T', 'N', dimOut, batch, length, 1.0f, weight.w.data()[0].data, 0, length,
+				in, inOff, length, 0.0f, out, outOff, dimOut);
+		for (int n = 0; n < batch; n++) {
+			int offset = outOff + n*dimOut;
+			for (int i = 0; i < dimOut; i++)
+				out[offset + i] += bias[i];
+			activator.outputi(out, offset, dimOut);
+		}
+	}
+
+	@Override
+	public void inferMapped(FloatBuffer w, FloatBuffer b, float[] in, int inOff, float[] out, int outOff, int batch,
+							float[] workspace, float[] panel) {
+		int[] dimIn = getDimIn();
+		int length = dimIn[1]*dimIn[2]*dimIn[3];
+		int columns = Math.max(1, panel.length / length);
+
+		// columns of w are contiguous, so every panel holds a block of output units
+		for (int j = 0; j < dimOut; j += columns) {
+			int count = Math.min(columns, dimOut - j);
+			read(w, j*length, panel, count*length);
+			NativeBlas.sgemm('T', 'N', count, batch, length, 1.0f, panel, 0, length,
+					in, inOff, length, 0.0f, out, outOff + j, dimOut);
+		}
+		for (int n = 0; n < batch; n++) {
+			int offset = outOff + n*dimOut;
+			for (int i = 0; i < dimOut; i++)
+				out[offset + i] += b.get(i);
+			activator.outputi(out, offset, dimOut);
+		}
+	}
 }
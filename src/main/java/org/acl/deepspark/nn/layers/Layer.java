@@ -4,10 +4,13 @@ import org.acl.deepspark.data.Tensor;
 import org.acl.deepspark.data.Weight;
 import org.acl.deepspark.nn.conf.LayerConf;
 
+import java.nio.FloatBuffer;
+
 public interface Layer {
 
 	// initialization
 	public abstract Weight	createWeight(LayerConf conf, int[] input);
+	public abstract int[][]	calcWeightShapes(int[] input);						// {weight, bias} shapes of trainable weights, null if none
 	public abstract int[]	calcOutputShape();
 	
 	// feedForward
@@ -19,4 +22,14 @@ public interface Layer {
 	public abstract Weight	gradient(Tensor input, Tensor error); 				// compute dJ/dw = input * delta
 	public abstract Tensor	calculateBackprop(Weight weight, Tensor error);  	// compute backprop delta = transpose(w) * error
 
+	// inference on flat buffers (Tensor.toArray() order, samples stored back to back), see FrozenNet
+	public abstract int		getWorkspaceSize();									// scratch floats needed by infer()
+	public abstract void	infer(Weight weight, float[] in, int inOff, float[] out, int outOff, int batch, float[] workspace);
+	// infer() with weight and bias read from buffers (e.g. a mapped checkpoint), copied through panel piece by piece
+	public abstract void	inferMapped(FloatBuffer w, FloatBuffer b, float[] in, int inOff, float[] out, int outOff, int batch,
+										float[] workspace, float[] panel);
+
+	// estimated floating point operations of one step for a single sample
+	public abstract long	getFlops(LayerOp op);
+
 }
@@ -0,0 +1,6 @@
+package org.acl.deepspark.nn.layers;
+
+// steps of Layer used by one training pass
+public enum LayerOp {
+    GENERATE_OUTPUT, ACTIVATE, DERIVE_DELTA, GRADIENT, CALCULATE_BACKPROP
+}
@@ -7,6 +7,7 @@ import org.jblas.FloatMatrix;
 import org.jblas.ranges.RangeUtils;
 
 import java.io.Serializable;
+import java.nio.FloatBuffer;
 
 public class PoolingLayer extends BaseLayer implements Serializable, Layer {
 	/**
@@ -16,6 +17,7 @@ public class PoolingLayer extends BaseLayer implements Serializable, Layer {
 	private int kernelRow;
 	private int kernelCol;
 	private int stride;
+	private int[] dimOut;
 
 	private static final long serialVersionUID = -4318643106939173007L;
 
@@ -38,10 +40,19 @@ public class PoolingLayer extends BaseLayer implements Serializable, Layer {
 		return weight;
 	}
 
+	// the argmax masks of createWeight() are not trained
+	@Override
+	public int[][] calcWeightShapes(int[] input) {
+		return null;
+	}
+
 	@Override
 	public int[] calcOutputShape() {
-		int[] dimIn = getDimIn();
-		return new int[] {dimIn[0], dimIn[1], (dimIn[2]- kernelRow)/stride+1, (dimIn[3]- kernelCol)/stride+1};
+		if (dimOut == null) {
+			int[] dimIn = getDimIn();
+			dimOut = new int[] {dimIn[0], dimIn[1], (dimIn[2]- kernelRow)/stride+1, (dimIn[3]- kernelCol)/stride+1};
+		}
+		return dimOut;
 	}
 
 	@Override
@@ -96,4 +107,51 @@ public class PoolingLayer extends BaseLayer implements Serializable, Layer {
 		}
 		return propDelta;
 	}
+
+	@Override
+	public long getFlops(LayerOp op) {
+		int[] dimOut = calcOutputShape();
+		long outputs = (long) dimOut[1]*dimOut[2]*dimOut[3];
+		switch (op) {
+			case GENERATE_OUTPUT:		return outputs * kernelRow*kernelCol;		// comparisons
+			case CALCULATE_BACKPROP:	return outputs;						// scatter to the argmax
+			default:					return 0;
+		}
+	}
+
+	@Override
+	public int getWorkspaceSize() {
+		return 0;
+	}
+
+	/* max pooling without recording the argmax mask, which only backprop needs */
+	@Override
+	public void infer(Weight weight, float[] in, int inOff, float[] out, int outOff, int batch, float[] workspace) {
+		int[] dimIn = getDimIn();
+		int[] dimOut = calcOutputShape();
+		int inSize = dimIn[2]*dimIn[3];
+		int outSize = dimOut[2]*dimOut[3];
+
+		for (int m = 0; m < batch*dimIn[1]; m++) {
+			int inBase = inOff + m*inSize;
+			int dest = outOff + m*outSize;
+			for (int c = 0; c < dimOut[3]; c++) {
+				for (int r = 0; r < dimOut[2]; r++) {
+					float max = Float.NEGATIVE_INFINITY;
+					for (int kc = 0; kc < kernelCol; kc++) {
+						int pos = inBase + (c*stride + kc)*dimIn[2] + r*stride;
+						for (int kr = 0; kr < kernelRow; kr++)
+							max = Math.max(max, in[pos + kr]);
+					}
+					out[dest++] = max;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void inferMapped(FloatBuffer w, FloatBuffer b, float[] in, int inOff, float[] out, int outOff, int batch,
+							float[] workspace, float[] panel) {
+		infer(null, in, inOff, out, outOff, batch, workspace);
+	}
 }
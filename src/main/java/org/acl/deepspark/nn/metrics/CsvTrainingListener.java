@@ -0,0 +1,71 @@
+package org.acl.deepspark.nn.metrics;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+// one row per iteration and per epoch; times in milliseconds, columns that do not apply are empty
+public class CsvTrainingListener implements TrainingListener {
+    private static final String HEADER = "type,timestamp,epoch,iteration,iterations,samples,loss,samples_per_sec," +
+            "step_ms,step_p50_ms,step_p90_ms,step_p99_ms,data_wait_ms,update_ms";
+
+    private final Writer writer;
+
+    public CsvTrainingListener(String path) throws IOException {
+        this(new BufferedWriter(new FileWriter(path)));
+    }
+
+    public CsvTrainingListener(Writer writer) throws IOException {
+        this.writer = writer;
+        writer.write(HEADER);
+        writer.write('\n');
+    }
+
+    @Override
+    public void onIteration(IterationEvent e) {
+        write(String.format(Locale.ROOT, "iteration,%d,%d,%d,,%d,%s,%.3f,%.3f,,,,%.3f,%.3f", e.getTimestamp(), e.getEpoch(),
+                e.getIteration(), e.getSamples(), loss(e.getLoss()), e.getSamplesPerSec(), e.getStepNanos() / 1e6,
+                e.getDataWaitNanos() / 1e6, e.getUpdateNanos() / 1e6));
+    }
+
+    @Override
+    public void onEpoch(EpochEvent e) {
+        write(String.format(Locale.ROOT, "epoch,%d,%d,,%d,%d,%s,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f", e.getTimestamp(), e.getEpoch(),
+                e.getIterations(), e.getSamples(), loss(e.getLoss()), e.getSamplesPerSec(), e.getNanos() / 1e6,
+                e.getStepP50Nanos() / 1e6, e.getStepP90Nanos() / 1e6, e.getStepP99Nanos() / 1e6,
+                e.getDataWaitNanos() / 1e6, e.getUpdateNanos() / 1e6));
+        flush();
+    }
+
+    @Override
+    public void onTrainingEnd() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write(String line) {
+        try {
+            writer.write(line);
+            writer.write('\n');
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String loss(double loss) {
+        return Double.isNaN(loss) ? "" : String.format(Locale.ROOT, "%.6f", loss);
+    }
+}
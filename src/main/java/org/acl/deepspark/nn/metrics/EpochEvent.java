@@ -0,0 +1,87 @@
+package org.acl.deepspark.nn.metrics;
+
+// summary of the iterations of one epoch, step latency quantiles are accurate to a factor of two
+public class EpochEvent {
+    private final long timestamp;
+    private final int epoch;
+    private final int iterations;
+    private final long samples;
+    private final double loss;
+    private final long nanos;
+    private final long stepP50Nanos;
+    private final long stepP90Nanos;
+    private final long stepP99Nanos;
+    private final long dataWaitNanos;
+    private final long updateNanos;
+
+    public EpochEvent(int epoch, int iterations, long samples, double loss, long nanos,
+                      long stepP50Nanos, long stepP90Nanos, long stepP99Nanos, long dataWaitNanos, long updateNanos) {
+        this.timestamp = System.currentTimeMillis();
+        this.epoch = epoch;
+        this.iterations = iterations;
+        this.samples = samples;
+        this.loss = loss;
+        this.nanos = nanos;
+        this.stepP50Nanos = stepP50Nanos;
+        this.stepP90Nanos = stepP90Nanos;
+        this.stepP99Nanos = stepP99Nanos;
+        this.dataWaitNanos = dataWaitNanos;
+        this.updateNanos = updateNanos;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    // mean over the iterations of the epoch
+    public double getLoss() {
+        return loss;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public double getSamplesPerSec() {
+        return nanos == 0 ? 0.0 : samples * 1e9 / nanos;
+    }
+
+    public long getStepP50Nanos() {
+        return stepP50Nanos;
+    }
+
+    public long getStepP90Nanos() {
+        return stepP90Nanos;
+    }
+
+    public long getStepP99Nanos() {
+        return stepP99Nanos;
+    }
+
+    // totals over the epoch
+    public long getDataWaitNanos() {
+        return dataWaitNanos;
+    }
+
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    public String toString() {
+        return String.format("epoch %d: %d iterations, loss %.6f, %.1f samples/s, step p50 %.2f ms p90 %.2f ms p99 %.2f ms, data wait %.1f ms, update %.1f ms",
+                epoch, iterations, loss, getSamplesPerSec(), stepP50Nanos / 1e6, stepP90Nanos / 1e6, stepP99Nanos / 1e6,
+                dataWaitNanos / 1e6, updateNanos / 1e6);
+    }
+}
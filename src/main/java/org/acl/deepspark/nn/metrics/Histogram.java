@@ -0,0 +1,78 @@
+package org.acl.deepspark.nn.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative longs with power-of-two buckets.
+ * Bucket b holds values in [2^(b-1), 2^b), bucket 0 holds 0, so quantiles are accurate to a factor of two.
+ */
+public class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : sum.get() / (double) n;
+    }
+
+    // upper bound of the bucket holding the q-quantile, capped by the largest recorded value
+    public long getQuantile(double q) {
+        if (q < 0.0 || q > 1.0)
+            throw new IllegalArgumentException(String.format("Invalid quantile; %f", q));
+
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += buckets.get(b);
+            if (seen >= rank)
+                return Math.min(b == 0 ? 0 : (1L << b) - 1, max.get());
+        }
+        return max.get();
+    }
+
+    public long[] getBuckets() {
+        long[] result = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++)
+            result[b] = buckets.get(b);
+        return result;
+    }
+
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++)
+            buckets.set(b, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,67 @@
+package org.acl.deepspark.nn.metrics;
+
+// one weight update; times are in nanoseconds, loss is NaN where the runner cannot observe it
+public class IterationEvent {
+    private final long timestamp;
+    private final int iteration;
+    private final int epoch;
+    private final int samples;
+    private final double loss;
+    private final long stepNanos;
+    private final long dataWaitNanos;
+    private final long updateNanos;
+
+    public IterationEvent(int iteration, int epoch, int samples, double loss,
+                          long stepNanos, long dataWaitNanos, long updateNanos) {
+        this.timestamp = System.currentTimeMillis();
+        this.iteration = iteration;
+        this.epoch = epoch;
+        this.samples = samples;
+        this.loss = loss;
+        this.stepNanos = stepNanos;
+        this.dataWaitNanos = dataWaitNanos;
+        this.updateNanos = updateNanos;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    // mean squared error per sample
+    public double getLoss() {
+        return loss;
+    }
+
+    public long getStepNanos() {
+        return stepNanos;
+    }
+
+    public long getDataWaitNanos() {
+        return dataWaitNanos;
+    }
+
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    public double getSamplesPerSec() {
+        return stepNanos == 0 ? 0.0 : samples * 1e9 / stepNanos;
+    }
+
+    public String toString() {
+        return String.format("iteration %d (epoch %d): loss %.6f, %.1f samples/s, step %.2f ms, data wait %.2f ms, update %.2f ms",
+                iteration, epoch, loss, getSamplesPerSec(), stepNanos / 1e6, dataWaitNanos / 1e6, updateNanos / 1e6);
+    }
+}
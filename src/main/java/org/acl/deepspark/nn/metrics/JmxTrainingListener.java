@@ -0,0 +1,103 @@
+package org.acl.deepspark.nn.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+// publishes the latest training numbers under org.acl.deepspark:type=Training,name=<name>
+public class JmxTrainingListener implements TrainingListener, TrainingStatsMXBean {
+    private final ObjectName objectName;
+
+    private volatile IterationEvent iteration;
+    private volatile EpochEvent epoch;
+
+    public JmxTrainingListener(String name) throws JMException {
+        objectName = new ObjectName("org.acl.deepspark:type=Training,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    }
+
+    // the bean stays registered after training so the final numbers can still be read
+    public void unregister() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    @Override
+    public void onIteration(IterationEvent event) {
+        iteration = event;
+    }
+
+    @Override
+    public void onEpoch(EpochEvent event) {
+        epoch = event;
+    }
+
+    @Override
+    public void onTrainingEnd() {
+    }
+
+    @Override
+    public int getIteration() {
+        IterationEvent e = iteration;
+        return e == null ? 0 : e.getIteration();
+    }
+
+    @Override
+    public int getEpoch() {
+        IterationEvent e = iteration;
+        return e == null ? 0 : e.getEpoch();
+    }
+
+    @Override
+    public double getLoss() {
+        IterationEvent e = iteration;
+        return e == null ? Double.NaN : e.getLoss();
+    }
+
+    @Override
+    public double getSamplesPerSec() {
+        IterationEvent e = iteration;
+        return e == null ? 0.0 : e.getSamplesPerSec();
+    }
+
+    @Override
+    public double getStepMillis() {
+        IterationEvent e = iteration;
+        return e == null ? 0.0 : e.getStepNanos() / 1e6;
+    }
+
+    @Override
+    public double getDataWaitMillis() {
+        IterationEvent e = iteration;
+        return e == null ? 0.0 : e.getDataWaitNanos() / 1e6;
+    }
+
+    @Override
+    public double getUpdateMillis() {
+        IterationEvent e = iteration;
+        return e == null ? 0.0 : e.getUpdateNanos() / 1e6;
+    }
+
+    @Override
+    public double getEpochLoss() {
+        EpochEvent e = epoch;
+        return e == null ? Double.NaN : e.getLoss();
+    }
+
+    @Override
+    public double getEpochSamplesPerSec() {
+        EpochEvent e = epoch;
+        return e == null ? 0.0 : e.getSamplesPerSec();
+    }
+
+    @Override
+    public double getEpochStepP50Millis() {
+        EpochEvent e = epoch;
+        return e == null ? 0.0 : e.getStepP50Nanos() / 1e6;
+    }
+
+    @Override
+    public double getEpochStepP99Millis() {
+        EpochEvent e = epoch;
+        return e == null ? 0.0 : e.getStepP99Nanos() / 1e6;
+    }
+}
@@ -0,0 +1,174 @@
+package org.acl.deepspark.nn.metrics;
+
+import org.acl.deepspark.nn.layers.Layer;
+import org.acl.deepspark.nn.layers.LayerOp;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Wall time, estimated FLOPs and allocated bytes of every layer step of {@link org.acl.deepspark.nn.driver.NeuralNet}.
+ *
+ * Metrics are opt-in per net (see NeuralNet.enableMetrics()); a disabled net only pays a null check per step.
+ * Allocated bytes come from the HotSpot per-thread allocation counter and are reported as 0 on other VMs.
+ */
+public class LayerMetrics implements LayerMetricsMXBean {
+    private static final LayerOp[] OPS = LayerOp.values();
+    private static final com.sun.management.ThreadMXBean ALLOCATION = allocationCounter();
+
+    private final String[] names;
+    private final long[][] flops;
+    private final Histogram[][] nanos;
+    private final Histogram[][] bytes;
+    private ObjectName objectName;
+
+    // start time and allocated bytes of the step running on each thread
+    private final ThreadLocal<long[]> probes = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    public LayerMetrics(Layer[] layers) {
+        names = new String[layers.length];
+        flops = new long[layers.length][OPS.length];
+        nanos = new Histogram[layers.length][OPS.length];
+        bytes = new Histogram[layers.length][OPS.length];
+        for (int i = 0; i < layers.length; i++) {
+            names[i] = String.format("%d %s", i, layers[i].getClass().getSimpleName());
+            for (LayerOp op : OPS) {
+                flops[i][op.ordinal()] = layers[i].getFlops(op);
+                nanos[i][op.ordinal()] = new Histogram();
+                bytes[i][op.ordinal()] = new Histogram();
+            }
+        }
+    }
+
+    public void start() {
+        long[] probe = probes.get();
+        probe[1] = allocatedBytes();
+        probe[0] = System.nanoTime();
+    }
+
+    public void stop(int layer, LayerOp op) {
+        long end = System.nanoTime();
+        long[] probe = probes.get();
+        nanos[layer][op.ordinal()].record(end - probe[0]);
+        if (ALLOCATION != null)
+            bytes[layer][op.ordinal()].record(allocatedBytes() - probe[1]);
+    }
+
+    public int getNumLayers() {
+        return names.length;
+    }
+
+    public Histogram getNanos(int layer, LayerOp op) {
+        return nanos[layer][op.ordinal()];
+    }
+
+    public Histogram getAllocatedBytes(int layer, LayerOp op) {
+        return bytes[layer][op.ordinal()];
+    }
+
+    // estimated per call, i.e. per sample
+    public long getFlops(int layer, LayerOp op) {
+        return flops[layer][op.ordinal()];
+    }
+
+    public double getGflops(int layer, LayerOp op) {
+        Histogram h = nanos[layer][op.ordinal()];
+        return h.getSum() == 0 ? 0.0 : (double) flops[layer][op.ordinal()] * h.getCount() / h.getSum();
+    }
+
+    @Override
+    public long getTotalNanos() {
+        long total = 0;
+        for (Histogram[] layer : nanos) {
+            for (Histogram h : layer)
+                total += h.getSum();
+        }
+        return total;
+    }
+
+    @Override
+    public double getTotalGflops() {
+        double total = 0;
+        for (int i = 0; i < names.length; i++) {
+            for (int op = 0; op < OPS.length; op++)
+                total += (double) flops[i][op] * nanos[i][op].getCount();
+        }
+        long elapsed = getTotalNanos();
+        return elapsed == 0 ? 0.0 : total / elapsed;
+    }
+
+    @Override
+    public String[] getReport() {
+        String[] report = new String[names.length * OPS.length];
+        for (int i = 0; i < names.length; i++) {
+            for (LayerOp op : OPS) {
+                Histogram h = nanos[i][op.ordinal()];
+                report[i * OPS.length + op.ordinal()] = String.format(
+                        "%-24s %-18s calls %8d  mean %10.1f us  p50 %10.1f us  p99 %10.1f us  %7.2f GFLOP/s  %10.0f B/call",
+                        names[i], op, h.getCount(), h.getMean() / 1e3, h.getQuantile(0.5) / 1e3,
+                        h.getQuantile(0.99) / 1e3, getGflops(i, op), bytes[i][op.ordinal()].getMean());
+            }
+        }
+        return report;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < names.length; i++) {
+            for (int op = 0; op < OPS.length; op++) {
+                nanos[i][op].reset();
+                bytes[i][op].reset();
+            }
+        }
+    }
+
+    // registers under org.acl.deepspark:type=LayerMetrics,name=<name>
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (objectName != null)
+            server.unregisterMBean(objectName);
+        objectName = new ObjectName("org.acl.deepspark:type=LayerMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("layer metrics: %.2f GFLOP/s over %.1f ms",
+                getTotalGflops(), getTotalNanos() / 1e6));
+        for (String line : getReport())
+            builder.append('\n').append(line);
+        return builder.toString();
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATION == null ? 0 : ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+                if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled())
+                    return counter;
+            }
+        } catch (LinkageError e) {
+            // not a HotSpot VM
+        }
+        return null;
+    }
+}
@@ -0,0 +1,9 @@
+package org.acl.deepspark.nn.metrics;
+
+// JMX view of LayerMetrics, one report line per layer step
+public interface LayerMetricsMXBean {
+    public String[] getReport();
+    public long getTotalNanos();
+    public double getTotalGflops();
+    public void reset();
+}
@@ -0,0 +1,68 @@
+package org.acl.deepspark.nn.metrics;
+
+import java.io.IOException;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logs every logInterval-th iteration and every epoch through java.util.logging.
+ * With a file pattern the log rolls over after limit bytes, keeping count files (see FileHandler).
+ */
+public class LogTrainingListener implements TrainingListener {
+    public static final int DEFAULT_LIMIT = 10 << 20;
+    public static final int DEFAULT_COUNT = 5;
+    public static final int DEFAULT_LOG_INTERVAL = 100;
+
+    private final Logger logger;
+    private final Handler handler;
+    private final int logInterval;
+
+    // logs to the handlers of the given logger
+    public LogTrainingListener(Logger logger, int logInterval) {
+        this.logger = logger;
+        this.handler = null;
+        this.logInterval = logInterval;
+    }
+
+    public LogTrainingListener(String pattern) throws IOException {
+        this(pattern, DEFAULT_LIMIT, DEFAULT_COUNT, DEFAULT_LOG_INTERVAL);
+    }
+
+    public LogTrainingListener(String pattern, int limit, int count, int logInterval) throws IOException {
+        this.logger = Logger.getLogger(LogTrainingListener.class.getName() + "." + pattern);
+        this.logInterval = logInterval;
+        this.handler = new FileHandler(pattern, limit, count, true);
+        handler.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                return String.format("%tF %<tT %s%n", record.getMillis(), record.getMessage());
+            }
+        });
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+    }
+
+    @Override
+    public void onIteration(IterationEvent event) {
+        if (logInterval > 0 && event.getIteration() % logInterval == 0)
+            logger.log(Level.INFO, event.toString());
+    }
+
+    @Override
+    public void onEpoch(EpochEvent event) {
+        logger.log(Level.INFO, event.toString());
+    }
+
+    @Override
+    public void onTrainingEnd() {
+        logger.log(Level.INFO, "training finished");
+        if (handler != null) {
+            logger.removeHandler(handler);
+            handler.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.acl.deepspark.nn.metrics;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide timeline of training phases, exported in the Chrome trace event format
+ * (load the file in chrome://tracing or Perfetto).
+ *
+ * Every thread records into its own fixed-size ring buffer, so recording never allocates and a long
+ * running job only keeps the most recent events. When tracing is disabled begin() and end() cost one
+ * volatile read. Event names and categories are expected to be constants.
+ *
+ * The ring of a thread that has died is written by the next dump and then released, so threads that come
+ * and go (Spark tasks, server threads) do not pile up rings while tracing stays enabled.
+ */
+public final class Tracer {
+    public static final int DEFAULT_CAPACITY = 16384;          // events per thread
+    private static final long OFF = Long.MIN_VALUE;
+
+    private static volatile boolean enabled;
+    private static volatile int capacity = DEFAULT_CAPACITY;
+    private static final long origin = System.nanoTime();
+    private static final List<Ring> rings = new CopyOnWriteArrayList<>();
+
+    private static final ThreadLocal<Ring> local = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread(), capacity);
+            rings.add(ring);
+            return ring;
+        }
+    };
+
+    private Tracer() {
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    // capacity applies to threads that record their first event afterwards
+    public static void enable(int capacityPerThread) {
+        if (capacityPerThread <= 0)
+            throw new IllegalArgumentException(String.format("Invalid trace capacity; %d", capacityPerThread));
+        capacity = capacityPerThread;
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void clear() {
+        for (Ring ring : rings) {
+            if (ring.isDead())
+                rings.remove(ring);
+            else
+                ring.clear();
+        }
+    }
+
+    public static long begin() {
+        return enabled ? System.nanoTime() : OFF;
+    }
+
+    public static void end(String category, String name, long start) {
+        end(category, name, -1, start);
+    }
+
+    // arg is shown as "index" in the trace, e.g. the layer number; -1 for none
+    public static void end(String category, String name, int arg, long start) {
+        end(category, name, arg, -1, start);
+    }
+
+    // bytes is shown as "bytes" in the trace, e.g. the size of a transfer; -1 for none
+    public static void end(String category, String name, int arg, long bytes, long start) {
+        if (start != OFF)
+            local.get().record(category, name, arg, bytes, start, System.nanoTime() - start);
+    }
+
+    // for phases already timed with System.nanoTime() by the caller
+    public static void record(String category, String name, int arg, long start, long end) {
+        if (enabled)
+            local.get().record(category, name, arg, -1, start, end - start);
+    }
+
+    public static void writeChromeTrace(String path) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(path))) {
+            writeChromeTrace(writer);
+        }
+    }
+
+    public static void writeChromeTrace(Writer writer) throws IOException {
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Ring ring : rings) {
+            // a dead thread records nothing more, so its ring is released once written
+            boolean dead = ring.isDead();
+            if (!first)
+                writer.write(',');
+            first = false;
+            writer.write(String.format("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":%s,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                    pid, ring.tid, escape(ring.threadName)));
+
+            Ring copy = ring.snapshot();
+            for (int i = 0; i < copy.size; i++) {
+                writer.write(String.format(Locale.ROOT, "\n,{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":%s,\"tid\":%d",
+                        escape(copy.names[i]), escape(copy.categories[i]), (copy.starts[i] - origin) / 1e3,
+                        copy.durations[i] / 1e3, pid, ring.tid));
+                writer.write(args(copy.args[i], copy.bytes[i]));
+            }
+            if (dead)
+                rings.remove(ring);
+        }
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+
+    private static String args(int index, long bytes) {
+        if (index < 0 && bytes < 0)
+            return "}";
+        if (bytes < 0)
+            return String.format(",\"args\":{\"index\":%d}}", index);
+        if (index < 0)
+            return String.format(",\"args\":{\"bytes\":%d}}", bytes);
+        return String.format(",\"args\":{\"index\":%d,\"bytes\":%d}}", index, bytes);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /* events in recording order once snapshot() has unrolled the ring */
+    private static class Ring {
+        final WeakReference<Thread> thread;
+        final long tid;
+        final String threadName;
+        final String[] categories;
+        final String[] names;
+        final int[] args;
+        final long[] bytes;
+        final long[] starts;
+        final long[] durations;
+        long count;
+        int size;
+
+        Ring(Thread thread, int capacity) {
+            this.thread = new WeakReference<>(thread);
+            this.tid = thread.getId();
+            this.threadName = thread.getName();
+            this.categories = new String[capacity];
+            this.names = new String[capacity];
+            this.args = new int[capacity];
+            this.bytes = new long[capacity];
+            this.starts = new long[capacity];
+            this.durations = new long[capacity];
+        }
+
+        boolean isDead() {
+            Thread t = thread.get();
+            return t == null || !t.isAlive();
+        }
+
+        synchronized void record(String category, String name, int arg, long bytes, long start, long duration) {
+            int i = (int) (count++ % names.length);
+            categories[i] = category;
+            names[i] = name;
+            args[i] = arg;
+            this.bytes[i] = bytes;
+            starts[i] = start;
+            durations[i] = duration;
+            size = (int) Math.min(count, names.length);
+        }
+
+        synchronized void clear() {
+            count = 0;
+            size = 0;
+        }
+
+        synchronized Ring snapshot() {
+            Ring copy = new Ring(Thread.currentThread(), size);
+            int first = (int) ((count - size) % names.length);
+            for (int n = 0; n < size; n++) {
+                int i = (first + n) % names.length;
+                copy.categories[n] = categories[i];
+                copy.names[n] = names[i];
+                copy.args[n] = args[i];
+                copy.bytes[n] = bytes[i];
+                copy.starts[n] = starts[i];
+                copy.durations[n] = durations[i];
+            }
+            copy.size = size;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.acl.deepspark.nn.metrics;
+
+/**
+ * Receives training progress from the runners.
+ *
+ * Callbacks are delivered by the {@link TrainingMonitor} dispatcher thread, never by the training
+ * thread, so a slow listener delays its own events but not the training loop.
+ */
+public interface TrainingListener {
+    public void onIteration(IterationEvent event);
+    public void onEpoch(EpochEvent event);
+    public void onTrainingEnd();
+}
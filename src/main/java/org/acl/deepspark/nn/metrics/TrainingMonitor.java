@@ -0,0 +1,144 @@
+package org.acl.deepspark.nn.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects per-iteration measurements from a runner, folds them into epoch summaries and hands both
+ * to the {@link TrainingListener}s through a bounded queue.
+ *
+ * The training thread never blocks on a listener: events are offered to the queue and dropped (and
+ * counted) when it is full. A daemon dispatcher drains the queue in batches and calls the listeners.
+ * Without listeners no thread is started and iteration() returns immediately.
+ */
+public class TrainingMonitor {
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+    private static final Object END = new Object();
+
+    private final List<TrainingListener> listeners;
+    private final BlockingQueue<Object> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private Thread dispatcher;
+
+    // current epoch, touched by the reporting thread only
+    private final Histogram steps = new Histogram();
+    private int epoch = -1;
+    private int iterations;
+    private long samples;
+    private double lossSum;
+    private int lossCount;
+    private long dataWaitNanos;
+    private long updateNanos;
+
+    public TrainingMonitor(List<TrainingListener> listeners) {
+        this(listeners, DEFAULT_QUEUE_SIZE);
+    }
+
+    public TrainingMonitor(List<TrainingListener> listeners, int queueSize) {
+        this.listeners = new ArrayList<>(listeners);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        if (!this.listeners.isEmpty()) {
+            dispatcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, "training-monitor");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+    }
+
+    public boolean isEnabled() {
+        return dispatcher != null;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public synchronized void iteration(int iteration, int epoch, int samples, double loss,
+                                       long stepNanos, long dataWaitNanos, long updateNanos) {
+        if (dispatcher == null)
+            return;
+        if (epoch != this.epoch) {
+            endEpoch();
+            this.epoch = epoch;
+        }
+
+        iterations++;
+        this.samples += samples;
+        if (!Double.isNaN(loss)) {
+            lossSum += loss;
+            lossCount++;
+        }
+        steps.record(stepNanos);
+        this.dataWaitNanos += dataWaitNanos;
+        this.updateNanos += updateNanos;
+        post(new IterationEvent(iteration, epoch, samples, loss, stepNanos, dataWaitNanos, updateNanos));
+    }
+
+    // summarizes the iterations reported since the last epoch boundary
+    public synchronized void endEpoch() {
+        if (dispatcher == null || iterations == 0)
+            return;
+
+        post(new EpochEvent(epoch, iterations, samples, lossCount == 0 ? Double.NaN : lossSum / lossCount,
+                steps.getSum(), steps.getQuantile(0.5), steps.getQuantile(0.9), steps.getQuantile(0.99),
+                dataWaitNanos, updateNanos));
+        steps.reset();
+        iterations = 0;
+        samples = 0;
+        lossSum = 0;
+        lossCount = 0;
+        dataWaitNanos = 0;
+        updateNanos = 0;
+    }
+
+    // flushes the last epoch and waits until every listener has seen onTrainingEnd()
+    public synchronized void close() throws InterruptedException {
+        if (dispatcher == null)
+            return;
+        endEpoch();
+        queue.put(END);
+        dispatcher.join();
+        dispatcher = null;
+    }
+
+    private void post(Object event) {
+        if (!queue.offer(event))
+            dropped.incrementAndGet();
+    }
+
+    private void dispatch() {
+        List<Object> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Object event : batch) {
+                    for (TrainingListener listener : listeners) {
+                        try {
+                            if (event == END)
+                                listener.onTrainingEnd();
+                            else if (event instanceof IterationEvent)
+                                listener.onIteration((IterationEvent) event);
+                            else
+                                listener.onEpoch((EpochEvent) event);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    if (event == END)
+                        return;
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.acl.deepspark.nn.metrics;
+
+// JMX view of the latest iteration and epoch seen by a JmxTrainingListener
+public interface TrainingStatsMXBean {
+    public int getIteration();
+    public int getEpoch();
+    public double getLoss();
+    public double getSamplesPerSec();
+    public double getStepMillis();
+    public double getDataWaitMillis();
+    public double getUpdateMillis();
+
+    public double getEpochLoss();
+    public double getEpochSamplesPerSec();
+    public double getEpochStepP50Millis();
+    public double getEpochStepP99Millis();
+}
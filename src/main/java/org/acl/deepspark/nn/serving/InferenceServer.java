@@ -0,0 +1,127 @@
+package org.acl.deepspark.nn.serving;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.acl.deepspark.nn.metrics.Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP front end of a {@link MicroBatcher}.
+ *
+ *   POST /predict   body: little-endian float32 samples back to back in Tensor.toArray() order
+ *                   response: little-endian float32 outputs, one block per sample
+ *   GET  /metrics   latency, queue wait and batch size histograms as text
+ *
+ * Handler threads block until their micro-batch has run, so the pool is sized for several full
+ * batches per worker.
+ */
+public class InferenceServer {
+    private final MicroBatcher batcher;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    public InferenceServer(MicroBatcher batcher, InetSocketAddress address, int handlerThreads) throws IOException {
+        // headers and body go out as separate writes; without TCP_NODELAY every reply waits for a delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.batcher = batcher;
+        this.server = HttpServer.create(address, 0);
+        this.handlers = Executors.newFixedThreadPool(handlerThreads);
+        server.setExecutor(handlers);
+        server.createContext("/predict", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                predict(exchange);
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                reply(exchange, 200, "text/plain", metrics().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    public InferenceServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlers.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String metrics() {
+        return format("latency_us", batcher.getLatency(), 1e3) + format("queue_wait_us", batcher.getQueueWait(), 1e3)
+                + format("batch_size", batcher.getBatchSizes(), 1);
+    }
+
+    private void predict(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            reply(exchange, 405, "text/plain", "POST only\n".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        byte[] body = readAll(exchange.getRequestBody());
+        int inputBytes = 4 * batcher.getNet().getInputSize();
+        if (body.length == 0 || body.length % inputBytes != 0) {
+            reply(exchange, 400, "text/plain", String.format("Body must hold a multiple of %d bytes, got %d\n",
+                    inputBytes, body.length).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        float[] input = new float[body.length / 4];
+        ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(input);
+        float[] output;
+        try {
+            output = batcher.predict(input, body.length / inputBytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply(exchange, 503, "text/plain", "interrupted\n".getBytes(StandardCharsets.UTF_8));
+            return;
+        } catch (RuntimeException e) {
+            reply(exchange, 500, "text/plain", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(4 * output.length).order(ByteOrder.LITTLE_ENDIAN);
+        result.asFloatBuffer().put(output);
+        reply(exchange, 200, "application/octet-stream", result.array());
+    }
+
+    private static void reply(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        for (int n; (n = is.read(chunk)) > 0; )
+            buf.write(chunk, 0, n);
+        return buf.toByteArray();
+    }
+
+    private static String format(String name, Histogram h, double scale) {
+        return String.format("%s count %d mean %.1f p50 %.1f p99 %.1f max %.1f%n", name, h.getCount(), h.getMean() / scale,
+                h.getQuantile(0.5) / scale, h.getQuantile(0.99) / scale, h.getMax() / scale);
+    }
+}
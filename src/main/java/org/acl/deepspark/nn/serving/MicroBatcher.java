@@ -0,0 +1,212 @@
+package org.acl.deepspark.nn.serving;
+
+import org.acl.deepspark.nn.driver.FrozenNet;
+import org.acl.deepspark.nn.metrics.Histogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers concurrent prediction requests into micro-batches for one batched {@link FrozenNet} pass.
+ *
+ * A worker takes the oldest request and keeps adding queued requests until the batch holds maxBatch
+ * samples or maxWait has passed since the oldest request arrived, whichever comes first. A request
+ * that would overflow the batch is carried over to the next one; a single request larger than
+ * maxBatch runs alone.
+ */
+public class MicroBatcher {
+    public static final int DEFAULT_MAX_BATCH = 32;
+    public static final long DEFAULT_MAX_WAIT_MICROS = 2000;
+
+    private final FrozenNet net;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    private final Histogram latency = new Histogram();       // nanoseconds from submit to result
+    private final Histogram queueWait = new Histogram();     // nanoseconds from submit to batch start
+    private final Histogram batchSizes = new Histogram();    // samples per forward pass
+
+    public MicroBatcher(FrozenNet net) {
+        this(net, DEFAULT_MAX_BATCH, DEFAULT_MAX_WAIT_MICROS, Runtime.getRuntime().availableProcessors());
+    }
+
+    public MicroBatcher(FrozenNet net, int maxBatch, long maxWaitMicros, int numWorkers) {
+        if (maxBatch <= 0 || maxWaitMicros < 0 || numWorkers <= 0)
+            throw new IllegalArgumentException(String.format("Invalid batching; maxBatch %d, maxWait %d us, workers %d",
+                    maxBatch, maxWaitMicros, numWorkers));
+        this.net = net;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.workers = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "micro-batcher-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public FrozenNet getNet() {
+        return net;
+    }
+
+    // input holds count samples back to back in Tensor.toArray() order; blocks until the batch ran
+    public float[] predict(float[] input, int count) throws InterruptedException {
+        if (count <= 0 || input.length != count * net.getInputSize())
+            throw new IllegalArgumentException(String.format("Input size mismatch; expected %d floats per sample, input %d for %d samples",
+                    net.getInputSize(), input.length, count));
+        if (!running)
+            throw new IllegalStateException("MicroBatcher is shut down");
+
+        Request request = new Request(input, count);
+        queue.add(request);
+        if (!running && queue.remove(request))
+            throw new IllegalStateException("MicroBatcher is shut down");
+        request.done.await();
+        if (request.failure != null)
+            throw new IllegalStateException("Batched prediction failed", request.failure);
+        return request.output;
+    }
+
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public Histogram getQueueWait() {
+        return queueWait;
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    public void shutdown() throws InterruptedException {
+        running = false;
+        for (Thread worker : workers)
+            worker.join();
+        for (Request request : queue) {
+            request.failure = new IllegalStateException("MicroBatcher is shut down");
+            request.done.countDown();
+        }
+    }
+
+    private void work() {
+        List<Request> batch = new ArrayList<>();
+        Request carry = null;
+        float[] input = new float[0];
+        float[] output = new float[0];
+
+        try {
+            while (running || carry != null) {
+                try {
+                    Request first = carry != null ? carry : queue.poll(100, TimeUnit.MILLISECONDS);
+                    carry = null;
+                    if (first == null)
+                        continue;
+
+                    batch.add(first);
+                    int samples = first.count;
+                    long deadline = first.submitted + maxWaitNanos;
+                    while (samples < maxBatch) {
+                        long remaining = deadline - System.nanoTime();
+                        Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (next == null)
+                            break;
+                        if (samples + next.count > maxBatch) {
+                            carry = next;
+                            break;
+                        }
+                        batch.add(next);
+                        samples += next.count;
+                    }
+
+                    if (input.length < samples * net.getInputSize()) {
+                        input = new float[samples * net.getInputSize()];
+                        output = new float[samples * net.getOutputSize()];
+                    }
+                    run(batch, samples, input, output);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Throwable e) {
+                    // the batch fails, the worker goes on with the next one
+                    fail(batch, e);
+                } finally {
+                    fail(batch, new IllegalStateException("MicroBatcher worker stopped"));
+                    batch.clear();
+                }
+            }
+        } finally {
+            if (carry != null)
+                fail(Collections.singletonList(carry), new IllegalStateException("MicroBatcher worker stopped"));
+        }
+    }
+
+    // completes the requests of batch that are still waiting with failure
+    private static void fail(List<Request> batch, Throwable failure) {
+        for (Request r : batch) {
+            if (r.done.getCount() > 0) {
+                r.failure = failure;
+                r.done.countDown();
+            }
+        }
+    }
+
+    private void run(List<Request> batch, int samples, float[] input, float[] output) {
+        long start = System.nanoTime();
+        int offset = 0;
+        for (Request r : batch) {
+            System.arraycopy(r.input, 0, input, offset, r.input.length);
+            offset += r.input.length;
+            queueWait.record(start - r.submitted);
+        }
+        batchSizes.record(samples);
+
+        // an Error (e.g. a missing native BLAS) fails this batch only; work() completes what is left
+        Throwable failure = null;
+        try {
+            net.predict(input, 0, output, 0, samples);
+        } catch (Throwable e) {
+            failure = e;
+        }
+
+        offset = 0;
+        long end = System.nanoTime();
+        for (Request r : batch) {
+            if (failure == null) {
+                r.output = new float[r.count * net.getOutputSize()];
+                System.arraycopy(output, offset, r.output, 0, r.output.length);
+                offset += r.output.length;
+            }
+            r.failure = failure;
+            latency.record(end - r.submitted);
+            r.done.countDown();
+        }
+    }
+
+    private static class Request {
+        final float[] input;
+        final int count;
+        final long submitted = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        float[] output;
+        Throwable failure;
+
+        Request(float[] input, int count) {
+            this.input = input;
+            this.count = count;
+        }
+    }
+}
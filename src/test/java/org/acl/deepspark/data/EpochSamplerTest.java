@@ -0,0 +1,37 @@
+package org.acl.deepspark.data;
+
+import java.util.Arrays;
+
+public class EpochSamplerTest {
+    public static void main(String[] args) {
+        int size = 10;
+
+        for (EpochSampler.Mode mode : EpochSampler.Mode.values()) {
+            EpochSampler sampler = new EpochSampler(size, mode, 4, 42L);
+            System.out.println(mode);
+
+            for (int epoch = 0; epoch < 3; epoch++) {
+                int[] order = new int[size];
+                for (int i = 0; i < size; i++)
+                    order[i] = sampler.next();
+                System.out.println(String.format("epoch %d: %s", epoch, Arrays.toString(order)));
+
+                int[] sorted = order.clone();
+                Arrays.sort(sorted);
+                for (int i = 0; i < size; i++) {
+                    if (sorted[i] != i)
+                        throw new AssertionError("index visited twice in one epoch: " + Arrays.toString(order));
+                }
+            }
+
+            // same seed gives the same stream, from any position
+            EpochSampler replay = new EpochSampler(size, mode, 4, 42L);
+            for (long pos = 0; pos < 3 * size; pos++) {
+                if (replay.indexAt(pos) != sampler.indexAt(pos))
+                    throw new AssertionError("sampler is not reproducible at position " + pos);
+            }
+        }
+
+        /** EpochSampler test complete **/
+    }
+}
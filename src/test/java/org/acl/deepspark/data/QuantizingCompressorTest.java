@@ -0,0 +1,68 @@
+package org.acl.deepspark.data;
+
+import java.util.Random;
+
+public class QuantizingCompressorTest {
+	public static void main(String[] args) {
+		Weight[] shapes = new Weight[] {
+				new Weight(new int[] {1, 1, 300, 100}, new int[] {100}), null, new Weight(new int[] {1, 1, 100, 10}, new int[] {10})};
+		WeightLayout layout = new WeightLayout(shapes);
+		Random random = new Random(11);
+
+		for (QuantizingCompressor.Mode mode : QuantizingCompressor.Mode.values()) {
+			QuantizingCompressor compressor = new QuantizingCompressor(mode);
+			float[] total = new float[layout.size()];
+			float[] sent = new float[layout.size()];
+			long bytes = 0;
+			int steps = 50;
+			for (int step = 0; step < steps; step++) {
+				float[] delta = new float[layout.size()];
+				for (int i = 0; i < delta.length; i++) {
+					delta[i] = (float) (random.nextGaussian() * 0.01 + 0.001);
+					total[i] += delta[i];
+				}
+				CompressedDelta compressed = compressor.compress(delta, layout);
+				compressed.addTo(sent, 0);
+				bytes += compressed.getBytes();
+			}
+
+			// with error feedback the accumulated update drifts from the exact sum by one step's error at most
+			double error = 0, norm = 0;
+			for (int i = 0; i < total.length; i++) {
+				error += (total[i] - sent[i]) * (total[i] - sent[i]);
+				norm += total[i] * total[i];
+			}
+			double relative = Math.sqrt(error / norm);
+			System.out.println(String.format("%s: %.1fx smaller, relative error of the summed update %.4f",
+					mode, (double) steps * 4 * layout.size() / bytes, relative));
+			if (relative > (mode == QuantizingCompressor.Mode.INT8 ? 0.01 : 0.2))
+				throw new AssertionError(mode + " error feedback does not keep up");
+		}
+
+		// fp16: exact for representable values, within half an ulp otherwise
+		float[] values = {0f, -0f, 1f, -2.5f, 65504f, 6.1035156e-5f, 5.9604645e-8f, 0.1f, 3.14159f, -1234.567f};
+		for (float v : values) {
+			float back = HalfWeights.toFloat(HalfWeights.toHalf(v));
+			if (Math.abs(back - v) > Math.abs(v) / 2048 + 3e-8f)
+				throw new AssertionError(String.format("fp16 of %g decoded to %g", v, back));
+		}
+		if (!Float.isInfinite(HalfWeights.toFloat(HalfWeights.toHalf(1e6f))) || !Float.isNaN(HalfWeights.toFloat(HalfWeights.toHalf(Float.NaN))))
+			throw new AssertionError("fp16 special values");
+		for (int h = 0; h < 0x7c00; h++) {
+			if (HalfWeights.toHalf(HalfWeights.toFloat((short) h)) != (short) h)
+				throw new AssertionError(String.format("fp16 0x%04x does not round trip", h));
+		}
+
+		Weight[] weights = new Weight[] {new Weight(Tensor.randn(1, 1, 30, 10), Tensor.randn(10)), null};
+		Weight[] decoded = new HalfWeights(weights).toWeights();
+		float[] expected = weights[0].w.toArray(), actual = decoded[0].w.toArray();
+		for (int i = 0; i < expected.length; i++) {
+			if (Math.abs(expected[i] - actual[i]) > Math.abs(expected[i]) / 2048)
+				throw new AssertionError(String.format("weight %d: expected %f, actual %f", i, expected[i], actual[i]));
+		}
+		if (decoded[1] != null)
+			throw new AssertionError("null layer decoded to weights");
+
+		/** QuantizingCompressor test complete **/
+	}
+}
@@ -0,0 +1,61 @@
+package org.acl.deepspark.data;
+
+import java.util.Random;
+
+public class TopKCompressorTest {
+	public static void main(String[] args) {
+		// an FC layer dominating the bytes and a small one
+		Weight[] shapes = new Weight[] {
+				new Weight(new int[] {1, 1, 500, 200}, new int[] {200}), null, new Weight(new int[] {1, 1, 10, 3}, new int[] {3})};
+		WeightLayout layout = new WeightLayout(shapes);
+		TopKCompressor compressor = new TopKCompressor(0.01);
+		Random random = new Random(7);
+
+		float[] sent = new float[layout.size()];
+		float[] total = new float[layout.size()];
+		long bytes = 0;
+		for (int step = 0; step < 20; step++) {
+			float[] delta = new float[layout.size()];
+			for (int i = 0; i < delta.length; i++) {
+				delta[i] = (float) (random.nextGaussian() * (random.nextInt(50) == 0 ? 1 : 0.01));
+				total[i] += delta[i];
+			}
+			SparseDelta compressed = (SparseDelta) compressor.compress(delta, layout);
+			compressed.addTo(sent, 0);
+			bytes += compressed.getBytes();
+
+			if (compressed.getCount(0) != (int) Math.ceil(0.01 * layout.getLength(0)) || compressed.isDense(0))
+				throw new AssertionError("layer 0 sent " + compressed.getCount(0) + " entries");
+			if (compressed.getCount(1) != 0)
+				throw new AssertionError("layer without weights sent entries");
+			if (compressed.getCount(2) != 1)
+				throw new AssertionError("layer 2 sent " + compressed.getCount(2) + " entries");
+		}
+
+		// error feedback: what was not sent is kept, so the largest remaining entry goes out with the next delta
+		float[] remaining = new float[layout.size()];
+		for (int i = 0; i < total.length; i++)
+			remaining[i] = total[i] - sent[i];
+		int largest = 0;
+		for (int i = 1; i < layout.getLength(0); i++) {
+			if (Math.abs(remaining[i]) > Math.abs(remaining[largest]))
+				largest = i;
+		}
+		SparseDelta next = (SparseDelta) compressor.compress(new float[layout.size()], layout);
+		float[] first = new float[layout.size()];
+		next.addTo(first, 0);
+		if (Math.abs(first[largest] - remaining[largest]) > 1e-5f)
+			throw new AssertionError(String.format("residual of entry %d: expected %f, sent %f",
+					largest, remaining[largest], first[largest]));
+
+		// at a density where (index, value) pairs cost more than floats, layers go out densely
+		SparseDelta dense = (SparseDelta) new TopKCompressor(0.6).compress(new float[layout.size()], layout);
+		if (!dense.isDense(0) || !dense.isDense(2) || dense.getBytes() != 4L * layout.size())
+			throw new AssertionError("no dense fallback at ratio 0.6");
+
+		System.out.println(String.format("sent %d bytes for 20 dense deltas of %d bytes (%.1fx smaller)",
+				bytes, 20L * 4 * layout.size(), 20.0 * 4 * layout.size() / bytes));
+
+		/** TopKCompressor test complete **/
+	}
+}
@@ -0,0 +1,86 @@
+package org.acl.deepspark.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class WeightCodecTest {
+	public static void main(String[] args) throws Exception {
+		Weight[] weights = new Weight[] {
+				new Weight(Tensor.randn(16, 3, 5, 5), Tensor.randn(16)), null,
+				new Weight(Tensor.randn(1, 1, 1024, 512), Tensor.randn(512)),
+				new Weight(Tensor.randn(1, 1, 512, 10), Tensor.randn(10))};
+		WeightLayout layout = new WeightLayout(weights);
+		float[] expected = layout.flatten(weights);
+
+		ByteBuffer encoded = WeightCodec.encode(weights, null);
+		if (encoded.remaining() != WeightCodec.encodedSize(weights))
+			throw new AssertionError("encoded size mismatch");
+		Weight[] decoded = WeightCodec.decode(encoded.duplicate());
+		if (!layout.matches(decoded) || !Arrays.equals(expected, layout.flatten(decoded)))
+			throw new AssertionError("round trip changed the weights");
+
+		// in place into existing tensors, and into a reused buffer
+		Weight[] dest = layout.unflatten(new float[layout.size()], 0);
+		WeightCodec.decodeInto(encoded.duplicate(), dest);
+		if (!Arrays.equals(expected, layout.flatten(dest)))
+			throw new AssertionError("decodeInto changed the weights");
+		if (WeightCodec.encode(weights, encoded) != encoded)
+			throw new AssertionError("large enough buffer not reused");
+
+		// layers left out of the encoding keep their values
+		Weight[] changed = Arrays.copyOf(weights, weights.length);
+		changed[0] = null;
+		Weight[] kept = layout.unflatten(new float[layout.size()], 0);
+		WeightCodec.decodeChanged(WeightCodec.encode(changed, null), kept);
+		if (kept[0].w.toArray()[0] != 0 || !Arrays.equals(weights[3].w.toArray(), kept[3].w.toArray()))
+			throw new AssertionError("decodeChanged overwrote a layer left out or missed a changed one");
+
+		// other shapes are rejected
+		try {
+			WeightCodec.decodeInto(encoded.duplicate(), Arrays.copyOf(dest, 3));
+			throw new AssertionError("layer count mismatch accepted");
+		} catch (IllegalArgumentException e) {
+			System.out.println("rejected: " + e.getMessage());
+		}
+		ByteBuffer truncated = encoded.duplicate();
+		truncated.limit(truncated.limit() / 2);
+		try {
+			WeightCodec.decode(truncated);
+			throw new AssertionError("truncated weights accepted");
+		} catch (IllegalArgumentException e) {
+			System.out.println("rejected: " + e.getMessage());
+		}
+
+		// against Java serialization of the same Weight[]
+		int rounds = 50;
+		byte[] serialized = null;
+		long serialization = 0, codec = 0;
+		for (int r = 0; r < 2 * rounds; r++) {
+			long start = System.nanoTime();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+				os.writeObject(weights);
+			}
+			serialized = bytes.toByteArray();
+			try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+				is.readObject();
+			}
+			long middle = System.nanoTime();
+			encoded = WeightCodec.encode(weights, encoded);
+			WeightCodec.decodeInto(encoded, dest);
+			long end = System.nanoTime();
+			if (r >= rounds) {		// the first half warms up
+				serialization += middle - start;
+				codec += end - middle;
+			}
+		}
+		System.out.println(String.format("%d floats: serialization %d bytes, %.2f ms; codec %d bytes, %.2f ms per round trip",
+				layout.size(), serialized.length, serialization / 1e6 / rounds, encoded.limit(), codec / 1e6 / rounds));
+
+		/** WeightCodec test complete **/
+	}
+}
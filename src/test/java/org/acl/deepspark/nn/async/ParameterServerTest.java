@@ -0,0 +1,196 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.data.CompressedDelta;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+import org.acl.deepspark.nn.metrics.Histogram;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ParameterServerTest {
+    public static void main(String[] args) throws Exception {
+        // plain SGD with learning rate 1, so every push subtracts its delta
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0).setLearningRate(1.0).setMomentum(0.0).setDecayLambda(0.0)
+                .setInputDim(new int[]{1, 1, 8, 8})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 4).set("kernel_row", 3).set("kernel_col", 3)
+                        .set("stride", 1).set("zeroPad", 1)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+        final WeightLayout layout = new WeightLayout(net.getTrainableWeights());
+        float[] initial = layout.flatten(net.getTrainableWeights());
+        final Weight[] delta = layout.unflatten(filled(layout.size(), 1f / 1024), 0);
+
+        ParameterServer server = new ParameterServer(net, 1, 18830);
+        server.startServer();
+
+        // every worker keeps one connection for all its rounds, and a pull sees its own push applied
+        final int clients = 128, rounds = 16;
+        final Histogram latency = new Histogram();
+        final Throwable[] failure = new Throwable[1];
+
+        // readers pull the published weights meanwhile, they never wait for the pushes of others
+        final int readers = 8;
+        final Histogram readLatency = new Histogram();
+        final boolean[] done = new boolean[1];
+        Thread[] readerThreads = new Thread[readers];
+        for (int t = 0; t < readers; t++) {
+            readerThreads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (ParameterClient client = new ParameterClient("localhost", 18830)) {
+                        Weight[] dest = layout.unflatten(new float[layout.size()], 0);
+                        while (!isDone(done)) {
+                            long begin = System.nanoTime();
+                            client.getWeights(dest);
+                            readLatency.record(System.nanoTime() - begin);
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            readerThreads[t].start();
+        }
+
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int t = 0; t < clients; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (ParameterClient client = new ParameterClient("localhost", 18830)) {
+                        float[] last = layout.flatten(trainable(client.getWeights()));
+                        for (int r = 0; r < rounds; r++) {
+                            long begin = System.nanoTime();
+                            client.sendDelta(delta);
+                            float[] pulled = layout.flatten(trainable(client.getWeights()));
+                            latency.record(System.nanoTime() - begin);
+                            if (!(pulled[0] < last[0]))
+                                throw new AssertionError(String.format("push not applied before the pull; %f, %f", last[0], pulled[0]));
+                            last = pulled;
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (Thread thread : readerThreads)
+            thread.join();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+
+        ParameterClient client = new ParameterClient("localhost", 18830);
+        float[] trained = layout.flatten(trainable(client.getWeights()));
+
+        // a pull into the same tensors transfers only what changed since, nothing here
+        Weight[] dest = layout.unflatten(new float[layout.size()], 0);
+        client.getWeights(dest);
+        int full = client.getReceiveBuffer().limit();
+        client.getWeights(dest);
+        int unchanged = client.getReceiveBuffer().limit();
+        if (client.getVersion() != clients * rounds || unchanged >= full / 10 || !Arrays.equals(trained, layout.flatten(dest)))
+            throw new AssertionError(String.format("version %d, pulls of %d and %d bytes", client.getVersion(), full, unchanged));
+        System.out.println(String.format("pull at version %d: %d bytes, up to date: %d bytes", client.getVersion(), full, unchanged));
+
+        // push and pull in one request; the answer includes the push
+        client.pushAndPull(delta, dest);
+        if (client.getVersion() != clients * rounds + 1 || !(layout.flatten(dest)[0] < trained[0]))
+            throw new AssertionError(String.format("push not applied before the pull; version %d", client.getVersion()));
+
+        // a delta that fails to decode closes its own connection only
+        ParameterClient broken = new ParameterClient("localhost", 18830);
+        broken.sendDelta(new CorruptDelta(layout.size()));
+        try {
+            broken.getWeights(dest);
+            throw new AssertionError("malformed delta answered");
+        } catch (IOException e) {
+            System.out.println("malformed delta: " + e);
+        }
+        broken.close();
+        client.getWeights(dest);
+        if (client.getVersion() != clients * rounds + 1)
+            throw new AssertionError(String.format("malformed delta applied; version %d", client.getVersion()));
+        client.close();
+        server.stopServer();
+        trained = layout.flatten(net.getTrainableWeights());
+
+        float expected = (clients * rounds + 1) / 1024f;
+        for (int i = 0; i < trained.length; i++) {
+            if (Math.abs(initial[i] - trained[i] - expected) > 1e-3f)
+                throw new AssertionError(String.format("element %d moved by %f, expected %f", i, initial[i] - trained[i], expected));
+        }
+        System.out.println(String.format("%d clients, %d push/pull rounds in %.2f s: %.0f rounds/s, p50 %.2f ms, p99 %.2f ms",
+                clients, clients * rounds, seconds, clients * rounds / seconds,
+                latency.getQuantile(0.5) / 1e6, latency.getQuantile(0.99) / 1e6));
+        System.out.println(String.format("%d readers meanwhile: %d pulls, p50 %.2f ms, p99 %.2f ms",
+                readers, readLatency.getCount(), readLatency.getQuantile(0.5) / 1e6, readLatency.getQuantile(0.99) / 1e6));
+
+        /** ParameterServer test complete **/
+    }
+
+    // the size of the layout, but indices beyond it
+    private static class CorruptDelta implements CompressedDelta {
+        private final int size;
+
+        CorruptDelta(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void addTo(float[] dest, int offset) {
+            dest[offset + size] += 1;
+        }
+
+        @Override
+        public long getBytes() {
+            return 0;
+        }
+    }
+
+    private static boolean isDone(boolean[] done) {
+        synchronized (done) {
+            return done[0];
+        }
+    }
+
+    // pulled weights include the pooling masks, which the layout leaves out
+    private static Weight[] trainable(Weight[] weights) {
+        Weight[] trainable = Arrays.copyOf(weights, weights.length);
+        trainable[1] = null;
+        return trainable;
+    }
+
+    private static float[] filled(int length, float value) {
+        float[] array = new float[length];
+        Arrays.fill(array, value);
+        return array;
+    }
+}
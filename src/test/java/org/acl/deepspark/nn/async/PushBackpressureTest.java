@@ -0,0 +1,110 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+import org.acl.deepspark.nn.metrics.TrainingListener;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class PushBackpressureTest {
+    public static void main(String[] args) throws Exception {
+        // plain SGD with learning rate 1, so every push subtracts its delta
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0).setLearningRate(1.0).setMomentum(0.0).setDecayLambda(0.0)
+                .setInputDim(new int[]{1, 1, 8, 8})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+        final WeightLayout layout = new WeightLayout(net.getTrainableWeights());
+        float[] initial = layout.flatten(net.getTrainableWeights());
+        float[] filled = new float[layout.size()];
+        Arrays.fill(filled, 1f / 1024);
+        final Weight[] delta = layout.unflatten(filled, 0);
+
+        // the updater reports every applied delta to the monitor, and blocks there while the test holds its lock
+        TrainingMonitor monitor = new TrainingMonitor(new ArrayList<TrainingListener>());
+        ParameterServer server = new ParameterServer(net, 1, 18890);
+        server.setMonitor(monitor, 1);
+        server.startServer();
+
+        final int pushes = 200;      // more than the update queue holds
+        final Throwable[] failure = new Throwable[1];
+        final long[] pulled = {-1};
+        Thread pusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (ParameterClient client = new ParameterClient("localhost", 18890)) {
+                    for (int i = 0; i < pushes; i++)
+                        client.sendDelta(delta);
+                    client.getWeights(layout.unflatten(new float[layout.size()], 0));
+                    pulled[0] = client.getVersion();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        pusher.setDaemon(true);
+
+        long answered;
+        synchronized (monitor) {
+            pusher.start();
+            Thread.sleep(1000);
+
+            // the queue is full and the pusher parked; another connection is still answered
+            final long[] version = {-1};
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (ParameterClient client = new ParameterClient("localhost", 18890)) {
+                        client.getWeights(layout.unflatten(new float[layout.size()], 0));
+                        version[0] = client.getVersion();
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            reader.setDaemon(true);
+            long start = System.nanoTime();
+            reader.start();
+            reader.join(10000);
+            if (reader.isAlive())
+                throw new AssertionError("pull on another connection not answered while the queue is full");
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+            if (version[0] != 0)
+                throw new AssertionError(String.format("pull saw version %d while the updater was blocked", version[0]));
+            answered = System.nanoTime() - start;
+        }
+
+        // once the updater drains the queue, the parked pushes follow and the pusher sees all of them
+        pusher.join(30000);
+        if (pusher.isAlive())
+            throw new AssertionError("parked pushes never applied");
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+        if (pulled[0] != pushes)
+            throw new AssertionError(String.format("pusher pulled version %d, expected %d", pulled[0], pushes));
+        server.stopServer();
+
+        float[] trained = layout.flatten(net.getTrainableWeights());
+        float expected = pushes / 1024f;
+        for (int i = 0; i < trained.length; i++) {
+            if (Math.abs(initial[i] - trained[i] - expected) > 1e-3f)
+                throw new AssertionError(String.format("element %d moved by %f, expected %f", i, initial[i] - trained[i], expected));
+        }
+        System.out.println(String.format("%d pushes behind a blocked updater, pull on another connection answered in %.2f ms",
+                pushes, answered / 1e6));
+
+        /** PushBackpressure test complete **/
+    }
+}
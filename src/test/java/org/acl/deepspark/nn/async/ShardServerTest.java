@@ -0,0 +1,166 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+import java.util.Arrays;
+
+public class ShardServerTest {
+    public static void main(String[] args) throws Exception {
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0).setLearningRate(0.1).setMomentum(0.9).setDecayLambda(0.01)
+                .setInputDim(new int[]{1, 1, 32, 32})
+                .setOutputDim(new int[]{64})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 16).set("kernel_row", 3).set("kernel_col", 3)
+                        .set("stride", 1).set("zeroPad", 1)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 64)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+        final WeightLayout layout = new WeightLayout(net.getTrainableWeights());
+
+        // every float in exactly one range, no range longer than a chunk, shards within a chunk of each other
+        final int shards = 3, chunkSize = 20000;
+        final ShardPlan plan = new ShardPlan(layout, shards, chunkSize);
+        int[] owners = new int[layout.size()];
+        int largest = 0, smallest = Integer.MAX_VALUE;
+        for (int s = 0; s < shards; s++) {
+            for (int r = 0; r < plan.getNumRanges(s); r++) {
+                if (plan.getLength(s, r) > chunkSize)
+                    throw new AssertionError(String.format("range of %d floats", plan.getLength(s, r)));
+                for (int k = 0; k < plan.getLength(s, r); k++)
+                    owners[plan.getOffset(s, r) + k]++;
+            }
+            largest = Math.max(largest, plan.size(s));
+            smallest = Math.min(smallest, plan.size(s));
+        }
+        for (int k = 0; k < owners.length; k++) {
+            if (owners[k] != 1)
+                throw new AssertionError(String.format("float %d is held by %d shards", k, owners[k]));
+        }
+        if (largest - smallest > chunkSize)
+            throw new AssertionError("unbalanced " + plan);
+        System.out.println(plan);
+
+        // the same delta from every client, so the result does not depend on the order of the pushes
+        final float[] delta = new float[layout.size()];
+        Arrays.fill(delta, 1f / 64);
+        ShardServer[] servers = new ShardServer[shards];
+        for (int s = 0; s < shards; s++) {
+            servers[s] = new ShardServer(net, null, plan, s, 18850 + s);
+            servers[s].startServer();
+        }
+        final int clients = 32, rounds = 16;
+        double sharded = run(new Round() {
+            @Override
+            public Round connect() throws Exception {
+                final ShardClient client = new ShardClient("localhost", 18850, plan);
+                final float[] pulled = new float[layout.size()];
+                return new Round() {
+                    @Override
+                    public void run() throws Exception {
+                        client.sendDelta(delta);
+                        client.getWeights(pulled);
+                    }
+
+                    @Override
+                    public void close() throws Exception {
+                        client.close();
+                    }
+                };
+            }
+        }, clients, rounds);
+        for (ShardServer server : servers)
+            server.stopServer();
+
+        float[] weights = new float[layout.size()];
+        float[] updates = new float[layout.size()];
+        for (ShardServer server : servers)
+            server.copyState(weights, updates);
+
+        // one parameter server with a copy of the net, against the same clients
+        ParameterServer single = new ParameterServer(net, 1, 18860);
+        single.startServer();
+        final Weight[] deltaWeights = layout.unflatten(delta, 0);
+        double unsharded = run(new Round() {
+            @Override
+            public Round connect() throws Exception {
+                final ParameterClient client = new ParameterClient("localhost", 18860);
+                return new Round() {
+                    @Override
+                    public void run() throws Exception {
+                        client.sendDelta(deltaWeights);
+                        client.getWeights();
+                    }
+
+                    @Override
+                    public void close() throws Exception {
+                        client.close();
+                    }
+                };
+            }
+        }, clients, rounds);
+        single.stopServer();
+
+        // both applied the update of NeuralNet.updateWeight() clients * rounds times
+        float[] expected = layout.flatten(net.getTrainableWeights());
+        for (int k = 0; k < expected.length; k++) {
+            if (Math.abs(expected[k] - weights[k]) > 1e-4f)
+                throw new AssertionError(String.format("float %d is %f, expected %f", k, weights[k], expected[k]));
+        }
+        System.out.println(String.format("%d clients, %d push/pull rounds of %d floats: %d shards %.0f rounds/s, one server %.0f rounds/s",
+                clients, clients * rounds, layout.size(), shards, clients * rounds / sharded, clients * rounds / unsharded));
+
+        /** ShardServer test complete **/
+    }
+
+    // seconds for clients threads to run rounds rounds each on their own connection
+    private static double run(final Round connector, int clients, final int rounds) throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int t = 0; t < clients; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Round round = connector.connect();
+                        for (int r = 0; r < rounds; r++)
+                            round.run();
+                        round.close();
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static abstract class Round {
+        Round connect() throws Exception {
+            return this;
+        }
+
+        void run() throws Exception {
+        }
+
+        void close() throws Exception {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class StalenessTest {
+    public static void main(String[] args) throws Exception {
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0).setLearningRate(1.0).setMomentum(0.0).setDecayLambda(0.0)
+                .setInputDim(new int[]{1, 1, 8, 8})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+        final WeightLayout layout = new WeightLayout(net.getTrainableWeights());
+        final float[] filled = new float[layout.size()];
+        Arrays.fill(filled, 1f / 1024);
+        final Weight[] delta = layout.unflatten(filled, 0);
+
+        // worker w sleeps w ms per iteration; the last one stops early and must not hold the others back
+        final int workers = 4, staleness = 2;
+        final int[] iterations = {40, 40, 40, 10};
+        ParameterServer server = new ParameterServer(net, 1, 18870);
+        server.setStaleness(staleness, workers);
+        server.startServer();
+
+        final AtomicIntegerArray clocks = new AtomicIntegerArray(workers);
+        final int[] maxAhead = new int[workers];
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[workers];
+        long start = System.nanoTime();
+        for (int t = 0; t < workers; t++) {
+            final int worker = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (ParameterClient client = new ParameterClient("localhost", 18870)) {
+                        Weight[] dest = layout.unflatten(new float[layout.size()], 0);
+                        for (int i = 0; i < iterations[worker]; i++) {
+                            Thread.sleep(worker * 3);
+                            client.sendDelta(delta);
+                            clocks.set(worker, i + 1);
+                            client.clock(worker, i + 1);
+
+                            // every other worker has pushed at least i + 1 - staleness iterations or finished
+                            long pushed = 0;
+                            for (int other = 0; other < workers; other++) {
+                                int done = clocks.get(other);
+                                if (done < iterations[other] && i + 1 - done > staleness)
+                                    throw new AssertionError(String.format("worker %d at %d, worker %d at %d", worker, i + 1, other, done));
+                                if (done < iterations[other])
+                                    maxAhead[worker] = Math.max(maxAhead[worker], i + 1 - done);
+                                pushed += Math.min(i + 1 - staleness, iterations[other]);
+                            }
+                            client.getWeights(dest);
+                            if (client.getVersion() < pushed)
+                                throw new AssertionError(String.format("pull at %d misses pushes; version %d, pushed %d",
+                                        i + 1, client.getVersion(), pushed));
+                        }
+                        client.finish(worker);
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.stopServer();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+
+        System.out.println(String.format("%d workers, staleness %d: %.2f s, most iterations ahead of the slowest per worker %s",
+                workers, staleness, seconds, Arrays.toString(maxAhead)));
+
+        /** Staleness test complete **/
+    }
+}
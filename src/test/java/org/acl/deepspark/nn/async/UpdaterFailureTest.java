@@ -0,0 +1,94 @@
+package org.acl.deepspark.nn.async;
+
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+import org.acl.deepspark.nn.metrics.TrainingListener;
+import org.acl.deepspark.nn.metrics.TrainingMonitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class UpdaterFailureTest {
+    public static void main(String[] args) throws Exception {
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0).setLearningRate(1.0).setMomentum(0.0).setDecayLambda(0.0)
+                .setInputDim(new int[]{1, 1, 8, 8})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+        final WeightLayout layout = new WeightLayout(net.getTrainableWeights());
+        float[] filled = new float[layout.size()];
+        Arrays.fill(filled, 1f / 1024);
+        final Weight[] delta = layout.unflatten(filled, 0);
+
+        // the monitor runs on the updater thread and fails at the 5th applied delta
+        final RuntimeException cause = new IllegalStateException("listener failed");
+        TrainingMonitor monitor = new TrainingMonitor(new ArrayList<TrainingListener>()) {
+            @Override
+            public synchronized void iteration(int iteration, int epoch, int samples, double loss,
+                                               long stepNanos, long dataWaitNanos, long updateNanos) {
+                if (iteration == 5)
+                    throw cause;
+            }
+        };
+        ParameterServer server = new ParameterServer(net, 1, 18895);
+        server.setMonitor(monitor, 1);
+        server.startServer();
+
+        // pushing and pulling workers get an error instead of waiting for the dead updater
+        final Throwable[] errors = new Throwable[3];
+        Thread[] workers = new Thread[errors.length];
+        for (int t = 0; t < workers.length; t++) {
+            final int worker = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (ParameterClient client = new ParameterClient("localhost", 18895)) {
+                        Weight[] dest = layout.unflatten(new float[layout.size()], 0);
+                        for (int i = 0; i < 1000; i++) {
+                            if (worker == 0)
+                                client.getWeights(dest);
+                            else
+                                client.pushAndPull(delta, dest);
+                        }
+                    } catch (Throwable e) {
+                        errors[worker] = e;
+                    }
+                }
+            });
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+        for (Thread thread : workers) {
+            thread.join(30000);
+            if (thread.isAlive())
+                throw new AssertionError("worker still waiting after the updater failed");
+        }
+        for (int t = 0; t < errors.length; t++) {
+            if (!(errors[t] instanceof IOException))
+                throw new AssertionError(String.format("worker %d ended with %s", t, errors[t]));
+        }
+        if (server.getFailure() != cause)
+            throw new AssertionError("failure not recorded: " + server.getFailure());
+
+        try {
+            server.stopServer();
+            throw new AssertionError("stopServer() hid the failure");
+        } catch (IllegalStateException e) {
+            if (e.getCause() != cause)
+                throw new AssertionError(e);
+        }
+        System.out.println(String.format("updater failed with \"%s\", workers got %s", cause.getMessage(), Arrays.toString(errors)));
+
+        /** UpdaterFailure test complete **/
+    }
+}
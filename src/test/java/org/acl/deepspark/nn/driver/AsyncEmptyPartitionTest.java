@@ -0,0 +1,73 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class AsyncEmptyPartitionTest {
+    public static void main(String[] args) throws Exception {
+        JavaSparkContext sc = new JavaSparkContext(new SparkConf().setMaster("local[4]").setAppName("AsyncEmptyPartitionTest"));
+
+        // synthetic 3-class problem in three partitions, plus one without samples
+        List<Sample> data = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            int label = random.nextInt(3);
+            float[] x = new float[16];
+            for (int j = 0; j < x.length; j++)
+                x[j] = (float) random.nextGaussian() * 0.3f + (j % 3 == label ? 1 : 0);
+            float[] y = new float[3];
+            y[label] = 1;
+            Sample sample = new Sample();
+            sample.data = Tensor.create(x, new int[] {1, 1, 4, 4});
+            sample.label = Tensor.create(y, new int[] {3});
+            data.add(sample);
+        }
+        JavaRDD<Sample> rdd = sc.parallelize(data, 3).union(sc.parallelize(Collections.<Sample>emptyList(), 1));
+        List<Integer> sizes = rdd.glom().map(new Function<List<Sample>, Integer>() {
+            @Override
+            public Integer call(List<Sample> partition) {
+                return partition.size();
+            }
+        }).collect();
+        if (sizes.size() != 4 || sizes.get(3) != 0)
+            throw new AssertionError("no empty partition: " + sizes);
+
+        // the empty partition runs no iterations, with and without a clock table it has to report
+        Sample[] test = data.toArray(new Sample[data.size()]);
+        for (int staleness : new int[] {-1, 1}) {
+            NeuralNet net = new NeuralNetConf().setGpuAccel(0.0).setLearningRate(0.1).setMomentum(0.9)
+                    .setInputDim(new int[] {1, 1, 4, 4}).setOutputDim(new int[] {3})
+                    .addLayer(new LayerConf(LayerType.FULLYCONN).set("num_output", 10)
+                            .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SIGMOID))
+                    .addLayer(new LayerConf(LayerType.FULLYCONN).set("num_output", 3)
+                            .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                    .build();
+            DistAsyncNeuralNetRunner runner = new DistAsyncNeuralNetRunner(net, "localhost", new int[] {18900})
+                    .setIterations(150).setMiniBatchSize(10).setSeed(3);
+            if (staleness >= 0)
+                runner.setStaleness(staleness);
+            runner.train(rdd);
+            double accuracy = runner.printAccuracy(test);
+            if (accuracy < 90)
+                throw new AssertionError(String.format("staleness %d: accuracy %.1f", staleness, accuracy));
+            System.out.println(String.format("staleness %d: partitions of %s, accuracy %.1f", staleness, sizes, accuracy));
+        }
+        sc.stop();
+
+        /** AsyncEmptyPartition test complete **/
+    }
+}
@@ -0,0 +1,76 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+public class CheckpointTest {
+    public static void main(String[] args) throws Exception {
+        Sample sample = new Sample();
+        sample.data = Tensor.randn(1, 1, 12, 12);
+        sample.label = Tensor.create(new float[] {0, 1, 0}, new int[] {3});
+
+        NeuralNet reference = build(0);
+        for (int k : new int[] {2, 3, NeuralNetConf.CHECKPOINT_SQRT}) {
+            NeuralNet net = build(k);
+            net.setWeights(reference.getWeights());
+            System.out.println(net.planTrainingMemory());
+
+            Weight[] expected = reference.train(sample);
+            Weight[] actual = net.train(sample);
+            for (int i = 0; i < expected.length; i++) {
+                if (expected[i] == null) {
+                    if (actual[i] != null)
+                        throw new AssertionError("unexpected gradient at layer " + i);
+                    continue;
+                }
+                assertClose(expected[i].w.toArray(), actual[i].w.toArray());
+                assertClose(expected[i].b.toArray(), actual[i].b.toArray());
+            }
+        }
+        System.out.println(reference.planTrainingMemory());
+
+        /** Checkpoint test complete **/
+    }
+
+    private static NeuralNet build(int checkpointInterval) {
+        NeuralNetConf conf = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setCheckpointInterval(checkpointInterval)
+                .setInputDim(new int[]{1, 1, 12, 12})
+                .setOutputDim(new int[]{3})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 4).set("kernel_row", 3).set("kernel_col", 3)
+                        .set("stride", 1).set("zeroPad", 1)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 6).set("kernel_row", 3).set("kernel_col", 3)
+                        .set("stride", 1).set("zeroPad", 0)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE));
+        for (int i = 0; i < 3; i++) {
+            conf.addLayer(new LayerConf(LayerType.FULLYCONN)
+                    .set("num_output", 8)
+                    .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SIGMOID));
+        }
+        return conf.addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 3)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+    }
+
+    private static void assertClose(float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (Math.abs(expected[i] - actual[i]) > 1e-6f)
+                throw new AssertionError(String.format("element %d: expected %f, actual %f", i, expected[i], actual[i]));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class CheckpointWriterTest {
+    public static void main(String[] args) throws Exception {
+        String dir = Files.createTempDirectory("checkpoints").toString();
+        Sample[] data = new Sample[32];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new Sample();
+            data[i].data = Tensor.randn(1, 1, 6, 6);
+            float positive = data[i].data.sum() > 0 ? 1 : 0;
+            data[i].label = Tensor.create(new float[] {positive, 1 - positive}, new int[] {2});
+        }
+        String init = new File(dir, "init.ckpt").getPath();
+        Checkpoint.write(build(), 0, init);
+
+        // reference: 10 iterations
+        NeuralNet reference = restored(init);
+        new NeuralNetRunner(reference).setMiniBatchSize(4).setIterations(10).setSeed(3).train(data);
+
+        // 20 iterations with a checkpoint every 10; the snapshot of iteration 10 must not see later updates
+        NeuralNet full = restored(init);
+        new NeuralNetRunner(full).setMiniBatchSize(4).setIterations(20).setSeed(3)
+                .setCheckpoints(dir + "/run", 10).train(data);
+        System.out.println(Arrays.toString(new File(dir + "/run").list()));
+
+        String tenth = new File(dir + "/run", Checkpoint.fileName(10)).getPath();
+        Checkpoint checkpoint = Checkpoint.read(tenth);
+        if (checkpoint.getIteration() != 10 || !checkpoint.hasMomentum())
+            throw new AssertionError("unexpected checkpoint header");
+        assertSame(flat(reference), flat(checkpoint.getLayout(), checkpoint.getWeights()));
+
+        // resuming from iteration 10 replays the remaining iterations exactly
+        NeuralNet resumed = build();
+        new NeuralNetRunner(resumed).setMiniBatchSize(4).setIterations(20).setSeed(3).resume(tenth).train(data);
+        assertSame(flat(full), flat(resumed));
+        System.out.println("latest: " + Checkpoint.latest(dir + "/run"));
+
+        // a flipped byte is caught by the CRC
+        try (RandomAccessFile file = new RandomAccessFile(tenth, "rw")) {
+            file.seek(file.length() / 2);
+            int b = file.read();
+            file.seek(file.length() / 2);
+            file.write(b ^ 0x10);
+        }
+        try {
+            Checkpoint.read(tenth);
+            throw new AssertionError("corruption not detected");
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+
+        /** CheckpointWriter test complete **/
+    }
+
+    private static NeuralNet build() {
+        return new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setLearningRate(0.05)
+                .setInputDim(new int[]{1, 1, 6, 6})
+                .setOutputDim(new int[]{2})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 3).set("kernel_row", 3).set("kernel_col", 3)
+                        .set("stride", 1).set("zeroPad", 0)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 2)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+    }
+
+    private static NeuralNet restored(String path) throws IOException {
+        NeuralNet net = build();
+        Checkpoint.read(path).restore(net);
+        return net;
+    }
+
+    private static float[] flat(NeuralNet net) {
+        Weight[] weights = net.pinState()[0];
+        net.unpinState();
+        return flat(new WeightLayout(weights), weights);
+    }
+
+    private static float[] flat(WeightLayout layout, Weight[] weights) {
+        return layout.flatten(weights);
+    }
+
+    private static void assertSame(float[] expected, float[] actual) {
+        if (!Arrays.equals(expected, actual))
+            throw new AssertionError("weights differ");
+    }
+}
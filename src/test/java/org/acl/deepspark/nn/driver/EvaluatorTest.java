@@ -0,0 +1,80 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+public class EvaluatorTest {
+    public static void main(String[] args) throws Exception {
+        int numClasses = 4;
+        Sample[] data = new Sample[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new Sample();
+            data[i].data = Tensor.rand(1, 1, 6, 6);
+            float[] label = new float[numClasses];
+            label[i % numClasses] = 1;
+            data[i].label = Tensor.create(label, new int[] {numClasses});
+        }
+
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setInputDim(new int[]{1, 1, 6, 6})
+                .setOutputDim(new int[]{numClasses})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 3)
+                        .set("kernel_row", 3)
+                        .set("kernel_col", 3)
+                        .set("stride", 1)
+                        .set("zeroPad", 1)
+                        .set("weight_type", WeightType.XAVIER)
+                        .set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2)
+                        .set("kernel_col", 2)
+                        .set("stride", 2)
+                        .set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", numClasses)
+                        .set("weight_type", WeightType.XAVIER)
+                        .set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        // single-threaded reference, as the runners used to compute it
+        int count = 0;
+        for (Sample sample : data) {
+            if (sample.label.slice(0, 0).argmax() == net.predict(sample).slice(0, 0).argmax())
+                count++;
+        }
+        double expected = (double) count / data.length * 100;
+
+        Evaluator evaluator = new Evaluator(data).setBatchSize(64).setTopK(2).setNumThreads(4);
+        for (int i = 0; i < 2; i++) {
+            Evaluation evaluation = evaluator.evaluate(net);
+            System.out.println(evaluation);
+            if (Math.abs(evaluation.getAccuracy() - expected) > 1e-9)
+                throw new AssertionError(String.format("accuracy %f, expected %f", evaluation.getAccuracy(), expected));
+        }
+
+        // the kept FrozenNet follows the weights once the net is updated
+        for (int step = 0; step < 2; step++) {
+            net.updateWeight(net.train(data[step]));
+            Tensor[] predicted = evaluator.predict(net);
+            for (int i = 0; i < data.length; i++) {
+                float[] actual = predicted[i].toArray();
+                float[] reference = net.predict(data[i]).toArray();
+                for (int c = 0; c < reference.length; c++) {
+                    if (Math.abs(actual[c] - reference[c]) > 1e-5f)
+                        throw new AssertionError(String.format("update %d, sample %d: output %f, expected %f",
+                                step, i, actual[c], reference[c]));
+                }
+            }
+        }
+        evaluator.shutdown();
+
+        /** Evaluator test complete **/
+    }
+}
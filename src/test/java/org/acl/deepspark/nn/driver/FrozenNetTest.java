@@ -0,0 +1,94 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+public class FrozenNetTest {
+    public static void main(String[] args) throws Exception {
+        final NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setInputDim(new int[]{1, 2, 9, 8})
+                .setOutputDim(new int[]{5})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 4)
+                        .set("kernel_row", 3)
+                        .set("kernel_col", 2)
+                        .set("stride", 1)
+                        .set("zeroPad", 1)
+                        .set("weight_type", WeightType.XAVIER)
+                        .set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2)
+                        .set("kernel_col", 2)
+                        .set("stride", 2)
+                        .set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 7)
+                        .set("weight_type", WeightType.XAVIER)
+                        .set("activator", ActivatorType.TANH))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 5)
+                        .set("weight_type", WeightType.XAVIER)
+                        .set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        final Sample[] data = new Sample[20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new Sample();
+            data[i].data = Tensor.randn(1, 2, 9, 8);
+        }
+
+        final FrozenNet frozen = net.freeze();
+        System.out.println(String.format("output shape: (%d, %d, %d, %d)", frozen.getOutputShape()[0],
+                frozen.getOutputShape()[1], frozen.getOutputShape()[2], frozen.getOutputShape()[3]));
+
+        Tensor[] batched = frozen.predict(data);
+        for (int i = 0; i < data.length; i++) {
+            float[] expected = net.predict(data[i]).toArray();
+            assertClose(expected, frozen.predict(data[i]).toArray());
+            assertClose(expected, batched[i].toArray());
+        }
+        System.out.println(batched[0]);
+
+        // shared by several threads, each with its own buffers
+        Thread[] threads = new Thread[4];
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        float[] out = new float[frozen.getOutputSize()];
+                        for (int r = 0; r < 50; r++) {
+                            for (Sample sample : data) {
+                                frozen.predict(sample.data, out);
+                                assertClose(net.predict(sample).toArray(), out);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+
+        /** FrozenNet test complete **/
+    }
+
+    private static void assertClose(float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (Math.abs(expected[i] - actual[i]) > 1e-5f)
+                throw new AssertionError(String.format("element %d: expected %f, actual %f", i, expected[i], actual[i]));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Accumulator;
+import org.acl.deepspark.data.EpochSampler;
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+import org.acl.deepspark.nn.metrics.EpochEvent;
+import org.acl.deepspark.nn.metrics.IterationEvent;
+import org.acl.deepspark.nn.metrics.TrainingListener;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class LocalSGDTest {
+    private static final int REPLICAS = 2;
+    private static final int BATCH = 10;
+    private static final long SEED = 5;
+
+    public static void main(String[] args) throws Exception {
+        JavaSparkContext sc = new JavaSparkContext(new SparkConf().setMaster("local[" + REPLICAS + "]").setAppName("LocalSGDTest"));
+
+        // synthetic 3-class problem, one replica per partition
+        List<Sample> data = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            int label = random.nextInt(3);
+            float[] x = new float[16];
+            for (int j = 0; j < x.length; j++)
+                x[j] = (float) random.nextGaussian() * 0.3f + (j % 3 == label ? 1 : 0);
+            float[] y = new float[3];
+            y[label] = 1;
+            Sample sample = new Sample();
+            sample.data = Tensor.create(x, new int[] {1, 1, 4, 4});
+            sample.label = Tensor.create(y, new int[] {3});
+            data.add(sample);
+        }
+        JavaRDD<Sample> rdd = sc.parallelize(data, REPLICAS);
+        List<List<Sample>> partitions = rdd.glom().collect();
+        NeuralNet initial = new NeuralNetConf().setGpuAccel(0.0).setLearningRate(0.1).setMomentum(0.9).setDecayLambda(0.01)
+                .setInputDim(new int[] {1, 1, 4, 4}).setOutputDim(new int[] {3})
+                .addLayer(new LayerConf(LayerType.FULLYCONN).set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SIGMOID))
+                .addLayer(new LayerConf(LayerType.FULLYCONN).set("num_output", 3)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+        WeightLayout layout = new WeightLayout(initial.getTrainableWeights());
+
+        // one round of H = 4: weights and momentum are the average of two replicas trained by hand
+        NeuralNet net = copy(initial);
+        new DistLocalSGDNeuralNetRunner(net).setIterations(4).setLocalSteps(4).setMiniBatchSize(BATCH).setSeed(SEED)
+                .train(sc, rdd);
+        float[] weights = new float[layout.size()];
+        float[] momentum = new float[layout.size()];
+        for (int p = 0; p < REPLICAS; p++) {
+            NeuralNet replica = copy(initial);
+            Sample[] batch = block(partitions, p).take(0, 4 * BATCH, EpochSampler.Mode.PERMUTATION, SEED);
+            Accumulator gradient = new Accumulator(replica.getNumLayers());
+            for (int s = 0; s < 4; s++) {
+                for (int j = 0; j < BATCH; j++)
+                    gradient.accumulate(replica.train(batch[s * BATCH + j]));
+                replica.updateWeight(gradient.getAverage());
+                gradient.clear();
+            }
+            layout.addTo(replica.getTrainableWeights(), weights, 0);
+            layout.addTo(replica.getTrainableUpdates(), momentum, 0);
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= REPLICAS;
+            momentum[i] /= REPLICAS;
+        }
+        assertClose("averaged weights", weights, layout.flatten(net.getTrainableWeights()));
+        assertClose("averaged momentum", momentum, layout.flatten(net.getTrainableUpdates()));
+        System.out.println(String.format("H = 4: %d replicas averaged", REPLICAS));
+
+        // H = H0 * sqrt(loss / loss0), rounded up and at least 1
+        double[] losses = {2.0, 1.0, 0.5, 0.125, 0.01, 0.0, 4.0};
+        int[] expected = {16, 12, 8, 4, 2, 1, 23};
+        for (int k = 0; k < losses.length; k++) {
+            int steps = DistLocalSGDNeuralNetRunner.adaptiveSteps(16, losses[k], losses[0]);
+            if (steps != expected[k])
+                throw new AssertionError(String.format("loss %f: H %d, expected %d", losses[k], steps, expected[k]));
+        }
+
+        // every adaptive round runs the H computed from the loss of the round before
+        final List<IterationEvent> rounds = Collections.synchronizedList(new ArrayList<IterationEvent>());
+        new DistLocalSGDNeuralNetRunner(copy(initial)).setIterations(40).setLocalSteps(8).setAdaptive(true)
+                .setMiniBatchSize(BATCH).setSeed(SEED)
+                .addListener(new TrainingListener() {
+                    @Override
+                    public void onIteration(IterationEvent event) {
+                        rounds.add(event);
+                    }
+
+                    @Override
+                    public void onEpoch(EpochEvent event) {
+                    }
+
+                    @Override
+                    public void onTrainingEnd() {
+                    }
+                })
+                .train(sc, rdd);
+        int done = 0;
+        StringBuilder schedule = new StringBuilder();
+        for (int k = 0; k < rounds.size(); k++) {
+            int steps = k == 0 ? 8 : DistLocalSGDNeuralNetRunner.adaptiveSteps(8, rounds.get(k - 1).getLoss(), rounds.get(0).getLoss());
+            steps = Math.min(steps, 40 - done);
+            if (rounds.get(k).getIteration() != done + steps)
+                throw new AssertionError(String.format("round %d ends at step %d, expected %d", k, rounds.get(k).getIteration(), done + steps));
+            done += steps;
+            schedule.append(steps).append(' ');
+        }
+        if (done != 40)
+            throw new AssertionError(String.format("%d of 40 local steps reported", done));
+        System.out.println("adaptive H: " + schedule.toString().trim());
+
+        // H = 1 is synchronous SGD on the gradient averaged over all replicas
+        NeuralNet local = copy(initial);
+        new DistLocalSGDNeuralNetRunner(local).setIterations(3).setLocalSteps(1).setMiniBatchSize(BATCH).setSeed(SEED)
+                .train(sc, rdd);
+        NeuralNet sync = copy(initial);
+        SampleBlock[] blocks = new SampleBlock[REPLICAS];
+        for (int p = 0; p < REPLICAS; p++)
+            blocks[p] = block(partitions, p);
+        Accumulator gradient = new Accumulator(sync.getNumLayers());
+        for (int s = 0; s < 3; s++) {
+            for (SampleBlock block : blocks) {
+                for (Sample sample : block.take((long) s * BATCH, BATCH, EpochSampler.Mode.PERMUTATION, SEED))
+                    gradient.accumulate(sync.train(sample));
+            }
+            sync.updateWeight(gradient.getAverage());
+            gradient.clear();
+        }
+        assertClose("H = 1 weights", layout.flatten(sync.getTrainableWeights()), layout.flatten(local.getTrainableWeights()));
+        assertClose("H = 1 momentum", layout.flatten(sync.getTrainableUpdates()), layout.flatten(local.getTrainableUpdates()));
+        System.out.println("H = 1: matches synchronous averaging");
+        sc.stop();
+
+        /** LocalSGD test complete **/
+    }
+
+    private static SampleBlock block(List<List<Sample>> partitions, int p) {
+        return new SampleBlock(partitions.get(p).toArray(new Sample[partitions.get(p).size()]), p);
+    }
+
+    // an independent copy of the weights and momentum of net
+    private static NeuralNet copy(NeuralNet net) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(net);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (NeuralNet) in.readObject();
+        }
+    }
+
+    private static void assertClose(String what, float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (Math.abs(expected[i] - actual[i]) > 1e-5f)
+                throw new AssertionError(String.format("%s, element %d: expected %f, actual %f", what, i, expected[i], actual[i]));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+public class MappedFrozenNetTest {
+    public static void main(String[] args) throws Exception {
+        // the 2000 x 100 layer does not fit one panel
+        NeuralNetConf conf = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setInputDim(new int[]{1, 3, 12, 12})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 20).set("kernel_row", 3).set("kernel_col", 3)
+                        .set("stride", 1).set("zeroPad", 1)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 100)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.TANH))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX));
+        NeuralNet net = conf.build();
+
+        File file = File.createTempFile("model", Checkpoint.SUFFIX);
+        file.deleteOnExit();
+        Checkpoint.write(net, 0, file.getPath());
+
+        FrozenNet heap = net.freeze();
+        FrozenNet mapped = FrozenNet.map(conf, file.getPath());
+        if (!mapped.isMapped() || heap.isMapped())
+            throw new AssertionError("unexpected weight storage");
+
+        Sample[] data = new Sample[12];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new Sample();
+            data[i].data = Tensor.randn(1, 3, 12, 12);
+        }
+        Tensor[] expected = heap.predict(data);
+        Tensor[] actual = mapped.predict(data);
+        for (int i = 0; i < data.length; i++) {
+            assertClose(expected[i].toArray(), actual[i].toArray());
+            assertClose(expected[i].toArray(), mapped.predict(data[i]).toArray());
+        }
+        System.out.println(actual[0]);
+
+        // map() builds the layers from conf alone: far less heap than the weights, let alone a trainable net
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long weightBytes = 4L * new WeightLayout(net.getTrainableWeights()).size();
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        FrozenNet.map(conf, file.getPath());
+        long mapBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        new NeuralNet(conf);
+        long netBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        System.out.println(String.format("weights %d bytes, map() allocates %d bytes, a trainable net %d bytes",
+                weightBytes, mapBytes, netBytes));
+        if (mapBytes >= weightBytes / 2)
+            throw new AssertionError(String.format("map() allocated %d bytes for %d bytes of weights", mapBytes, weightBytes));
+
+        // a checkpoint of another network is rejected
+        try {
+            new NeuralNetConf()
+                    .setGpuAccel(0.0)
+                    .setInputDim(new int[]{1, 3, 12, 12})
+                    .setOutputDim(new int[]{10})
+                    .addLayer(new LayerConf(LayerType.FULLYCONN)
+                            .set("num_output", 10)
+                            .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                    .build().freezeMapped(file.getPath());
+            throw new AssertionError("mismatching checkpoint accepted");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+        try {
+            FrozenNet.map(new NeuralNetConf()
+                    .setGpuAccel(0.0)
+                    .setInputDim(new int[]{1, 3, 12, 12})
+                    .setOutputDim(new int[]{10})
+                    .addLayer(new LayerConf(LayerType.FULLYCONN)
+                            .set("num_output", 10)
+                            .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX)), file.getPath());
+            throw new AssertionError("mismatching checkpoint mapped");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+
+        /** MappedFrozenNet test complete **/
+    }
+
+    private static void assertClose(float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (Math.abs(expected[i] - actual[i]) > 1e-5f)
+                throw new AssertionError(String.format("element %d: expected %f, actual %f", i, expected[i], actual[i]));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+public class MemoryPlanTest {
+    public static void main(String[] args) {
+        // Mnist network of MnistTest
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setInputDim(new int[]{1, 1, 28, 28})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 20).set("kernel_row", 5).set("kernel_col", 5)
+                        .set("stride", 1).set("zeroPad", 0)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 50).set("kernel_row", 5).set("kernel_col", 5)
+                        .set("stride", 1).set("zeroPad", 0)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 500)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        for (MemoryPlan plan : new MemoryPlan[] {net.planTrainingMemory(), net.planInferenceMemory()}) {
+            System.out.println(plan);
+            for (MemoryPlan.Buffer b : plan.getBuffers()) {
+                System.out.println(String.format("  %-14s %8d floats  steps [%2d, %2d]  slab %d",
+                        b.getName(), b.getSize(), b.getStart(), b.getEnd(), b.getSlab()));
+
+                for (MemoryPlan.Buffer other : plan.getBuffers()) {
+                    if (b != other && b.getSlab() == other.getSlab()
+                            && b.getStart() <= other.getEnd() && other.getStart() <= b.getEnd())
+                        throw new AssertionError(b.getName() + " and " + other.getName() + " share a slab while both live");
+                }
+            }
+            if (plan.getPlannedBytes() < plan.getPeakBytes() || plan.getPlannedBytes() > plan.getUnsharedBytes())
+                throw new AssertionError("planned size out of bounds");
+        }
+
+        /** MemoryPlan test complete **/
+    }
+}
@@ -0,0 +1,89 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class ModelBroadcastTest {
+    public static void main(String[] args) throws Exception {
+        JavaSparkContext sc = new JavaSparkContext(new SparkConf().setMaster("local[4]").setAppName("ModelBroadcastTest"));
+
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setInputDim(new int[]{1, 1, 12, 12})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 8).set("kernel_row", 3).set("kernel_col", 3)
+                        .set("stride", 1).set("zeroPad", 1)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 200)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SIGMOID))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        final ModelBroadcast model = new ModelBroadcast(sc, net);
+        System.out.println(String.format("serialized net %d bytes, model handle %d bytes",
+                serializedSize(net), serializedSize(model)));
+
+        for (int version = 0; version < 3; version++) {
+            if (version > 0) {
+                // the driver changes the weights and publishes them
+                Weight[] delta = net.getTrainableWeights();
+                for (int i = 0; i < delta.length; i++) {
+                    if (delta[i] != null)
+                        delta[i] = new Weight(delta[i].w.dup().muli(0).addi(0.1f), delta[i].b.dup().muli(0).addi(0.1f));
+                }
+                net.updateWeight(delta);
+                model.update(sc, net);
+            }
+
+            final float[] expected = model.getLayout().flatten(net.getTrainableWeights());
+            List<Boolean> same = sc.parallelize(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), 8).mapPartitions(
+                    new FlatMapFunction<Iterator<Integer>, Boolean>() {
+                        @Override
+                        public Iterable<Boolean> call(Iterator<Integer> ignored) {
+                            ModelBroadcast.Replica replica = model.acquire();
+                            try {
+                                float[] actual = model.getLayout().flatten(replica.getNet().getTrainableWeights());
+                                return Collections.singletonList(Arrays.equals(expected, actual));
+                            } finally {
+                                model.release(replica);
+                            }
+                        }
+                    }).collect();
+            if (same.contains(false))
+                throw new AssertionError("replica does not hold version " + version);
+            System.out.println(String.format("version %d seen by %d tasks", model.getVersion(), same.size()));
+        }
+        model.destroy();
+        sc.stop();
+
+        /** ModelBroadcast test complete **/
+    }
+
+    private static int serializedSize(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+        return bytes.size();
+    }
+}
@@ -0,0 +1,113 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.FlatAccumulator;
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+public class NeuralNetForkTest {
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setInputDim(new int[]{1, 2, 12, 12})
+                .setOutputDim(new int[]{5})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 8)
+                        .set("kernel_row", 3)
+                        .set("kernel_col", 3)
+                        .set("stride", 1)
+                        .set("zeroPad", 0)
+                        .set("weight_type", WeightType.XAVIER)
+                        .set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2)
+                        .set("kernel_col", 2)
+                        .set("stride", 2)
+                        .set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 5)
+                        .set("weight_type", WeightType.XAVIER)
+                        .set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        final Sample[] batch = new Sample[64];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new Sample();
+            batch[i].data = Tensor.randn(1, 2, 12, 12);
+            float[] label = new float[5];
+            label[i % 5] = 1;
+            batch[i].label = Tensor.create(label, new int[]{5});
+        }
+        final WeightLayout layout = new WeightLayout(net.getTrainableWeights());
+
+        for (Sample sample : batch)
+            net.train(sample);      // warm-up
+
+        long start = System.nanoTime();
+        FlatAccumulator expected = new FlatAccumulator(layout);
+        for (Sample sample : batch)
+            expected.accumulate(net.train(sample), net.getLastLoss());
+        long sequential = System.nanoTime() - start;
+
+        // every fork trains on its own slice of the batch at the same time, see DistAsyncNeuralNetRunner
+        final NeuralNet[] nets = new NeuralNet[THREADS];
+        nets[0] = net;
+        for (int t = 1; t < THREADS; t++)
+            nets[t] = net.fork();
+        final FlatAccumulator[] partial = new FlatAccumulator[THREADS];
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[THREADS];
+        start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        partial[first] = new FlatAccumulator(layout);
+                        for (int j = first; j < batch.length; j += THREADS)
+                            partial[first].accumulate(nets[first].train(batch[j]), nets[first].getLastLoss());
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long parallel = System.nanoTime() - start;
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+
+        FlatAccumulator actual = partial[0];
+        for (int t = 1; t < THREADS; t++)
+            actual.merge(partial[t]);
+        if (actual.getCount() != batch.length)
+            throw new AssertionError(String.format("count %d", actual.getCount()));
+        for (int i = 0; i < layout.size(); i++) {
+            if (Math.abs(expected.getSum()[i] - actual.getSum()[i]) > 1e-3f)
+                throw new AssertionError(String.format("element %d: expected %f, actual %f",
+                        i, expected.getSum()[i], actual.getSum()[i]));
+        }
+        System.out.println(String.format("%d samples: sequential %.1f ms, %d threads %.1f ms",
+                batch.length, sequential / 1e6, THREADS, parallel / 1e6));
+
+        // weights replaced on the net reach the forks, their pooling masks stay their own
+        Weight[] pulled = layout.unflatten(layout.flatten(net.getTrainableWeights()), 0);
+        for (NeuralNet n : nets)
+            n.setTrainableWeights(pulled);
+        if (nets[1].getWeights()[0] != pulled[0] || nets[1].getWeights()[1] == net.getWeights()[1])
+            throw new AssertionError("forks do not share the pulled weights");
+
+        /** NeuralNet fork test complete **/
+    }
+}
@@ -0,0 +1,111 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.async.RingAllReduce;
+import org.acl.deepspark.nn.async.RingRendezvous;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+import org.acl.deepspark.nn.metrics.LogTrainingListener;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.Function2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+public class RingAllReduceTest {
+    private static final int RANKS = 4;
+    private static final int LENGTH = 100003;
+
+    public static void main(String[] args) throws Exception {
+        JavaSparkContext sc = new JavaSparkContext(new SparkConf().setMaster("local[" + RANKS + "]").setAppName("RingAllReduceTest"));
+
+        // every task sums its own array with the others over loopback sockets
+        RingRendezvous rendezvous = new RingRendezvous(18820, RANKS, null);
+        rendezvous.start();
+        List<Integer> ranks = new ArrayList<>();
+        for (int r = 0; r < RANKS; r++)
+            ranks.add(r);
+        List<float[]> reduced = sc.parallelize(ranks, RANKS).mapPartitionsWithIndex(
+                new Function2<Integer, Iterator<Integer>, Iterator<float[]>>() {
+                    @Override
+                    public Iterator<float[]> call(Integer partition, Iterator<Integer> ignored) throws Exception {
+                        float[] data = values(partition);
+                        RingAllReduce ring = RingAllReduce.join("localhost", 18820, partition, RANKS);
+                        try {
+                            ring.allReduce(data);
+                        } finally {
+                            ring.close();
+                        }
+                        return Collections.singletonList(data).iterator();
+                    }
+                }, false).collect();
+        rendezvous.stop();
+
+        float[] expected = new float[LENGTH];
+        for (int r = 0; r < RANKS; r++) {
+            float[] values = values(r);
+            for (int i = 0; i < LENGTH; i++)
+                expected[i] += values[i];
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            for (int r = 0; r < RANKS; r++) {
+                if (Math.abs(reduced.get(r)[i] - expected[i]) > 1e-4f)
+                    throw new AssertionError(String.format("rank %d, element %d: expected %f, actual %f",
+                            r, i, expected[i], reduced.get(r)[i]));
+                if (reduced.get(r)[i] != reduced.get(0)[i])
+                    throw new AssertionError(String.format("ranks 0 and %d differ at element %d", r, i));
+            }
+        }
+        System.out.println(String.format("%d ranks reduced %d floats", RANKS, LENGTH));
+
+        // synthetic 3-class problem trained through the ring
+        List<Sample> data = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 400; i++) {
+            int label = random.nextInt(3);
+            float[] x = new float[16];
+            for (int j = 0; j < x.length; j++)
+                x[j] = (float) random.nextGaussian() * 0.3f + (j % 3 == label ? 1 : 0);
+            float[] y = new float[3];
+            y[label] = 1;
+            Sample sample = new Sample();
+            sample.data = Tensor.create(x, new int[] {1, 1, 4, 4});
+            sample.label = Tensor.create(y, new int[] {3});
+            data.add(sample);
+        }
+        NeuralNet net = new NeuralNetConf().setGpuAccel(0.0).setLearningRate(0.1).setMomentum(0.9)
+                .setInputDim(new int[] {1, 1, 4, 4}).setOutputDim(new int[] {3})
+                .addLayer(new LayerConf(LayerType.FULLYCONN).set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SIGMOID))
+                .addLayer(new LayerConf(LayerType.FULLYCONN).set("num_output", 3)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        DistRingNeuralNetRunner runner = new DistRingNeuralNetRunner(net, "localhost", 18821)
+                .setIterations(200).setMiniBatchSize(20).setSeed(3)
+                .addListener(new LogTrainingListener(Logger.getLogger("RingAllReduceTest"), 50));
+        long start = System.nanoTime();
+        runner.train(sc, sc.parallelize(data, RANKS));
+        System.out.println(String.format("trained in %.1f s", (System.nanoTime() - start) / 1e9));
+        System.out.println(String.format("accuracy %.1f", runner.printAccuracy(data.toArray(new Sample[data.size()]))));
+        sc.stop();
+
+        /** RingAllReduce test complete **/
+    }
+
+    private static float[] values(int rank) {
+        float[] data = new float[LENGTH];
+        for (int i = 0; i < LENGTH; i++)
+            data[i] = (float) Math.sin(rank * 7919 + i);
+        return data;
+    }
+}
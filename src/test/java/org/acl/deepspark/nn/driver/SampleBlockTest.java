@@ -0,0 +1,44 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.EpochSampler;
+import org.acl.deepspark.data.Sample;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class SampleBlockTest {
+    public static void main(String[] args) {
+        // shares follow the partition sizes and always add up to the batch size
+        int[] shares = DistNeuralNetRunner.shares(Arrays.asList(300, 0, 100, 101, 499), 100);
+        System.out.println(Arrays.toString(shares));
+        int total = 0;
+        for (int share : shares)
+            total += share;
+        if (total != 100 || shares[1] != 0 || shares[0] != 30 || shares[4] != 50)
+            throw new AssertionError("unexpected shares " + Arrays.toString(shares));
+
+        Sample[] samples = new Sample[101];
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = new Sample();
+
+        // a recomputed block draws the same samples at the same iteration
+        SampleBlock block = new SampleBlock(samples, 3);
+        SampleBlock recomputed = new SampleBlock(samples, 3);
+        for (int iteration : new int[] {0, 7, 3, 250}) {
+            if (!Arrays.equals(block.take(iteration * 10L, 10, EpochSampler.Mode.PERMUTATION, 42L),
+                    recomputed.take(iteration * 10L, 10, EpochSampler.Mode.PERMUTATION, 42L)))
+                throw new AssertionError("iteration " + iteration + " differs after recomputing the block");
+        }
+
+        // one epoch of iterations visits every sample exactly once
+        SampleBlock shuffled = new SampleBlock(samples, 0);
+        Set<Sample> seen = new HashSet<>();
+        for (int iteration = 0; iteration < samples.length; iteration++)
+            seen.addAll(Arrays.asList(shuffled.take(iteration, 1, EpochSampler.Mode.BLOCK_SHUFFLE, 42L)));
+        if (seen.size() != samples.length)
+            throw new AssertionError("epoch visited " + seen.size() + " of " + samples.length + " samples");
+
+        /** SampleBlock test complete **/
+    }
+}
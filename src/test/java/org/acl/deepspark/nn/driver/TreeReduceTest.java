@@ -0,0 +1,75 @@
+package org.acl.deepspark.nn.driver;
+
+import org.acl.deepspark.data.FlatAccumulator;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.Weight;
+import org.acl.deepspark.data.WeightLayout;
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.api.java.function.Function2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class TreeReduceTest {
+    public static void main(String[] args) throws Exception {
+        JavaSparkContext sc = new JavaSparkContext(new SparkConf().setMaster("local[4]").setAppName("TreeReduceTest"));
+
+        final Weight[] shape = new Weight[] {
+                new Weight(Tensor.randn(1, 1, 6, 4), Tensor.randn(4)), null, new Weight(Tensor.randn(1, 1, 4, 3), Tensor.randn(3))};
+        final WeightLayout layout = new WeightLayout(shape);
+
+        List<Integer> seeds = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            seeds.add(i);
+        JavaRDD<FlatAccumulator> partial = sc.parallelize(seeds, 37).mapPartitions(
+                new FlatMapFunction<Iterator<Integer>, FlatAccumulator>() {
+                    @Override
+                    public Iterable<FlatAccumulator> call(Iterator<Integer> seeds) {
+                        FlatAccumulator sum = new FlatAccumulator(layout);
+                        while (seeds.hasNext())
+                            sum.accumulate(gradient(layout, seeds.next()), 1.0);
+                        return Collections.singletonList(sum);
+                    }
+                });
+
+        FlatAccumulator expected = new FlatAccumulator(layout);
+        for (int seed : seeds)
+            expected.accumulate(gradient(layout, seed), 1.0);
+
+        for (int depth = 1; depth <= 4; depth++) {
+            FlatAccumulator actual = TreeReduce.reduce(partial, new Function2<FlatAccumulator, FlatAccumulator, FlatAccumulator>() {
+                @Override
+                public FlatAccumulator call(FlatAccumulator a, FlatAccumulator b) {
+                    return a.merge(b);
+                }
+            }, depth);
+            if (actual.getCount() != seeds.size() || actual.getLoss() != seeds.size())
+                throw new AssertionError(String.format("depth %d: count %d, loss %f", depth, actual.getCount(), actual.getLoss()));
+            for (int i = 0; i < layout.size(); i++) {
+                if (Math.abs(expected.getSum()[i] - actual.getSum()[i]) > 1e-3f)
+                    throw new AssertionError(String.format("depth %d, element %d: expected %f, actual %f",
+                            depth, i, expected.getSum()[i], actual.getSum()[i]));
+            }
+            System.out.println(String.format("depth %d: %d samples merged", depth, actual.getCount()));
+        }
+
+        Weight[] average = expected.getAverage();
+        System.out.println(average[0]);
+        sc.stop();
+
+        /** TreeReduce test complete **/
+    }
+
+    // deterministic gradient for a seed, so driver and executors agree
+    private static Weight[] gradient(WeightLayout layout, int seed) {
+        float[] flat = new float[layout.size()];
+        for (int i = 0; i < flat.length; i++)
+            flat[i] = (float) Math.sin(seed * 31 + i);
+        return layout.unflatten(flat, 0);
+    }
+}
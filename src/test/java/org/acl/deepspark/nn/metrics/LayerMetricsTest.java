@@ -0,0 +1,63 @@
+package org.acl.deepspark.nn.metrics;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerOp;
+import org.acl.deepspark.nn.layers.LayerType;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class LayerMetricsTest {
+    public static void main(String[] args) throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+        if (histogram.getQuantile(0.5) < 500 || histogram.getQuantile(0.5) >= 1000 || histogram.getQuantile(1.0) != 1000)
+            throw new AssertionError("quantiles out of bounds");
+        System.out.println(String.format("p50 %d, p99 %d, mean %.1f", histogram.getQuantile(0.5),
+                histogram.getQuantile(0.99), histogram.getMean()));
+
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setLearningRate(0.01)
+                .setInputDim(new int[]{1, 1, 28, 28})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 20).set("kernel_row", 5).set("kernel_col", 5)
+                        .set("stride", 1).set("zeroPad", 0)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        Sample sample = new Sample();
+        sample.data = Tensor.randn(1, 1, 28, 28);
+        sample.label = Tensor.create(new float[] {0, 0, 1, 0, 0, 0, 0, 0, 0, 0}, new int[] {10});
+
+        LayerMetrics metrics = net.enableMetrics();
+        metrics.register("LayerMetricsTest");
+        for (int i = 0; i < 20; i++)
+            net.updateWeight(net.train(sample));
+        System.out.println(metrics);
+
+        if (metrics.getNanos(0, LayerOp.GENERATE_OUTPUT).getCount() != 20
+                || metrics.getNanos(0, LayerOp.CALCULATE_BACKPROP).getCount() != 0)
+            throw new AssertionError("unexpected number of recorded steps");
+
+        ObjectName name = new ObjectName("org.acl.deepspark:type=LayerMetrics,name=\"LayerMetricsTest\"");
+        String[] report = (String[]) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Report");
+        System.out.println(String.format("JMX report: %d lines", report.length));
+        metrics.unregister();
+
+        /** LayerMetrics test complete **/
+    }
+}
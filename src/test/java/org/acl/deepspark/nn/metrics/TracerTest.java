@@ -0,0 +1,92 @@
+package org.acl.deepspark.nn.metrics;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.driver.NeuralNetRunner;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+import java.io.StringWriter;
+
+public class TracerTest {
+    public static void main(String[] args) throws Exception {
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setInputDim(new int[]{1, 1, 1, 8})
+                .setOutputDim(new int[]{2})
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 6)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SIGMOID))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 2)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        Sample[] data = new Sample[16];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new Sample();
+            data[i].data = Tensor.randn(1, 1, 1, 8);
+            data[i].label = Tensor.create(new float[] {1, 0}, new int[] {2});
+        }
+        NeuralNetRunner runner = new NeuralNetRunner(net).setMiniBatchSize(4).setIterations(2);
+
+        // nothing is recorded while disabled
+        runner.train(data);
+        if (count(trace(), "\"ph\":\"X\"") != 0)
+            throw new AssertionError("events recorded while disabled");
+
+        Tracer.enable(64);
+        runner.train(data);
+        String trace = trace();
+        System.out.println(trace.substring(0, Math.min(trace.length(), 600)));
+        if (count(trace, "\"name\":\"updateWeight\"") != 2 || count(trace, "\"name\":\"iteration\"") != 2)
+            throw new AssertionError("missing step events");
+
+        // the ring keeps only the most recent events
+        runner.setIterations(50).train(data);
+        trace = trace();
+        int events = count(trace, "\"ph\":\"X\"");
+        System.out.println(String.format("%d events after wrapping", events));
+        if (events != 64 || !trace.contains("\"index\":50"))
+            throw new AssertionError("ring buffer did not keep the latest events");
+
+        // transfer sizes are their own arg, not an index
+        Tracer.clear();
+        Tracer.end("rpc", "sendDelta", -1, 1L << 33, Tracer.begin());
+        trace = trace();
+        if (!trace.contains("\"args\":{\"bytes\":8589934592}") || trace.contains("\"index\""))
+            throw new AssertionError("bytes not recorded as their own arg");
+
+        // the ring of a finished thread is written once, then released
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Tracer.end("step", "shortLived", Tracer.begin());
+            }
+        }, "short-lived-worker");
+        worker.start();
+        worker.join();
+        if (count(trace(), "short-lived-worker") != 1 || count(trace(), "short-lived-worker") != 0)
+            throw new AssertionError("ring of a finished thread not released after the dump");
+        Tracer.disable();
+
+        /** Tracer test complete **/
+    }
+
+    private static String trace() throws Exception {
+        StringWriter writer = new StringWriter();
+        Tracer.writeChromeTrace(writer);
+        return writer.toString();
+    }
+
+    private static int count(String s, String pattern) {
+        int count = 0;
+        for (int i = s.indexOf(pattern); i >= 0; i = s.indexOf(pattern, i + 1))
+            count++;
+        return count;
+    }
+}
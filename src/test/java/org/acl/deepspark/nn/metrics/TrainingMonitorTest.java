@@ -0,0 +1,85 @@
+package org.acl.deepspark.nn.metrics;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.NeuralNet;
+import org.acl.deepspark.nn.driver.NeuralNetRunner;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+public class TrainingMonitorTest {
+    public static void main(String[] args) throws Exception {
+        NeuralNet net = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setLearningRate(0.05)
+                .setInputDim(new int[]{1, 1, 1, 8})
+                .setOutputDim(new int[]{2})
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 6)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SIGMOID))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 2)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build();
+
+        Sample[] data = new Sample[40];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new Sample();
+            data[i].data = Tensor.randn(1, 1, 1, 8);
+            float positive = data[i].data.sum() > 0 ? 1 : 0;
+            data[i].label = Tensor.create(new float[] {positive, 1 - positive}, new int[] {2});
+        }
+
+        final AtomicInteger iterations = new AtomicInteger();
+        final AtomicInteger epochs = new AtomicInteger();
+        StringWriter csv = new StringWriter();
+        JmxTrainingListener jmx = new JmxTrainingListener("TrainingMonitorTest");
+
+        new NeuralNetRunner(net)
+                .setMiniBatchSize(10)
+                .setEpochs(5)
+                .setSeed(7)
+                .addListener(new CsvTrainingListener(csv))
+                .addListener(jmx)
+                .addListener(new LogTrainingListener(Logger.getLogger("TrainingMonitorTest"), 5))
+                .addListener(new TrainingListener() {
+                    // a slow listener only delays its own events
+                    @Override
+                    public void onIteration(IterationEvent event) {
+                        iterations.incrementAndGet();
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+                    @Override
+                    public void onEpoch(EpochEvent event) {
+                        epochs.incrementAndGet();
+                        System.out.println(event);
+                    }
+
+                    @Override
+                    public void onTrainingEnd() {
+                    }
+                })
+                .train(data);
+
+        System.out.println(csv);
+        if (iterations.get() != 20 || epochs.get() != 5)
+            throw new AssertionError(String.format("expected 20 iterations in 5 epochs, got %d in %d", iterations.get(), epochs.get()));
+        System.out.println(String.format("JMX: iteration %d, epoch %d, epoch loss %f",
+                jmx.getIteration(), jmx.getEpoch(), jmx.getEpochLoss()));
+        jmx.unregister();
+
+        /** TrainingMonitor test complete **/
+    }
+}
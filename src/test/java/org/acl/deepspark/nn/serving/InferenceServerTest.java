@@ -0,0 +1,170 @@
+package org.acl.deepspark.nn.serving;
+
+import org.acl.deepspark.data.Sample;
+import org.acl.deepspark.data.Tensor;
+import org.acl.deepspark.data.WeightType;
+import org.acl.deepspark.nn.conf.LayerConf;
+import org.acl.deepspark.nn.conf.NeuralNetConf;
+import org.acl.deepspark.nn.driver.FrozenNet;
+import org.acl.deepspark.nn.functions.ActivatorType;
+import org.acl.deepspark.nn.layers.LayerType;
+import org.acl.deepspark.nn.metrics.Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class InferenceServerTest {
+    public static void main(String[] args) throws Exception {
+        final FrozenNet frozen = new NeuralNetConf()
+                .setGpuAccel(0.0)
+                .setInputDim(new int[]{1, 1, 12, 12})
+                .setOutputDim(new int[]{10})
+                .addLayer(new LayerConf(LayerType.CONVOLUTION)
+                        .set("num_output", 8).set("kernel_row", 3).set("kernel_col", 3)
+                        .set("stride", 1).set("zeroPad", 1)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.POOLING)
+                        .set("kernel_row", 2).set("kernel_col", 2).set("stride", 2).set("activator", ActivatorType.NONE))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 64)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.RECTIFIED_LINEAR))
+                .addLayer(new LayerConf(LayerType.FULLYCONN)
+                        .set("num_output", 10)
+                        .set("weight_type", WeightType.XAVIER).set("activator", ActivatorType.SOFTMAX))
+                .build().freeze();
+
+        final Sample[] data = new Sample[32];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new Sample();
+            data[i].data = Tensor.randn(1, 1, 12, 12);
+        }
+
+        MicroBatcher batcher = new MicroBatcher(frozen, 16, 1000, 2);
+        final InferenceServer server = new InferenceServer(batcher, new InetSocketAddress("localhost", 0), 32).start();
+
+        // a malformed body is rejected
+        if (post(server.getPort(), new byte[6]).getResponseCode() != 400)
+            throw new AssertionError("expected 400 for a truncated sample");
+
+        // load generator: closed-loop clients sending one sample per request
+        final int clients = 16, requests = 200;
+        final Histogram clientLatency = new Histogram();
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int t = 0; t < clients; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int r = 0; r < requests; r++) {
+                            Sample sample = data[(seed * requests + r) % data.length];
+                            long begin = System.nanoTime();
+                            float[] out = predict(server.getPort(), sample.data.toArray(), frozen.getOutputSize());
+                            clientLatency.record(System.nanoTime() - begin);
+                            assertClose(frozen.predict(sample).toArray(), out);
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+
+        // several samples in one request keep their order
+        float[] both = new float[2 * frozen.getInputSize()];
+        System.arraycopy(data[3].data.toArray(), 0, both, 0, frozen.getInputSize());
+        System.arraycopy(data[5].data.toArray(), 0, both, frozen.getInputSize(), frozen.getInputSize());
+        float[] out = predict(server.getPort(), both, 2 * frozen.getOutputSize());
+        float[] second = new float[frozen.getOutputSize()];
+        System.arraycopy(out, frozen.getOutputSize(), second, 0, second.length);
+        assertClose(frozen.predict(data[5]).toArray(), second);
+
+        System.out.println(String.format("%d requests in %.2f s: %.0f req/s, client p50 %.2f ms, p99 %.2f ms",
+                clients * requests, seconds, clients * requests / seconds,
+                clientLatency.getQuantile(0.5) / 1e6, clientLatency.getQuantile(0.99) / 1e6));
+        System.out.print(server.metrics());
+        long[] buckets = batcher.getBatchSizes().getBuckets();
+        for (int b = 0; b < buckets.length; b++) {
+            if (buckets[b] > 0)
+                System.out.println(String.format("  batch < %3d: %d", 1L << b, buckets[b]));
+        }
+        if (batcher.getBatchSizes().getMax() > 16)
+            throw new AssertionError("batch larger than maxBatch");
+
+        // an Error in the forward pass fails its own request only; every worker keeps serving
+        for (int k = 0; k < 2; k++) {
+            int huge = 500000;      // activation buffers far beyond the heap
+            try {
+                batcher.predict(new float[huge * frozen.getInputSize()], huge);
+                throw new AssertionError("oversized batch succeeded");
+            } catch (IllegalStateException e) {
+                if (!(e.getCause() instanceof OutOfMemoryError))
+                    throw new AssertionError(e);
+            }
+        }
+        int workers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("micro-batcher-"))
+                workers++;
+        }
+        if (workers != 2)
+            throw new AssertionError(String.format("%d of 2 workers alive after a failed batch", workers));
+        assertClose(frozen.predict(data[7]).toArray(), predict(server.getPort(), data[7].data.toArray(), frozen.getOutputSize()));
+        System.out.println(String.format("%d workers alive after failed batches", workers));
+
+        server.stop();
+        batcher.shutdown();
+
+        /** InferenceServer test complete **/
+    }
+
+    private static HttpURLConnection post(int port, byte[] body) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/predict").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write(body);
+        }
+        return conn;
+    }
+
+    private static float[] predict(int port, float[] input, int outputs) throws Exception {
+        ByteBuffer body = ByteBuffer.allocate(4 * input.length).order(ByteOrder.LITTLE_ENDIAN);
+        body.asFloatBuffer().put(input);
+        HttpURLConnection conn = post(port, body.array());
+        if (conn.getResponseCode() != 200)
+            throw new AssertionError("HTTP " + conn.getResponseCode());
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (InputStream is = conn.getInputStream()) {
+            byte[] chunk = new byte[4096];
+            for (int n; (n = is.read(chunk)) > 0; )
+                buf.write(chunk, 0, n);
+        }
+        float[] out = new float[outputs];
+        ByteBuffer.wrap(buf.toByteArray()).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(out);
+        return out;
+    }
+
+    private static void assertClose(float[] expected, float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (Math.abs(expected[i] - actual[i]) > 1e-5f)
+                throw new AssertionError(String.format("element %d: expected %f, actual %f", i, expected[i], actual[i]));
+        }
+    }
+}